@@ -0,0 +1,28 @@
+package shylux.java.network.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like the JMH launcher, with the gc profiler always enabled,
+ * so every result comes with the allocation rate per operation.
+ * Accepts the usual JMH options, e.g. a regular expression selecting the benchmarks or -f 1 -wi 3 -i 5.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception {
+		List<String> arguments = Arrays.asList(args);
+		if (arguments.contains("-h") || arguments.contains("-l") || arguments.contains("-lp") || arguments.contains("-lprof")) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -0,0 +1,100 @@
+package shylux.java.network.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shylux.java.network.BinaryCodec;
+import shylux.java.network.ClassRegistry;
+import shylux.java.network.IMessageCodec;
+import shylux.java.network.SerializationCodec;
+
+/**
+ * Encodes and decodes one message with each codec, without the network.
+ * SERIALIZATION_RESET resets the ObjectOutputStream after every message, which costs as much as
+ * a new stream per message. The REGISTRY variants send the class as id instead of its descriptor or name.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	public enum Codec {
+		SERIALIZATION, SERIALIZATION_RESET, SERIALIZATION_REGISTRY, BINARY, BINARY_REGISTRY
+	}
+
+	/** Output stream handing out its buffer without copying. */
+	static class FrameOutput extends ByteArrayOutputStream {
+		ByteBuffer buffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+
+	@Param
+	public Codec codec;
+
+	private IMessageCodec encoder;
+	private IMessageCodec decoder;
+	private final FrameOutput out = new FrameOutput();
+	private long sequence;
+
+	@Setup
+	public void setUp() throws Exception {
+		ClassRegistry registry = new ClassRegistry();
+		IMessageCodec prototype;
+		switch (codec) {
+		case SERIALIZATION_RESET:
+			prototype = new SerializationCodec(SerializationCodec.ResetPolicy.ALWAYS);
+			break;
+		case BINARY:
+		case BINARY_REGISTRY:
+			prototype = new BinaryCodec();
+			break;
+		default:
+			prototype = new SerializationCodec();
+		}
+		if (codec == Codec.SERIALIZATION_REGISTRY || codec == Codec.BINARY_REGISTRY) registry.register(Quote.class);
+		encoder = prototype.newInstance(registry);
+		decoder = prototype.newInstance(registry);
+		// the first message carries the stream header and class descriptors
+		roundTrip();
+	}
+
+	/**
+	 * A new message every time, the serialization codec would send a repeated object as back reference.
+	 */
+	private Quote nextQuote() {
+		return new Quote("ACME", ++sequence, 101.25, 101.5, 300);
+	}
+
+	@Benchmark
+	public Object roundTrip() throws IOException, ClassNotFoundException {
+		out.reset();
+		encoder.encode(nextQuote(), out);
+		return decoder.decode(out.buffer());
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		out.reset();
+		encoder.encode(nextQuote(), out);
+		return out.size();
+	}
+}
@@ -0,0 +1,32 @@
+package shylux.java.network.benchmark;
+
+import java.io.IOException;
+
+import shylux.java.network.ConnectionManager;
+import shylux.java.network.ConnectionOptions;
+import shylux.java.network.TCPConnection;
+
+/**
+ * Helpers to set up a manager and a connection to it on the loopback interface.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class Loopback {
+	/**
+	 * Connects to a manager on the loopback interface.
+	 * @param pPort port the manager is bound to
+	 * @param pOptions settings of the connection
+	 * @return the new connection
+	 */
+	static TCPConnection connect(int pPort, ConnectionOptions pOptions) throws IOException {
+		return ConnectionManager.connect("localhost", pPort, pOptions);
+	}
+
+	/**
+	 * @param pNIO true for the non-blocking engine
+	 * @return options of a manager only accepting connections
+	 */
+	static ConnectionOptions tcpOptions(boolean pNIO) {
+		return new ConnectionOptions().setUseUDP(false).setUseNIO(pNIO).setJmxEnabled(false);
+	}
+}
@@ -0,0 +1,49 @@
+package shylux.java.network.benchmark;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import shylux.java.network.IBinaryMessage;
+
+/**
+ * Small message typical for the library: a few primitives and a short string.
+ * Serializable for the serialization codec and binary for the BinaryCodec.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class Quote implements IBinaryMessage {
+	private static final long serialVersionUID = 1L;
+
+	public String symbol;
+	public long timestamp;
+	public double bid;
+	public double ask;
+	public int volume;
+
+	public Quote() {}
+
+	public Quote(String pSymbol, long pTimestamp, double pBid, double pAsk, int pVolume) {
+		symbol = pSymbol;
+		timestamp = pTimestamp;
+		bid = pBid;
+		ask = pAsk;
+		volume = pVolume;
+	}
+
+	public void writeTo(DataOutput pOut) throws IOException {
+		pOut.writeUTF(symbol);
+		pOut.writeLong(timestamp);
+		pOut.writeDouble(bid);
+		pOut.writeDouble(ask);
+		pOut.writeInt(volume);
+	}
+
+	public void readFrom(DataInput pIn) throws IOException {
+		symbol = pIn.readUTF();
+		timestamp = pIn.readLong();
+		bid = pIn.readDouble();
+		ask = pIn.readDouble();
+		volume = pIn.readInt();
+	}
+}
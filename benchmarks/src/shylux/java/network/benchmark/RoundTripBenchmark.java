@@ -0,0 +1,76 @@
+package shylux.java.network.benchmark;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shylux.java.network.ConnectionManager;
+import shylux.java.network.INetworkListener;
+import shylux.java.network.IRequestHandler;
+import shylux.java.network.TCPConnection;
+import shylux.java.network.UDPMessage;
+
+/**
+ * Latency of a request answered by the remote host over loopback, and of a ping answered without the codec.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+	@Param({"false", "true"})
+	public boolean nio;
+
+	private ConnectionManager manager;
+	private TCPConnection conn;
+	private long sequence;
+
+	@Setup
+	public void setUp() throws Exception {
+		manager = ConnectionManager.start(0, Loopback.tcpOptions(nio));
+		manager.addNetworkListener(new INetworkListener() {
+			public void onConnection(TCPConnection pCon) {
+				pCon.setRequestHandler(new IRequestHandler() {
+					public Serializable onRequest(TCPConnection pCon, Object pRequest) {
+						return (Serializable) pRequest;
+					}
+				});
+			}
+			public void onUDPMessage(UDPMessage pMsg) {}
+		});
+		conn = Loopback.connect(manager.getPort(), Loopback.tcpOptions(false));
+	}
+
+	@TearDown
+	public void tearDown() {
+		conn.close();
+		manager.stop();
+	}
+
+	@Benchmark
+	public Object request() throws Exception {
+		// a new message every time, a repeated object would be sent as back reference
+		return conn.request(new Quote("ACME", ++sequence, 101.25, 101.5, 300)).get(5, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	public long ping() throws Exception {
+		return conn.ping(5000).get(5, TimeUnit.SECONDS);
+	}
+}
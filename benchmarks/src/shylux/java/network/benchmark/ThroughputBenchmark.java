@@ -0,0 +1,84 @@
+package shylux.java.network.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shylux.java.network.ConnectionManager;
+import shylux.java.network.ConnectionOptions;
+import shylux.java.network.IConnectionListener;
+import shylux.java.network.INetworkListener;
+import shylux.java.network.TCPConnection;
+import shylux.java.network.UDPMessage;
+
+/**
+ * One-way throughput of small and large messages over loopback.
+ * The send queue is limited and the sender blocks while it is full, so the rate is the rate at which
+ * the receiver decodes and dispatches, not the rate at which the queue fills the heap.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThroughputBenchmark {
+	@Param({"64", "65536"})
+	public int size;
+
+	@Param({"false", "true"})
+	public boolean nio;
+
+	private ConnectionManager manager;
+	private TCPConnection conn;
+	private byte[] message;
+	private final AtomicLong received = new AtomicLong();
+
+	@Setup
+	public void setUp() throws Exception {
+		manager = ConnectionManager.start(0, Loopback.tcpOptions(nio));
+		manager.addNetworkListener(new INetworkListener() {
+			public void onConnection(TCPConnection pCon) {
+				pCon.addConnectionListener(new IConnectionListener() {
+					public void onMessage(Object o) {
+						received.incrementAndGet();
+					}
+					public void onClose() {}
+				});
+			}
+			public void onUDPMessage(UDPMessage pMsg) {}
+		});
+		conn = Loopback.connect(manager.getPort(), new ConnectionOptions()
+			.setSendQueueLimit(4 * 1024 * 1024, 4096)
+			.setOverflowPolicy(ConnectionOptions.OverflowPolicy.BLOCK));
+		message = new byte[size];
+	}
+
+	@TearDown
+	public void tearDown() {
+		conn.close();
+		manager.stop();
+	}
+
+	/**
+	 * Sends a new array every time, the serialization codec would send a repeated object as back reference.
+	 */
+	@Benchmark
+	public void send() {
+		if (!conn.sendAsync(message.clone())) throw new IllegalStateException("Message rejected, connection closed: "+conn.isClosed());
+	}
+}
@@ -0,0 +1,102 @@
+package shylux.java.network.benchmark;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shylux.java.network.BroadcastSender;
+import shylux.java.network.ConnectionManager;
+import shylux.java.network.ConnectionOptions;
+import shylux.java.network.INetworkListener;
+import shylux.java.network.TCPConnection;
+import shylux.java.network.UDPMessage;
+
+/**
+ * The datagram paths: a datagram sent over loopback until the UDPListener of a manager handed it to its listener,
+ * and the cost of broadcasting with the static sendBroadcastUDPMessage and with a reused BroadcastSender.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UdpBenchmark {
+	private ConnectionManager manager;
+	private DatagramChannel channel;
+	private BroadcastSender sender;
+	private final ByteBuffer datagram = ByteBuffer.allocateDirect(64);
+	private final ByteBuffer payload = ByteBuffer.allocateDirect(48);
+	private final AtomicLong received = new AtomicLong();
+
+	@Setup
+	public void setUp() throws Exception {
+		manager = ConnectionManager.start(0, new ConnectionOptions().setUseTCP(false).setJmxEnabled(false));
+		manager.addNetworkListener(new INetworkListener() {
+			public void onConnection(TCPConnection pCon) {}
+			public void onUDPMessage(UDPMessage pMsg) {
+				received.incrementAndGet();
+			}
+		});
+		channel = DatagramChannel.open();
+		channel.connect(new InetSocketAddress("127.0.0.1", manager.getPort()));
+		// datagrams carrying the id of this process are ignored by its managers
+		UUID sender = UUID.randomUUID();
+		datagram.putLong(sender.getMostSignificantBits()).putLong(sender.getLeastSignificantBits());
+		while (datagram.hasRemaining()) datagram.put((byte) 'x');
+		while (payload.hasRemaining()) payload.put((byte) 'x');
+		this.sender = new BroadcastSender(manager.getPort());
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		sender.close();
+		channel.close();
+		manager.stop();
+	}
+
+	/**
+	 * Sends a datagram and waits until the listener got it, sending it again if it was lost.
+	 */
+	@Benchmark
+	public long receive() throws Exception {
+		long before = received.get();
+		while (true) {
+			datagram.rewind();
+			channel.write(datagram);
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+			while (System.nanoTime() < deadline) {
+				long now = received.get();
+				if (now != before) return now;
+			}
+		}
+	}
+
+	@Benchmark
+	public void broadcastStatic() throws Exception {
+		ConnectionManager.sendBroadcastUDPMessage("benchmark");
+	}
+
+	@Benchmark
+	public int broadcastSender() throws Exception {
+		payload.rewind();
+		return sender.send(payload);
+	}
+}
@@ -0,0 +1,216 @@
+package shylux.java.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact codec without class descriptors.
+ * Boxed primitives, String, byte[] and IBinaryMessage are written as a type tag followed by their value.
+ * Any other message falls back to java serialization, without state shared between messages.
+ * With a ClassRegistry, registered IBinaryMessage are written with their id instead of their class name
+ * and serialized messages carry ids instead of the descriptors of registered classes.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class BinaryCodec implements IMessageCodec {
+	static final byte NULL = 0;
+	static final byte BOOLEAN = 1;
+	static final byte BYTE = 2;
+	static final byte SHORT = 3;
+	static final byte CHAR = 4;
+	static final byte INT = 5;
+	static final byte LONG = 6;
+	static final byte FLOAT = 7;
+	static final byte DOUBLE = 8;
+	static final byte STRING = 9;
+	static final byte BYTES = 10;
+	static final byte BINARY = 11;
+	static final byte SERIALIZED = 12;
+	static final byte BINARY_ID = 13;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private DataOutputStream out;
+	private OutputStream target;
+	private ByteBufferInput input = new ByteBufferInput();
+	private Map<String, Constructor<?>> constructors = new HashMap<String, Constructor<?>>();
+	// null if no classes are registered
+	private final ClassRegistry registry;
+
+	public BinaryCodec() {
+		this(null);
+	}
+
+	private BinaryCodec(ClassRegistry pRegistry) {
+		registry = pRegistry;
+	}
+
+	public IMessageCodec newInstance() {
+		return new BinaryCodec();
+	}
+
+	@Override
+	public IMessageCodec newInstance(ClassRegistry pRegistry) {
+		return new BinaryCodec(pRegistry == null || pRegistry.isEmpty() ? null : pRegistry);
+	}
+
+	public void encode(Serializable pObj, OutputStream pOut) throws IOException {
+		if (target != pOut) {
+			target = pOut;
+			out = new DataOutputStream(pOut);
+		}
+		if (pObj == null) {
+			out.writeByte(NULL);
+		} else if (pObj instanceof IBinaryMessage) {
+			int id = registry == null ? -1 : registry.getId(pObj.getClass());
+			if (id < 0) {
+				out.writeByte(BINARY);
+				out.writeUTF(pObj.getClass().getName());
+			} else {
+				out.writeByte(BINARY_ID);
+				out.writeShort(id);
+			}
+			((IBinaryMessage) pObj).writeTo(out);
+		} else if (pObj instanceof String) {
+			byte[] b = ((String) pObj).getBytes(UTF8);
+			out.writeByte(STRING);
+			out.writeInt(b.length);
+			out.write(b);
+		} else if (pObj instanceof byte[]) {
+			byte[] b = (byte[]) pObj;
+			out.writeByte(BYTES);
+			out.writeInt(b.length);
+			out.write(b);
+		} else if (pObj instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) pObj);
+		} else if (pObj instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) pObj);
+		} else if (pObj instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) pObj);
+		} else if (pObj instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) pObj);
+		} else if (pObj instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) pObj);
+		} else if (pObj instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) pObj);
+		} else if (pObj instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) pObj);
+		} else if (pObj instanceof Character) {
+			out.writeByte(CHAR);
+			out.writeChar((Character) pObj);
+		} else {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ClassIdOutputStream(bytes, registry);
+			oos.writeObject(pObj);
+			oos.close();
+			out.writeByte(SERIALIZED);
+			bytes.writeTo(out);
+		}
+		out.flush();
+	}
+
+	public Object decode(ByteBuffer pFrame) throws IOException, ClassNotFoundException {
+		input.buffer = pFrame;
+		byte tag = input.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case BOOLEAN:
+			return input.readBoolean();
+		case BYTE:
+			return input.readByte();
+		case SHORT:
+			return input.readShort();
+		case CHAR:
+			return input.readChar();
+		case INT:
+			return input.readInt();
+		case LONG:
+			return input.readLong();
+		case FLOAT:
+			return input.readFloat();
+		case DOUBLE:
+			return input.readDouble();
+		case STRING:
+			return readString();
+		case BYTES:
+			byte[] b = new byte[readLength()];
+			input.readFully(b);
+			return b;
+		case BINARY:
+			IBinaryMessage msg = newMessage(input.readUTF());
+			msg.readFrom(input);
+			return msg;
+		case BINARY_ID:
+			int id = input.readUnsignedShort();
+			Class<?> cls = registry == null ? null : registry.getRegisteredClass(id);
+			if (cls == null) throw new ClassNotFoundException("No class registered with id "+id);
+			IBinaryMessage registered = newMessage(cls.getName());
+			registered.readFrom(input);
+			return registered;
+		case SERIALIZED:
+			return new ClassIdInputStream(input, registry).readObject();
+		default:
+			throw new IOException("Unknown type tag: "+tag);
+		}
+	}
+
+	private int readLength() throws IOException {
+		int length = input.readInt();
+		if (length < 0 || length > input.available()) throw new IOException("Invalid length: "+length);
+		return length;
+	}
+
+	private String readString() throws IOException {
+		int length = readLength();
+		ByteBuffer buffer = input.buffer;
+		String s;
+		if (buffer.hasArray()) {
+			s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+			buffer.position(buffer.position() + length);
+		} else {
+			byte[] b = new byte[length];
+			buffer.get(b);
+			s = new String(b, UTF8);
+		}
+		return s;
+	}
+
+	/**
+	 * Creates an empty message, the constructor is looked up once per class.
+	 */
+	private IBinaryMessage newMessage(String pClassName) throws IOException, ClassNotFoundException {
+		Constructor<?> c = constructors.get(pClassName);
+		try {
+			if (c == null) {
+				Class<?> cls = registry == null ? null : registry.forName(pClassName);
+				// not initialized before the check, the name comes from the remote host
+				if (cls == null) cls = Class.forName(pClassName, false, BinaryCodec.class.getClassLoader());
+				if (!IBinaryMessage.class.isAssignableFrom(cls)) throw new ClassNotFoundException(pClassName+" is not a IBinaryMessage");
+				c = cls.getConstructor();
+				constructors.put(pClassName, c);
+			}
+			return (IBinaryMessage) c.newInstance();
+		} catch (ClassNotFoundException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Cannot create "+pClassName+": "+e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package shylux.java.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends datagrams to the UDPListener of every ConnectionManager in the local networks.
+ * Owns one channel and one send buffer for its whole life, and caches the broadcast addresses of the
+ * network interfaces. They are looked up again after the refresh interval or after a send failed,
+ * e.g. because an interface went down.
+ * Every datagram starts with the 16 byte id of this process, see UDPMessage.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class BroadcastSender implements Closeable {
+	/** Default time after which the broadcast addresses are looked up again. */
+	public static final long DEFAULT_REFRESH_MILLIS = 30000;
+	/** Largest payload of a datagram. */
+	public static final int MAX_PAYLOAD_SIZE = 65507 - UDPMessage.HEADER_SIZE;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int port;
+	private final long refreshNanos;
+	private final DatagramChannel channel;
+	private final ByteBuffer datagram = ByteBuffer.allocateDirect(UDPMessage.HEADER_SIZE + MAX_PAYLOAD_SIZE);
+	// senders do not block a virtual thread's carrier while waiting
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile List<InetSocketAddress> targets;
+	private long refreshedAt;
+
+	/**
+	 * Creates a sender refreshing the addresses every DEFAULT_REFRESH_MILLIS.
+	 * @param pPort port the receiving managers listen on
+	 * @throws IOException if the channel cannot be opened
+	 */
+	public BroadcastSender(int pPort) throws IOException {
+		this(pPort, DEFAULT_REFRESH_MILLIS);
+	}
+
+	/**
+	 * @param pPort port the receiving managers listen on
+	 * @param pRefreshMillis time after which the broadcast addresses are looked up again
+	 * @throws IOException if the channel cannot be opened
+	 */
+	public BroadcastSender(int pPort, long pRefreshMillis) throws IOException {
+		if (pRefreshMillis < 0) throw new IllegalArgumentException("Refresh interval must not be negative");
+		port = pPort;
+		refreshNanos = TimeUnit.MILLISECONDS.toNanos(pRefreshMillis);
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+		datagram.putLong(0, ConnectionManager.ID.getMostSignificantBits());
+		datagram.putLong(8, ConnectionManager.ID.getLeastSignificantBits());
+	}
+
+	/**
+	 * Broadcasts a text as UTF-8.
+	 * @param pMessage the text
+	 * @return number of datagrams sent
+	 * @throws IOException if the sender has been closed
+	 */
+	public int send(String pMessage) throws IOException {
+		return send(ByteBuffer.wrap(pMessage.getBytes(UTF8)));
+	}
+
+	/**
+	 * Broadcasts a binary payload.
+	 * @param pPayload the payload
+	 * @return number of datagrams sent
+	 * @throws IOException if the sender has been closed
+	 */
+	public int send(byte[] pPayload) throws IOException {
+		return send(ByteBuffer.wrap(pPayload));
+	}
+
+	/**
+	 * Broadcasts every payload as its own datagram, all of them with one lookup of the addresses.
+	 * The positions of the buffers are not changed.
+	 * @param pPayloads payloads of at most MAX_PAYLOAD_SIZE bytes
+	 * @return number of datagrams sent
+	 * @throws IOException if the sender has been closed
+	 */
+	public int send(ByteBuffer... pPayloads) throws IOException {
+		for (ByteBuffer payload: pPayloads) {
+			if (payload.remaining() > MAX_PAYLOAD_SIZE) throw new IllegalArgumentException("Payload exceeds "+MAX_PAYLOAD_SIZE+" bytes");
+		}
+		lock.lock();
+		try {
+			List<InetSocketAddress> to = currentTargets();
+			int sent = 0;
+			for (ByteBuffer payload: pPayloads) {
+				datagram.clear().position(UDPMessage.HEADER_SIZE);
+				datagram.put(payload.duplicate()).flip();
+				for (InetSocketAddress target: to) {
+					try {
+						channel.send(datagram, target);
+						sent++;
+					} catch (IOException e) {
+						if (!channel.isOpen()) throw e;
+						// the interface of the address might be gone
+						ConnectionManager.LOG.fine("Broadcast to "+target+" failed: "+e.getMessage());
+						targets = null;
+					}
+					datagram.rewind();
+				}
+			}
+			return sent;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Looks up the broadcast addresses on the next send.
+	 */
+	public void refresh() {
+		targets = null;
+	}
+
+	/**
+	 * Must hold the lock.
+	 * @return the cached addresses, looked up again if they are stale
+	 */
+	private List<InetSocketAddress> currentTargets() {
+		List<InetSocketAddress> t = targets;
+		if (t == null || System.nanoTime() - refreshedAt > refreshNanos) {
+			t = lookupTargets();
+			targets = t;
+			refreshedAt = System.nanoTime();
+		}
+		return t;
+	}
+
+	private List<InetSocketAddress> lookupTargets() {
+		Set<InetAddress> addresses = new LinkedHashSet<InetAddress>();
+		try {
+			addresses.add(InetAddress.getByName("255.255.255.255"));
+		} catch (IOException e) {}
+		try {
+			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+			while (interfaces != null && interfaces.hasMoreElements()) {
+				NetworkInterface networkInterface = interfaces.nextElement();
+				if (networkInterface.isLoopback() || !networkInterface.isUp()) continue;
+				for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+					InetAddress broadcast = interfaceAddress.getBroadcast();
+					if (broadcast != null) addresses.add(broadcast);
+				}
+			}
+		} catch (IOException e) {
+			ConnectionManager.LOG.warning("Cannot list network interfaces: "+e.getMessage());
+		}
+		List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+		for (InetAddress address: addresses) {
+			result.add(new InetSocketAddress(address, port));
+		}
+		ConnectionManager.LOG.fine("Broadcast addresses: "+result);
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * @return port the datagrams are sent to
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the cached broadcast addresses, looked up if they are stale
+	 */
+	public List<InetSocketAddress> getTargets() {
+		lock.lock();
+		try {
+			return currentTargets();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
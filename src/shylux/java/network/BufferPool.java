@@ -0,0 +1,235 @@
+package shylux.java.network;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct buffers for frames, receive buffers and datagrams.
+ * Buffers come in power of two size classes. A released buffer goes to a small cache of the releasing thread
+ * first, then to a shared queue of its class. Requests above the largest class get an unpooled buffer.
+ *
+ * With leak detection every acquired buffer remembers where it was acquired. A buffer that is garbage collected
+ * without being released is logged with that stack trace. Leak detection is meant for debugging, it is slow.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class BufferPool {
+	/** Smallest size class. */
+	static final int MIN_SIZE = 512;
+	/** Largest size class, bigger buffers are not pooled. */
+	static final int MAX_SIZE = 64 * 1024;
+	/** Buffers per size class kept by each thread. */
+	private static final int THREAD_CACHE_SIZE = 4;
+
+	private final int classes = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+	private final List<Queue<ByteBuffer>> shared;
+	private final AtomicInteger[] sharedCount;
+	private final int sharedLimit;
+	private final ThreadLocal<List<ArrayDeque<ByteBuffer>>> cache = new ThreadLocal<List<ArrayDeque<ByteBuffer>>>() {
+		@Override
+		protected List<ArrayDeque<ByteBuffer>> initialValue() {
+			List<ArrayDeque<ByteBuffer>> c = new ArrayList<ArrayDeque<ByteBuffer>>(classes);
+			for (int i = 0; i < classes; i++) {
+				c.add(new ArrayDeque<ByteBuffer>(THREAD_CACHE_SIZE));
+			}
+			return c;
+		}
+	};
+	private final LongAdder allocated = new LongAdder();
+	private final LongAdder acquired = new LongAdder();
+	private final LongAdder leaks = new LongAdder();
+
+	private volatile boolean leakDetection = Boolean.getBoolean("shylux.java.network.leakDetection");
+	private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+	// trackers of the acquired buffers by identity hash code
+	private final ConcurrentHashMap<Integer, List<Tracker>> tracked = new ConcurrentHashMap<Integer, List<Tracker>>();
+
+	/**
+	 * Remembers where a buffer was acquired, cleared by the garbage collector if the buffer leaks.
+	 */
+	private static class Tracker extends WeakReference<ByteBuffer> {
+		final int hash;
+		final int capacity;
+		final Throwable origin = new Throwable("Buffer acquired here");
+
+		Tracker(ByteBuffer pBuffer, ReferenceQueue<ByteBuffer> pQueue) {
+			super(pBuffer, pQueue);
+			hash = System.identityHashCode(pBuffer);
+			capacity = pBuffer.capacity();
+		}
+	}
+
+	/**
+	 * @param pSharedLimit buffers per size class kept in the shared queue
+	 */
+	BufferPool(int pSharedLimit) {
+		sharedLimit = pSharedLimit;
+		shared = new ArrayList<Queue<ByteBuffer>>(classes);
+		sharedCount = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			shared.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			sharedCount[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Returns a cleared direct buffer with the requested size as limit.
+	 * The capacity may be bigger. The buffer has to be released exactly once when it is not used anymore.
+	 * @param pSize number of bytes needed
+	 * @return direct buffer
+	 */
+	ByteBuffer acquire(int pSize) {
+		acquired.increment();
+		if (leakDetection) reportLeaks();
+		int index = index(pSize);
+		ByteBuffer buffer = null;
+		if (index >= 0) {
+			buffer = cache.get().get(index).poll();
+			if (buffer == null) {
+				buffer = shared.get(index).poll();
+				if (buffer != null) sharedCount[index].decrementAndGet();
+			}
+		}
+		if (buffer == null) {
+			allocated.increment();
+			buffer = ByteBuffer.allocateDirect(index >= 0 ? MIN_SIZE << index : pSize);
+		}
+		buffer.limit(pSize);
+		if (leakDetection) track(buffer);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Heap buffers and buffers which do not match a size class are ignored,
+	 * so every frame of the outbound queue can be passed.
+	 * @param pBuffer buffer acquired from this pool, it must not be used anymore
+	 */
+	void release(ByteBuffer pBuffer) {
+		if (!pBuffer.isDirect()) return;
+		if (leakDetection) untrack(pBuffer);
+		int index = index(pBuffer.capacity());
+		if (index < 0 || MIN_SIZE << index != pBuffer.capacity()) return;
+		pBuffer.clear();
+		ArrayDeque<ByteBuffer> local = cache.get().get(index);
+		if (local.size() < THREAD_CACHE_SIZE) {
+			local.add(pBuffer);
+		} else if (sharedCount[index].incrementAndGet() <= sharedLimit) {
+			shared.get(index).add(pBuffer);
+		} else {
+			// enough buffers of this size, left to the garbage collector
+			sharedCount[index].decrementAndGet();
+		}
+	}
+
+	/**
+	 * Gives up a buffer which may still be in use somewhere else, it is left to the garbage collector.
+	 * @param pBuffer buffer acquired from this pool
+	 */
+	void discard(ByteBuffer pBuffer) {
+		if (leakDetection && pBuffer.isDirect()) untrack(pBuffer);
+	}
+
+	/**
+	 * @return index of the smallest size class holding pSize bytes, -1 if it is too big
+	 */
+	private static int index(int pSize) {
+		if (pSize > MAX_SIZE) return -1;
+		if (pSize <= MIN_SIZE) return 0;
+		return 32 - Integer.numberOfLeadingZeros(pSize - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+	}
+
+	private void track(ByteBuffer pBuffer) {
+		Tracker tracker = new Tracker(pBuffer, collected);
+		List<Tracker> list = tracked.get(tracker.hash);
+		if (list == null) {
+			List<Tracker> created = new LinkedList<Tracker>();
+			list = tracked.putIfAbsent(tracker.hash, created);
+			if (list == null) list = created;
+		}
+		synchronized (list) {
+			list.add(tracker);
+		}
+	}
+
+	private void untrack(ByteBuffer pBuffer) {
+		List<Tracker> list = tracked.get(System.identityHashCode(pBuffer));
+		if (list == null) return;
+		synchronized (list) {
+			for (Iterator<Tracker> it = list.iterator(); it.hasNext();) {
+				if (it.next().get() == pBuffer) {
+					it.remove();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Logs the buffers which were garbage collected without being released.
+	 */
+	private void reportLeaks() {
+		Tracker tracker;
+		while ((tracker = (Tracker) collected.poll()) != null) {
+			List<Tracker> list = tracked.get(tracker.hash);
+			boolean leaked = false;
+			if (list != null) {
+				synchronized (list) {
+					leaked = list.remove(tracker);
+				}
+			}
+			if (leaked) {
+				leaks.increment();
+				ConnectionManager.LOG.severe("Buffer of "+tracker.capacity+" bytes was not released before it was garbage collected");
+				tracker.origin.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Enables leak detection for buffers acquired from now on.
+	 * Also enabled by the system property shylux.java.network.leakDetection.
+	 * @param pEnabled true to track every buffer
+	 */
+	public void setLeakDetection(boolean pEnabled) {
+		leakDetection = pEnabled;
+	}
+
+	public boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	/**
+	 * Checks for leaked buffers and returns their number.
+	 * Only buffers acquired with leak detection enabled and already garbage collected are found.
+	 * @return number of leaked buffers found so far
+	 */
+	public long getLeakCount() {
+		reportLeaks();
+		return leaks.sum();
+	}
+
+	/**
+	 * @return number of buffers handed out
+	 */
+	public long getAcquireCount() {
+		return acquired.sum();
+	}
+
+	/**
+	 * @return number of buffers which had to be allocated because the pool had none
+	 */
+	public long getAllocationCount() {
+		return allocated.sum();
+	}
+}
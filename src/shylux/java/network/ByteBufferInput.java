@@ -0,0 +1,113 @@
+package shylux.java.network;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads from a byte buffer without copying it.
+ * The buffer can be replaced to reuse the instance for every frame.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class ByteBufferInput extends InputStream implements DataInput {
+	ByteBuffer buffer;
+
+	private void need(int n) throws EOFException {
+		if (buffer.remaining() < n) throw new EOFException("Frame too short");
+	}
+
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining()) return -1;
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) return 0;
+		if (!buffer.hasRemaining()) return -1;
+		len = Math.min(len, buffer.remaining());
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		need(len);
+		buffer.get(b, off, len);
+	}
+
+	public int skipBytes(int n) {
+		n = Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + n);
+		return n;
+	}
+
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+
+	public byte readByte() throws IOException {
+		need(1);
+		return buffer.get();
+	}
+
+	public int readUnsignedByte() throws IOException {
+		return readByte() & 0xff;
+	}
+
+	public short readShort() throws IOException {
+		need(2);
+		return buffer.getShort();
+	}
+
+	public int readUnsignedShort() throws IOException {
+		return readShort() & 0xffff;
+	}
+
+	public char readChar() throws IOException {
+		need(2);
+		return buffer.getChar();
+	}
+
+	public int readInt() throws IOException {
+		need(4);
+		return buffer.getInt();
+	}
+
+	public long readLong() throws IOException {
+		need(8);
+		return buffer.getLong();
+	}
+
+	public float readFloat() throws IOException {
+		need(4);
+		return buffer.getFloat();
+	}
+
+	public double readDouble() throws IOException {
+		need(8);
+		return buffer.getDouble();
+	}
+
+	@Deprecated
+	public String readLine() {
+		throw new UnsupportedOperationException("readLine is not supported");
+	}
+
+	public String readUTF() throws IOException {
+		return DataInputStream.readUTF(this);
+	}
+}
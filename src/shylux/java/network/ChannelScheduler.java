@@ -0,0 +1,167 @@
+package shylux.java.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The logical channels of a connection and their fragments waiting to be written.
+ * Fragments are moved to the outbound queue of the connection round-robin between the channels,
+ * and only while the outbound queue holds less than a few fragments, so a channel with a large backlog
+ * cannot push ahead of a message sent later on another channel.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class ChannelScheduler {
+	/** Channel data kept in the outbound queue, in fragments. */
+	private static final int FILL_FRAGMENTS = 4;
+
+	private final TCPConnection connection;
+	private final ConnectionOptions options;
+	private final ConcurrentHashMap<Integer, LogicalChannel> channels = new ConcurrentHashMap<Integer, LogicalChannel>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	// channels with pending fragments in the order of their next turn
+	private final ArrayDeque<LogicalChannel> ready = new ArrayDeque<LogicalChannel>();
+	private final long maxBytes;
+	private final long fillBytes;
+	// read without the lock to skip the scheduler on connections without channels
+	private volatile long pendingBytes;
+	private boolean closed;
+
+	ChannelScheduler(TCPConnection pConnection, ConnectionOptions pOptions) {
+		connection = pConnection;
+		options = pOptions;
+		maxBytes = pOptions.getSendQueueMaxBytes();
+		fillBytes = (long) FILL_FRAGMENTS * pOptions.getChannelFragmentSize();
+	}
+
+	/**
+	 * Returns the channel with the id, creating it on first use.
+	 */
+	LogicalChannel open(int pId) {
+		LogicalChannel ch = channels.get(pId);
+		if (ch == null) {
+			LogicalChannel created = new LogicalChannel(pId, connection, this, options);
+			ch = channels.putIfAbsent(pId, created);
+			if (ch == null) ch = created;
+		}
+		return ch;
+	}
+
+	/**
+	 * @return true if the pending fragments reached the send queue limit
+	 */
+	boolean isFull() {
+		return pendingBytes >= maxBytes;
+	}
+
+	/**
+	 * Waits until the pending fragments are below the send queue limit.
+	 * @param pMayBlock false to fail instead of waiting
+	 * @return false if there is no space or the connection closed
+	 */
+	boolean awaitSpace(boolean pMayBlock) {
+		lock.lock();
+		try {
+			while (pendingBytes >= maxBytes && !closed) {
+				if (!pMayBlock) return false;
+				notFull.await();
+			}
+			return !closed;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues the fragments of a message behind the fragments the channel is already waiting to write.
+	 */
+	void add(LogicalChannel pChannel, List<ByteBuffer> pFragments) {
+		lock.lock();
+		try {
+			if (closed) return;
+			long bytes = pendingBytes;
+			for (ByteBuffer fragment: pFragments) {
+				pChannel.pending.add(fragment);
+				bytes += fragment.limit();
+			}
+			pendingBytes = bytes;
+			if (!pChannel.scheduled) {
+				pChannel.scheduled = true;
+				ready.add(pChannel);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves fragments to the outbound queue, one per channel and turn, until it holds enough to keep the writer busy.
+	 * @param pOut outbound queue of the connection
+	 * @return writability change of the outbound queue
+	 */
+	int fill(OutboundQueue pOut) {
+		if (pendingBytes == 0) return OutboundQueue.UNCHANGED;
+		int change = OutboundQueue.UNCHANGED;
+		lock.lock();
+		try {
+			long bytes = pendingBytes;
+			while (!ready.isEmpty() && pOut.bytes() < fillBytes) {
+				LogicalChannel ch = ready.poll();
+				ByteBuffer fragment = ch.pending.poll();
+				bytes -= fragment.limit();
+				int c = pOut.add(fragment);
+				if (c != OutboundQueue.UNCHANGED) change = c;
+				if (ch.pending.isEmpty()) {
+					ch.scheduled = false;
+				} else {
+					ready.add(ch);
+				}
+			}
+			pendingBytes = bytes;
+			if (bytes < maxBytes) notFull.signalAll();
+			return change;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if no channel is waiting to write a fragment
+	 */
+	boolean isEmpty() {
+		return pendingBytes == 0;
+	}
+
+	/**
+	 * Drops the pending fragments and wakes up waiting senders.
+	 * @return the channels of the connection
+	 */
+	List<LogicalChannel> close() {
+		lock.lock();
+		try {
+			closed = true;
+			for (LogicalChannel ch: ready) {
+				for (ByteBuffer fragment: ch.pending) {
+					ConnectionManager.BUFFERS.release(fragment);
+				}
+				ch.pending.clear();
+				ch.scheduled = false;
+			}
+			ready.clear();
+			pendingBytes = 0;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		return new ArrayList<LogicalChannel>(channels.values());
+	}
+}
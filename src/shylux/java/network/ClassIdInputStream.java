@@ -0,0 +1,52 @@
+package shylux.java.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * Object stream reading what a ClassIdOutputStream wrote.
+ * Registered classes are taken from the registry instead of being resolved by name.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class ClassIdInputStream extends ObjectInputStream {
+	private final ClassRegistry registry;
+
+	/**
+	 * @param pIn underlying stream
+	 * @param pRegistry registered classes, null to read descriptors as usual without marker
+	 * @throws IOException if the stream header cannot be read
+	 */
+	ClassIdInputStream(InputStream pIn, ClassRegistry pRegistry) throws IOException {
+		super(pIn);
+		registry = pRegistry;
+	}
+
+	@Override
+	protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+		if (registry == null) return super.readClassDescriptor();
+		int marker = read();
+		switch (marker) {
+		case ClassIdOutputStream.DESCRIPTOR:
+			return super.readClassDescriptor();
+		case ClassIdOutputStream.CLASS_ID:
+			int id = readUnsignedShort();
+			ObjectStreamClass desc = registry.getDescriptor(id);
+			if (desc == null) throw new ClassNotFoundException("No class registered with id "+id);
+			return desc;
+		default:
+			throw new IOException("Invalid class descriptor marker: "+marker);
+		}
+	}
+
+	@Override
+	protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+		if (registry != null) {
+			Class<?> c = registry.forName(desc.getName());
+			if (c != null) return c;
+		}
+		return super.resolveClass(desc);
+	}
+}
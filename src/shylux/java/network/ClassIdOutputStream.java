@@ -0,0 +1,45 @@
+package shylux.java.network;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+
+/**
+ * Object stream writing the id of registered classes instead of their class descriptor.
+ * Every descriptor starts with a marker byte, so it has to be read by a ClassIdInputStream.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class ClassIdOutputStream extends ObjectOutputStream {
+	static final int DESCRIPTOR = 0;
+	static final int CLASS_ID = 1;
+
+	private final ClassRegistry registry;
+
+	/**
+	 * @param pOut underlying stream
+	 * @param pRegistry registered classes, null to write descriptors as usual without marker
+	 * @throws IOException if the stream header cannot be written
+	 */
+	ClassIdOutputStream(OutputStream pOut, ClassRegistry pRegistry) throws IOException {
+		super(pOut);
+		registry = pRegistry;
+	}
+
+	@Override
+	protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+		if (registry == null) {
+			super.writeClassDescriptor(desc);
+			return;
+		}
+		int id = desc.forClass() == null ? -1 : registry.getId(desc.forClass());
+		if (id < 0) {
+			write(DESCRIPTOR);
+			super.writeClassDescriptor(desc);
+		} else {
+			write(CLASS_ID);
+			writeShort(id);
+		}
+	}
+}
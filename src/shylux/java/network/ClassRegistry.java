@@ -0,0 +1,107 @@
+package shylux.java.network;
+
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Message classes known to both peers ahead of time, by a short id.
+ * Codecs write the id instead of the class descriptor or class name and look classes up in a table
+ * instead of resolving them by name.
+ *
+ * Both peers have to register the same classes under the same ids, with the same class versions,
+ * before their connections are created. Classes which are not registered are sent as usual.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class ClassRegistry {
+	/** Highest possible id, ids are written as unsigned short. */
+	public static final int MAX_ID = 0xFFFF;
+
+	// copied on write, lookups by id do not lock
+	private volatile Class<?>[] classes = new Class<?>[0];
+	private volatile ObjectStreamClass[] descriptors = new ObjectStreamClass[0];
+	private final ConcurrentHashMap<Class<?>, Integer> ids = new ConcurrentHashMap<Class<?>, Integer>();
+	private final ConcurrentHashMap<String, Class<?>> names = new ConcurrentHashMap<String, Class<?>>();
+
+	/**
+	 * Registers a class under the next free id.
+	 * Both peers have to register in the same order.
+	 * @param pClass serializable message class
+	 * @return the id of the class
+	 */
+	public synchronized int register(Class<? extends Serializable> pClass) {
+		Integer id = ids.get(pClass);
+		if (id != null) return id;
+		int next = 0;
+		while (next < classes.length && classes[next] != null) next++;
+		register(next, pClass);
+		return next;
+	}
+
+	/**
+	 * Registers a class under a fixed id.
+	 * @param pId id between 0 and MAX_ID
+	 * @param pClass serializable message class
+	 * @throws IllegalArgumentException if the id or the class is already registered
+	 */
+	public synchronized void register(int pId, Class<? extends Serializable> pClass) {
+		if (pId < 0 || pId > MAX_ID) throw new IllegalArgumentException("Id must be between 0 and "+MAX_ID);
+		if (pId < classes.length && classes[pId] != null) throw new IllegalArgumentException("Id "+pId+" is already used by "+classes[pId].getName());
+		if (ids.containsKey(pClass)) throw new IllegalArgumentException(pClass.getName()+" is already registered");
+		ObjectStreamClass descriptor = ObjectStreamClass.lookup(pClass);
+		if (descriptor == null) throw new IllegalArgumentException(pClass.getName()+" is not serializable");
+
+		Class<?>[] c = Arrays.copyOf(classes, Math.max(classes.length, pId + 1));
+		ObjectStreamClass[] d = Arrays.copyOf(descriptors, c.length);
+		c[pId] = pClass;
+		d[pId] = descriptor;
+		descriptors = d;
+		classes = c;
+		ids.put(pClass, pId);
+		names.put(pClass.getName(), pClass);
+	}
+
+	/**
+	 * @param pClass a class
+	 * @return id of the class or -1 if it is not registered
+	 */
+	public int getId(Class<?> pClass) {
+		Integer id = ids.get(pClass);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param pId an id
+	 * @return class registered under the id or null
+	 */
+	public Class<?> getRegisteredClass(int pId) {
+		Class<?>[] c = classes;
+		return pId >= 0 && pId < c.length ? c[pId] : null;
+	}
+
+	/**
+	 * @param pId an id
+	 * @return local class descriptor of the class registered under the id or null
+	 */
+	ObjectStreamClass getDescriptor(int pId) {
+		ObjectStreamClass[] d = descriptors;
+		return pId >= 0 && pId < d.length ? d[pId] : null;
+	}
+
+	/**
+	 * @param pName class name
+	 * @return registered class with this name or null
+	 */
+	Class<?> forName(String pName) {
+		return names.get(pName);
+	}
+
+	/**
+	 * @return true if no class is registered
+	 */
+	public boolean isEmpty() {
+		return ids.isEmpty();
+	}
+}
@@ -0,0 +1,98 @@
+package shylux.java.network;
+
+/**
+ * Counters of the frame compression of a connection, to decide whether compression pays off on a link.
+ * Every counter is written by a single thread, readers see a recent value.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class CompressionStats {
+	volatile long framesCompressed;
+	volatile long framesSkipped;
+	volatile long bytesBeforeCompression;
+	volatile long bytesAfterCompression;
+	volatile long compressNanos;
+	volatile long framesInflated;
+	volatile long bytesBeforeInflation;
+	volatile long bytesAfterInflation;
+	volatile long inflateNanos;
+
+	/**
+	 * @return number of sent frames which were compressed
+	 */
+	public long getFramesCompressed() {
+		return framesCompressed;
+	}
+
+	/**
+	 * @return number of frames above the threshold sent uncompressed because they did not get smaller
+	 */
+	public long getFramesSkipped() {
+		return framesSkipped;
+	}
+
+	/**
+	 * @return payload bytes of the compressed frames before compression
+	 */
+	public long getBytesBeforeCompression() {
+		return bytesBeforeCompression;
+	}
+
+	/**
+	 * @return payload bytes of the compressed frames after compression
+	 */
+	public long getBytesAfterCompression() {
+		return bytesAfterCompression;
+	}
+
+	/**
+	 * Includes the time spent on frames which were skipped.
+	 * @return nanoseconds spent compressing
+	 */
+	public long getCompressNanos() {
+		return compressNanos;
+	}
+
+	/**
+	 * @return number of received frames which were decompressed
+	 */
+	public long getFramesInflated() {
+		return framesInflated;
+	}
+
+	/**
+	 * @return payload bytes of the received compressed frames
+	 */
+	public long getBytesBeforeInflation() {
+		return bytesBeforeInflation;
+	}
+
+	/**
+	 * @return payload bytes of the received compressed frames after decompression
+	 */
+	public long getBytesAfterInflation() {
+		return bytesAfterInflation;
+	}
+
+	/**
+	 * @return nanoseconds spent decompressing
+	 */
+	public long getInflateNanos() {
+		return inflateNanos;
+	}
+
+	/**
+	 * @return compressed size divided by the original size of the sent frames, 1 if nothing was compressed
+	 */
+	public double getCompressionRatio() {
+		long before = bytesBeforeCompression;
+		return before == 0 ? 1 : (double) bytesAfterCompression / before;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("compressed %d frames %d -> %d bytes (ratio %.2f, %d ms), skipped %d, inflated %d frames %d -> %d bytes (%d ms)",
+				framesCompressed, bytesBeforeCompression, bytesAfterCompression, getCompressionRatio(), compressNanos / 1000000,
+				framesSkipped, framesInflated, bytesBeforeInflation, bytesAfterInflation, inflateNanos / 1000000);
+	}
+}
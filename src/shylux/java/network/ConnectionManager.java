@@ -1,21 +1,38 @@
 package shylux.java.network;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.NetworkInterface;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.net.InterfaceAddress;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /** 
  * The ConnectionManager starts a server on a specific port.
@@ -32,20 +49,44 @@ public class ConnectionManager {
 	
 	public static final UUID ID = UUID.randomUUID();
 	
+	/** Shared timer for periodic tasks of managers and pools. */
+	static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread th = new Thread(r, "ConnectionManager-Timer");
+			th.setDaemon(true);
+			return th;
+		}
+	});
+	
+	/** Shared pool of the direct buffers for frames and datagrams. */
+	static final BufferPool BUFFERS = new BufferPool(256);
+	
+	/** Shared timer for the timeouts of requests and connections, one tick is 10 ms. */
+	static final HashedTimingWheel WHEEL = new HashedTimingWheel("ConnectionManager-Wheel", 10, 512);
+	
 	static {
 		LOG.setLevel(Level.INFO);
 		LOG.setUseParentHandlers(false);
 		// set default level to all 
 		LOG.addHandler(STD_LOG_HANDLER);
 		STD_LOG_HANDLER.setLevel(Level.ALL);
+		TIMER.setRemoveOnCancelPolicy(true);
 	}
 	
 	
 	private int portNumber;
+	private ConnectionOptions options;
 	TCPListener tcplistener;
 	UDPListener udplistener;
+	NIOEventLoopGroup niogroup;
 	private Thread tcpthread;
 	private Thread udpthread;
+	private ObjectName mbeanName;
+	private ScheduledFuture<?> metricsReport;
+	private IOException bindException;
+	private CompletableFuture<Boolean> shutdown;
+	/** Time the threads get to exit after their sockets were closed. */
+	private static final long THREAD_EXIT_MILLIS = 1000;
 
 	/**
 	 * Creates server and listens on the port.
@@ -53,23 +94,38 @@ public class ConnectionManager {
 	 */
 	private class TCPListener implements Runnable {
 		ServerSocket serverSocket;
+		
+		/**
+		 * Binds the server socket, so a port clash is reported to the constructor of the manager.
+		 * @throws IOException if the port could not be bound
+		 */
+		TCPListener() throws IOException {
+			// backed by a channel, so accepted connections can send files with transferTo
+			serverSocket = ServerSocketChannel.open().socket();
+			try {
+				serverSocket.bind(new InetSocketAddress(portNumber));
+			} catch (IOException e) {
+				serverSocket.close();
+				throw e;
+			}
+			portNumber = serverSocket.getLocalPort();
+		}
+		
 		public void run() {
 			try {
-				serverSocket = new ServerSocket(portNumber);
-				
 				LOG.info("Starting TCP server on port "+portNumber);
 				while (true) {
 					LOG.fine("Waiting for connection...");
 					Socket clientSocket = serverSocket.accept();
 					LOG.fine(String.format("New connection from %s:%d", clientSocket.getInetAddress().toString(), clientSocket.getPort()));
-					TCPConnection conn = new TCPConnection(clientSocket);
-					// notify listener
-					for (INetworkListener nl: listener) {
-						nl.onConnection(conn);
-					}
+					options.getMetrics().connectionAccepted();
+					TCPConnection conn = new TCPConnection(clientSocket, options, true);
+					// notify before reading, so the listener can attach itself without missing a message
+					fireConnection(conn);
+					conn.startReader();
 				}
 			} catch (IOException e) {
-				if (!e.getMessage().equals("socket closed"))
+				if (!serverSocket.isClosed())
 					LOG.warning(e.getMessage());;
 			} finally {
 				LOG.info("Shutting down TCP Server...");
@@ -80,37 +136,83 @@ public class ConnectionManager {
 		}
 	}
 	
-	//TODO javadoc
+	/**
+	 * Receives datagrams into one reusable direct buffer and notifies the attached listeners.
+	 * Datagrams sent by this manager, recognised by the id in front of the payload, are ignored.
+	 * Datagrams without id or larger than the max datagram size are dropped.
+	 */
 	private class UDPListener implements Runnable {
-		DatagramSocket datagramSocket;
+		DatagramChannel datagramChannel;
+		
+		/**
+		 * Binds the datagram channel on the port of the manager.
+		 * @throws IOException if the port could not be bound
+		 */
+		UDPListener() throws IOException {
+			datagramChannel = DatagramChannel.open();
+			try {
+				datagramChannel.socket().setReuseAddress(true);
+				datagramChannel.bind(new InetSocketAddress(portNumber));
+			} catch (IOException e) {
+				datagramChannel.close();
+				throw e;
+			}
+			portNumber = datagramChannel.socket().getLocalPort();
+		}
+		
 		public void run() {
 			try {
-				datagramSocket = new DatagramSocket(portNumber);
+				int maxSize = options.getMaxDatagramSize();
+				// one byte more to recognise datagrams which were truncated
+				ByteBuffer buffer = ByteBuffer.allocateDirect(maxSize + 1);
+				NetworkMetrics metrics = options.getMetrics();
 			
 				LOG.info("Starting UDP server on port "+portNumber);
 				while (true) {
-					byte[] receiveData = new byte[MAX_UDP_MSG_SIZE];
-					DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-					datagramSocket.receive(receivePacket);
+					buffer.clear();
+					InetSocketAddress sender = (InetSocketAddress) datagramChannel.receive(buffer);
+					buffer.flip();
+					metrics.udpPacketReceived();
+					if (buffer.remaining() < UDPMessage.HEADER_SIZE || buffer.remaining() > maxSize) {
+						LOG.fine("Dropping datagram of "+buffer.remaining()+" bytes from: "+sender);
+						metrics.udpPacketDropped();
+						continue;
+					}
 					// ignore packets from yourself
-					String message = new String(receivePacket.getData()).trim();
-
-					LOG.fine("Got udp message: "+message+", from: "+receivePacket.getSocketAddress());
-					if (message.startsWith(ID.toString())) continue;
-					
-					UDPMessage msg = new UDPMessage(receivePacket);
+					if (buffer.getLong(0) == ID.getMostSignificantBits() && buffer.getLong(8) == ID.getLeastSignificantBits()) continue;
 					
-					for (INetworkListener nl: listener) {
-						nl.onUDPMessage(msg);
+					if (LOG.isLoggable(Level.FINE)) LOG.fine("Got udp message of "+buffer.remaining()+" bytes from: "+sender);
+					if (dispatcher == null) {
+						// the message is a view on the buffer, it is valid until the listeners return
+						UDPMessage msg = new UDPMessage(buffer, sender);
+						for (INetworkListener nl: listener) {
+							nl.onUDPMessage(msg);
+						}
+					} else {
+						// the buffer is reused for the next datagram
+						ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+						copy.put(buffer).flip();
+						final UDPMessage msg = new UDPMessage(copy, sender);
+						dispatch(new Runnable() {
+							public void run() {
+								for (INetworkListener nl: listener) {
+									nl.onUDPMessage(msg);
+								}
+							}
+						});
 					}
 				}
 			} catch (SocketException e) {
 				// normal close
+			} catch (ClosedChannelException e) {
+				// normal close
 			} catch (IOException e) {
 				e.printStackTrace();
 			} finally {
 				LOG.info("Shutting down UDP Server...");
-				datagramSocket.close();
+				try {
+					datagramChannel.close();
+				} catch (IOException e) {}
 			}
 
 		}
@@ -128,43 +230,316 @@ public class ConnectionManager {
 	 * @param pPortNumber port on which the server should listen
 	 */
 	public ConnectionManager(int pPortNumber, boolean useTCP, boolean useUDP) {
+		this(pPortNumber, new ConnectionOptions().setUseTCP(useTCP).setUseUDP(useUDP));
+	}
+	/**
+	 * Starts ConnectionManager on a different port with the given options.
+	 * With the non-blocking engine a few event loop threads accept and serve all connections
+	 * instead of one thread per connection.
+	 * The sockets are bound before the constructor returns, so clients can connect right away.
+	 * If a port could not be bound the manager does not listen at all, see {@link #getBindException()}.
+	 * @param pPortNumber port on which the server should listen, 0 for an ephemeral port
+	 * @param pOptions settings of the manager, only read during construction
+	 */
+	public ConnectionManager(int pPortNumber, ConnectionOptions pOptions) {
 		portNumber = pPortNumber;
+		options = pOptions;
+		registry = new ConnectionRegistry(pOptions);
+		dispatcher = pOptions.getDispatchExecutor() == null ? null : new SerialExecutor(pOptions.getDispatchExecutor());
+		boolean useTCP = pOptions.isUseTCP();
+		boolean useUDP = pOptions.isUseUDP();
 		
-		if (useTCP) {
-			tcplistener = new TCPListener();
-			tcpthread = new Thread(tcplistener);
-			tcpthread.setName("ConnectionManager-TCPListener");
-			tcpthread.start();
+		if (pOptions.isUseNIO()) {
+			try {
+				niogroup = new NIOEventLoopGroup(this, pOptions);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not open selector", e);
+			}
 		}
+		try {
+			bind(useTCP, useUDP);
+		} catch (IOException e) {
+			LOG.warning("Could not bind port "+pPortNumber+": "+e.getMessage());
+			bindException = e;
+		}
+		registerMetrics();
 		
-		if (useUDP) {
-			udplistener = new UDPListener();
-			udpthread = new Thread(udplistener);
-			udpthread.setName("ConnectionManager-UDPListener");
-			udpthread.start();
+		if (bindException == null) {
+			if (tcplistener != null) {
+				tcpthread = options.newThread(tcplistener, "ConnectionManager-TCPListener");
+				tcpthread.start();
+			}
+			if (udplistener != null) {
+				udpthread = options.newThread(udplistener, "ConnectionManager-UDPListener");
+				udpthread.start();
+			}
 		}
 	}
 	
+	/**
+	 * Binds the TCP server socket and the UDP channel.
+	 * UDP uses the port TCP got bound to, so with port 0 both listen on the same ephemeral port.
+	 * If one of them fails the other is released again.
+	 * @param pUseTCP listen for connections
+	 * @param pUseUDP listen for datagrams
+	 * @throws IOException if a port could not be bound
+	 */
+	private void bind(boolean pUseTCP, boolean pUseUDP) throws IOException {
+		if (pUseTCP) {
+			if (niogroup != null) {
+				portNumber = niogroup.bind(portNumber);
+			} else {
+				tcplistener = new TCPListener();
+			}
+		}
+		if (pUseUDP) {
+			try {
+				udplistener = new UDPListener();
+			} catch (IOException e) {
+				if (niogroup != null) niogroup.unbind();
+				if (tcplistener != null) tcplistener.serverSocket.close();
+				tcplistener = null;
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Starts a ConnectionManager and fails fast if its port is already in use.
+	 * Unlike the constructor, which only logs a bind failure, the manager is stopped and the failure thrown.
+	 * @param pPortNumber port on which the server should listen, 0 for an ephemeral port
+	 * @param pOptions settings of the manager
+	 * @return the listening manager, {@link #getPort()} returns the bound port
+	 * @throws IOException if a port could not be bound
+	 */
+	public static ConnectionManager start(int pPortNumber, ConnectionOptions pOptions) throws IOException {
+		ConnectionManager manager = new ConnectionManager(pPortNumber, pOptions);
+		if (manager.bindException != null) {
+			manager.stop();
+			throw manager.bindException;
+		}
+		return manager;
+	}
+	
 	public ConnectionManager(boolean useTCP, boolean useUDP) {
 		this(DEFAULT_PORT, useTCP, useUDP);
 	}
 	
 	/**
-	 * Stops the Manager.
-	 * By closing the socket, the thread will receive an exception and terminate itself.
+	 * Registers the metrics MBean and starts reporting to the metrics sink, as configured in the options.
 	 */
-	public synchronized void stop() {
-		//TODO read why stop is deprecated http://docs.oracle.com/javase/1.5.0/docs/guide/misc/threadPrimitiveDeprecation.html
-		if (udplistener != null) {
-			udplistener.datagramSocket.close();
-			udpthread.stop();
+	private void registerMetrics() {
+		if (options.isJmxEnabled()) {
+			try {
+				ObjectName name = new ObjectName("shylux.java.network:type=ConnectionManager,port="+portNumber);
+				ManagementFactory.getPlatformMBeanServer().registerMBean(options.getMetrics(), name);
+				mbeanName = name;
+			} catch (JMException e) {
+				LOG.warning("Could not register metrics MBean: "+e.getMessage());
+			}
+		}
+		final IMetricsSink sink = options.getMetricsSink();
+		if (sink != null) {
+			metricsReport = TIMER.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					try {
+						sink.report(options.getMetrics());
+					} catch (RuntimeException e) {
+						// a failing sink must not stop the reports
+						e.printStackTrace();
+					}
+				}
+			}, options.getMetricsInterval(), options.getMetricsInterval(), TimeUnit.MILLISECONDS);
 		}
+	}
+	
+	/**
+	 * Returns the metrics of this manager and all connections created with its options.
+	 * @return metrics of the manager
+	 */
+	public NetworkMetrics getMetrics() {
+		return options.getMetrics();
+	}
+	
+	/**
+	 * Returns the pool of direct buffers shared by all managers and connections, e.g. to enable leak detection.
+	 * @return the buffer pool
+	 */
+	public static BufferPool getBufferPool() {
+		return BUFFERS;
+	}
+	
+	/**
+	 * Returns the settings this manager was created with.
+	 * They are also used for all connections the manager creates.
+	 * @return options of the manager
+	 */
+	public ConnectionOptions getOptions() {
+		return options;
+	}
+	
+	/**
+	 * Returns the port the manager listens on.
+	 * If the manager was started on port 0 this is the ephemeral port chosen by the system.
+	 * @return port the manager listens on
+	 */
+	public int getPort() {
+		return portNumber;
+	}
+	
+	/**
+	 * @return the failure binding the port, or null if the manager is listening
+	 */
+	public IOException getBindException() {
+		return bindException;
+	}
+	
+	/**
+	 * Registers a message class, so it is sent by a short id instead of its class descriptor.
+	 * Both peers have to register the same classes in the same order before connecting.
+	 * @param pClass serializable message class
+	 * @return the id of the class
+	 */
+	public int registerClass(Class<? extends Serializable> pClass) {
+		return options.getClassRegistry().register(pClass);
+	}
+	
+	/**
+	 * Stops the Manager immediately.
+	 * Stops listening and closes all connections without waiting for queued messages.
+	 * Returns once the threads of the manager exited, the port is free again.
+	 */
+	public void stop() {
 		try {
-			if (tcplistener != null) {
+			shutdown(Duration.ZERO).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Stops the manager gracefully, for example during a rolling deploy.
+	 * The manager stops accepting connections and datagrams at once. The accepted connections write their queued
+	 * messages, close their sending side and are closed when the remote host closed its side as well.
+	 * Remote hosts thus receive every message sent before the shutdown, followed by onClose.
+	 * After the timeout the remaining connections are closed without waiting.
+	 * Calling it again returns the future of the first call.
+	 * @param pTimeout time to drain and close the connections
+	 * @return completes when all threads of the manager exited, with false if the timeout forced connections closed
+	 */
+	public synchronized CompletableFuture<Boolean> shutdown(Duration pTimeout) {
+		if (shutdown != null) return shutdown;
+		final long deadline = System.nanoTime() + pTimeout.toNanos();
+		shutdown = new CompletableFuture<Boolean>();
+		stopListening();
+		Thread th = new Thread(new Runnable() {
+			public void run() {
+				try {
+					shutdown.complete(closeConnections(deadline));
+				} catch (InterruptedException e) {
+					shutdown.completeExceptionally(e);
+				} catch (RuntimeException e) {
+					shutdown.completeExceptionally(e);
+				}
+			}
+		}, "ConnectionManager-Shutdown");
+		th.setDaemon(true);
+		th.start();
+		return shutdown;
+	}
+	
+	/**
+	 * Stops accepting connections and datagrams and stops the reports of the manager.
+	 */
+	private void stopListening() {
+		if (metricsReport != null) {
+			metricsReport.cancel(false);
+			metricsReport = null;
+		}
+		if (mbeanName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+			} catch (JMException e) {
+				LOG.warning("Could not unregister metrics MBean: "+e.getMessage());
+			}
+			mbeanName = null;
+		}
+		if (niogroup != null) {
+			// the loops keep serving the connections until they are drained
+			niogroup.unbind();
+		}
+		if (tcplistener != null) {
+			try {
 				tcplistener.serverSocket.close();
-				tcpthread.stop();
+			} catch (IOException e) {e.printStackTrace();}
+		}
+		if (udplistener != null) {
+			try {
+				udplistener.datagramChannel.close();
+			} catch (IOException e) {e.printStackTrace();}
+		}
+		if (broadcastSender != null) {
+			try {
+				broadcastSender.close();
+			} catch (IOException e) {e.printStackTrace();}
+			broadcastSender = null;
+		}
+	}
+	
+	/**
+	 * Drains and closes the accepted connections, then waits for all threads to exit.
+	 * First every connection is drained and half closed, then the remote hosts are awaited,
+	 * so the round trips of all connections overlap.
+	 * @param pDeadline System.nanoTime() after which connections are closed without waiting
+	 * @return false if the deadline forced connections closed or a thread did not exit
+	 * @throws InterruptedException if the shutdown thread was interrupted
+	 */
+	private boolean closeConnections(long pDeadline) throws InterruptedException {
+		boolean graceful = true;
+		List<TCPConnection> connections = new ArrayList<TCPConnection>(registry.getConnections());
+		for (TCPConnection conn: connections) {
+			conn.scheduleFlush();
+		}
+		for (TCPConnection conn: connections) {
+			graceful &= conn.shutdownOutput(pDeadline);
+		}
+		for (TCPConnection conn: connections) {
+			graceful &= conn.awaitClose(pDeadline);
+		}
+		synchronized (this) {
+			if (pool != null) {
+				pool.close();
+				pool = null;
 			}
-		} catch (IOException e) {e.printStackTrace();}		
+		}
+		if (niogroup != null) niogroup.close();
+		
+		// closed sockets end the threads right away, a forced shutdown gives them a moment
+		long threadDeadline = Math.max(pDeadline, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(THREAD_EXIT_MILLIS));
+		boolean terminated = join(tcpthread, threadDeadline) && join(udpthread, threadDeadline);
+		if (niogroup != null) terminated &= niogroup.awaitTermination(threadDeadline);
+		for (TCPConnection conn: connections) {
+			terminated &= conn.awaitThreads(threadDeadline);
+		}
+		if (!terminated) LOG.warning("Threads of the manager did not exit in time");
+		return graceful && terminated;
+	}
+	
+	/**
+	 * Waits for a thread to exit.
+	 * A thread never waits for itself, e.g. if the manager is stopped by one of its listeners.
+	 * @param pThread thread to wait for, may be null
+	 * @param pDeadlineNanos System.nanoTime() at which to give up
+	 * @return false if the thread is still running
+	 * @throws InterruptedException if the waiting thread was interrupted
+	 */
+	static boolean join(Thread pThread, long pDeadlineNanos) throws InterruptedException {
+		if (pThread == null || pThread == Thread.currentThread()) return true;
+		long millis = TimeUnit.NANOSECONDS.toMillis(pDeadlineNanos - System.nanoTime());
+		if (millis > 0) pThread.join(millis);
+		return !pThread.isAlive();
 	}
 	
 	/**
@@ -184,50 +559,199 @@ public class ConnectionManager {
 	 * @throws IOException yea yea networking..
 	 */
 	public static TCPConnection connect(String pHost, int pPortNumber) throws IOException {
+		return connect(pHost, pPortNumber, new ConnectionOptions());
+	}
+	/**
+	 * Connects to remote host on specified port.
+	 * The reader thread of the connection is created by the thread factory of the options.
+	 * @param pHost hostname / ip of the remote host
+	 * @param pPortNumber port number on the remote host
+	 * @param pOptions settings of the connection
+	 * @return the new connection
+	 * @throws IOException yea yea networking..
+	 */
+	public static TCPConnection connect(String pHost, int pPortNumber, ConnectionOptions pOptions) throws IOException {
 		LOG.fine(String.format("Connection to %s:%d", pHost, pPortNumber));
-		Socket clientSocket = new Socket(pHost, pPortNumber);
-		TCPConnection conn = new TCPConnection(clientSocket);
+		InetSocketAddress address = new InetSocketAddress(pHost, pPortNumber);
+		if (address.isUnresolved()) throw new UnknownHostException(pHost);
+		// a blocking channel, so the connection can send files with transferTo
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.connect(address);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		TCPConnection conn = new TCPConnection(channel.socket(), pOptions);
 		
 		return conn;
 	}
+	/**
+	 * Connects to remote host on specified port.
+	 * If the manager runs the non-blocking engine the connection is served by one of its worker loops,
+	 * otherwise it behaves like the static connect with the options of this manager.
+	 * @param pHost hostname / ip of the remote host
+	 * @param pPortNumber port number on the remote host
+	 * @return the new connection
+	 * @throws IOException yea yea networking..
+	 */
+	public TCPConnection open(String pHost, int pPortNumber) throws IOException {
+		if (niogroup == null) return connect(pHost, pPortNumber, options);
+		LOG.fine(String.format("Connection to %s:%d", pHost, pPortNumber));
+		return niogroup.connect(pHost, pPortNumber);
+	}
 	
-	//TODO javadoc
+	/**
+	 * Broadcasts a text to the UDPListener of every manager in the local networks listening on the default port.
+	 * All calls share one BroadcastSender, getBroadcastSender() reaches managers on the port of this manager.
+	 * @param msg text sent as UTF-8
+	 * @throws SocketException if the datagrams cannot be sent
+	 */
 	public static void sendBroadcastUDPMessage(String msg) throws SocketException {
-		byte[] sendData = (ID.toString()+msg).getBytes();
-		
-		DatagramSocket socket = new DatagramSocket();
-		socket.setBroadcast(true);
-		
-		// try 255.255.255.255 first
-		try {
-			DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, InetAddress.getByName("255.255.255.255"), DEFAULT_PORT);
-			socket.send(sendPacket);
-		} catch (Exception e) {}
-		
+		sendBroadcastUDPMessage(msg.getBytes(Charset.forName("UTF-8")));
+	}
+	/**
+	 * Broadcasts a binary payload to the UDPListener of every manager in the local networks listening on the default port.
+	 * The payload is sent after the 16 byte id of this process, so it must fit into the
+	 * max datagram size of the receivers minus 16 bytes.
+	 * @param pPayload payload of the datagram
+	 * @throws SocketException if the datagrams cannot be sent
+	 */
+	public static void sendBroadcastUDPMessage(byte[] pPayload) throws SocketException {
 		try {
-			Enumeration interfaces = NetworkInterface.getNetworkInterfaces();
-			while (interfaces.hasMoreElements()) {
-				NetworkInterface networkInterface = (NetworkInterface) interfaces.nextElement();
-				if (networkInterface.isLoopback() || !networkInterface.isUp()) continue;
-				for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
-					InetAddress broadcast = interfaceAddress.getBroadcast();
-					if (broadcast == null) continue;
-					LOG.fine("sending broadcast: "+broadcast);
-					DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, broadcast, DEFAULT_PORT);
-					socket.send(sendPacket);
-				}
-			}
-		} catch (IOException e) {}
+			defaultSender().send(pPayload);
+		} catch (SocketException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new SocketException(e.getMessage());
+		}
+	}
+	
+	private static BroadcastSender defaultSender;
+	
+	private static synchronized BroadcastSender defaultSender() throws IOException {
+		if (defaultSender == null) defaultSender = new BroadcastSender(DEFAULT_PORT);
+		return defaultSender;
+	}
+	
+	private BroadcastSender broadcastSender;
+	private ConnectionPool pool;
+	private final ConnectionRegistry registry;
+	
+	/**
+	 * Returns the accepted connections which are still open.
+	 * @return live, unmodifiable view on the connections
+	 */
+	public Set<TCPConnection> getConnections() {
+		return registry.getConnections();
+	}
+	
+	/**
+	 * Sends a message to every accepted connection which is still open.
+	 * The message is encoded once and the same bytes are queued on all connections,
+	 * instead of encoding it per connection like sendMessage does.
+	 * Like sendAsync it returns without waiting for the network, the overflow policy of each connection applies.
+	 * @param pObj message
+	 * @return number of connections the message was queued on
+	 * @throws IOException if the message cannot be encoded
+	 */
+	public int broadcast(Serializable pObj) throws IOException {
+		return registry.publish(registry.getConnections(), pObj);
+	}
+	
+	/**
+	 * Sends a message to every member of a group, encoding it only once.
+	 * @param pGroup name of the group
+	 * @param pObj message
+	 * @return number of connections the message was queued on
+	 * @throws IOException if the message cannot be encoded
+	 * @see #broadcast(Serializable)
+	 */
+	public int publish(String pGroup, Serializable pObj) throws IOException {
+		return registry.publish(registry.getMembers(pGroup), pObj);
+	}
+	
+	/**
+	 * Adds a connection to a group. It leaves all groups when it closes.
+	 * Connections opened by this host may join as well, they are registered with the manager until they close.
+	 * @param pGroup name of the group, created on first use
+	 * @param pConn connection joining the group
+	 */
+	public void join(String pGroup, TCPConnection pConn) {
+		registry.join(pGroup, pConn);
+	}
+	
+	/**
+	 * @param pGroup name of the group
+	 * @param pConn connection leaving the group
+	 */
+	public void leave(String pGroup, TCPConnection pConn) {
+		registry.leave(pGroup, pConn);
+	}
+	
+	/**
+	 * @param pGroup name of the group
+	 * @return live, unmodifiable view on the members of the group
+	 */
+	public Set<TCPConnection> getGroup(String pGroup) {
+		return registry.getMembers(pGroup);
+	}
+	
+	/**
+	 * Returns the pool of connections opened with this manager and its options.
+	 * Created on first use and closed when the manager stops.
+	 * @return the connection pool of this manager
+	 */
+	public synchronized ConnectionPool getConnectionPool() {
+		if (pool == null) pool = new ConnectionPool(this);
+		return pool;
+	}
+	
+	/**
+	 * Returns the sender broadcasting to the managers listening on the port of this manager.
+	 * Created on first use and closed when the manager stops.
+	 * @return the broadcast sender of this manager
+	 * @throws IOException if the channel cannot be opened
+	 */
+	public synchronized BroadcastSender getBroadcastSender() throws IOException {
+		if (broadcastSender == null) broadcastSender = new BroadcastSender(portNumber);
+		return broadcastSender;
 	}
 
 	/* LISTENER */
-	List<INetworkListener> listener = new ArrayList<INetworkListener>();
+	// copy on write, so listener can be changed while a notification is running
+	List<INetworkListener> listener = new CopyOnWriteArrayList<INetworkListener>();
+	// runs the udp notifications in order, null to notify on the listener thread
+	private final Executor dispatcher;
+	
+	/**
+	 * Runs a notification on the dispatch executor of the options or directly if there is none.
+	 * @param pTask notification
+	 */
+	private void dispatch(Runnable pTask) {
+		if (dispatcher == null) {
+			pTask.run();
+		} else {
+			dispatcher.execute(pTask);
+		}
+	}
+	
+	/**
+	 * Notifies all listener about a new connection.
+	 * @param pConn the new connection
+	 */
+	void fireConnection(TCPConnection pConn) {
+		registry.add(pConn);
+		for (INetworkListener nl: listener) {
+			nl.onConnection(pConn);
+		}
+	}
 	
 	/**
 	 * Adds connection listener. All listener are notified if a new connection established.
 	 * @param pNet connection listener
 	 */
-	public synchronized void addNetworkListener(INetworkListener pNet) {
+	public void addNetworkListener(INetworkListener pNet) {
 		LOG.finer("Added network listener.");
 		listener.add(pNet);
 	}
@@ -235,13 +759,13 @@ public class ConnectionManager {
 	 * Removes network listener from list. That listener wont receive notifications anymore.
 	 * @param pNet Listener to remove.
 	 */
-	public synchronized void removeNetworkListener(INetworkListener pNet) {
+	public void removeNetworkListener(INetworkListener pNet) {
 		listener.remove(pNet);
 	}
 	/**
 	 * Clears listener list. Every listener gets removed and wont receive notifications anymore.
 	 */
-	public synchronized void clearNetworkListener() {
+	public void clearNetworkListener() {
 		listener.clear();
 	}
 }
@@ -0,0 +1,88 @@
+package shylux.java.network;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters of one connection. Every update is added to the NetworkMetrics of the connection as well.
+ * The counters are striped, so the threads sending on a connection do not contend on them.
+ * The number of queued messages and bytes is available from the connection itself.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class ConnectionMetrics {
+	private final NetworkMetrics aggregate;
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder messagesOut = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * @param pAggregate metrics of all connections sharing the options
+	 */
+	ConnectionMetrics(NetworkMetrics pAggregate) {
+		aggregate = pAggregate;
+	}
+
+	void messageIn(long pDecodeNanos) {
+		messagesIn.increment();
+		aggregate.messageIn(pDecodeNanos);
+	}
+
+	void messageOut(long pEncodeNanos) {
+		messagesOut.increment();
+		aggregate.messageOut(pEncodeNanos);
+	}
+
+	/**
+	 * Counts a shared message, its encode time is recorded once by the sender.
+	 */
+	void messageOut() {
+		messagesOut.increment();
+		aggregate.messageOut();
+	}
+
+	void bytesIn(long pBytes) {
+		bytesIn.add(pBytes);
+		aggregate.bytesIn(pBytes);
+	}
+
+	void bytesOut(long pBytes) {
+		bytesOut.add(pBytes);
+		aggregate.bytesOut(pBytes);
+	}
+
+	/**
+	 * @return metrics of all connections sharing the options of this connection
+	 */
+	public NetworkMetrics getAggregate() {
+		return aggregate;
+	}
+
+	/**
+	 * @return number of received messages, requests and responses
+	 */
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	/**
+	 * @return number of sent messages, requests and responses
+	 */
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	/**
+	 * @return number of bytes read from the socket, including frame headers and transfers
+	 */
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	/**
+	 * @return number of bytes written to the socket, including frame headers and transfers
+	 */
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+}
@@ -0,0 +1,564 @@
+package shylux.java.network;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+
+/**
+ * Settings of a ConnectionManager and the connections it creates.
+ * Every manager and connection reads its options once on creation, so one options object can be used to configure several of them.
+ * The setters return the options themselves to allow chaining.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class ConnectionOptions {
+	/**
+	 * How new connections are spread over the worker loops of the non-blocking engine,
+	 * and how a ConnectionPool picks one of its connections to a host.
+	 */
+	public enum Balancing {
+		/** Every loop gets the next connection in turn. */
+		ROUND_ROBIN,
+		/** The loop serving the fewest connections gets the next one, the pool picks the connection with the fewest requests and messages in flight. */
+		LEAST_LOADED
+	}
+
+	private boolean useTCP = true;
+	private boolean useUDP = true;
+	private boolean useNIO = false;
+	private int acceptorThreads = 1;
+	private int workerThreads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * What happens to a message sent while the outbound queue of the connection is full.
+	 */
+	public enum OverflowPolicy {
+		/** The sender waits until the queue has space. */
+		BLOCK,
+		/** The oldest queued messages are dropped. Only safe with a codec whose frames do not depend on each other, like BinaryCodec. */
+		DROP_OLDEST,
+		/** The message is rejected, sendAsync returns false. */
+		FAIL_FAST,
+		/** The connection is closed. */
+		DISCONNECT
+	}
+
+	/**
+	 * Compression algorithm for the messages of a connection.
+	 */
+	public enum Compression {
+		/** Messages are sent as encoded by the codec. */
+		NONE,
+		/** Messages are compressed with java.util.zip.Deflater. */
+		DEFLATE
+	}
+
+	private Balancing balancing = Balancing.ROUND_ROBIN;
+	private ThreadFactory threadFactory;
+	private IMessageCodec codec = new SerializationCodec();
+	private ClassRegistry classRegistry = new ClassRegistry();
+	private NetworkMetrics metrics = new NetworkMetrics();
+	private IMetricsSink metricsSink;
+	private long metricsInterval = 60000;
+	private boolean jmxEnabled = true;
+	private int maxDatagramSize = ConnectionManager.MAX_UDP_MSG_SIZE;
+	private int channelFragmentSize = 16 * 1024;
+	private int poolMinConnections = 1;
+	private int poolMaxConnections = 4;
+	private long poolIdleTimeout = 60000;
+	private Balancing poolBalancing = Balancing.LEAST_LOADED;
+	private long poolValidationInterval = 0;
+	private long poolValidationTimeout = 1000;
+	private long sendLinger = 0;
+	private int sendBatchBytes = 64 * 1024;
+	private long sendQueueMaxBytes = Long.MAX_VALUE;
+	private int sendQueueMaxMessages = Integer.MAX_VALUE;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private long lowWatermark = 32 * 1024;
+	private long highWatermark = 64 * 1024;
+	private long requestTimeout = 30000;
+	private long heartbeatInterval = 0;
+	private long readIdleTimeout = 0;
+	private long writeIdleTimeout = 0;
+	private Executor dispatchExecutor;
+	private Compression compression = Compression.NONE;
+	private int compressionThreshold = 1024;
+	private int compressionLevel = Deflater.BEST_SPEED;
+
+	public boolean isUseTCP() {
+		return useTCP;
+	}
+	/**
+	 * @param pUseTCP accept tcp connections
+	 */
+	public ConnectionOptions setUseTCP(boolean pUseTCP) {
+		useTCP = pUseTCP;
+		return this;
+	}
+
+	public boolean isUseUDP() {
+		return useUDP;
+	}
+	/**
+	 * @param pUseUDP listen for udp messages
+	 */
+	public ConnectionOptions setUseUDP(boolean pUseUDP) {
+		useUDP = pUseUDP;
+		return this;
+	}
+
+	public boolean isUseNIO() {
+		return useNIO;
+	}
+	/**
+	 * Uses the non-blocking engine: a few event loop threads serve all connections
+	 * instead of one thread per connection. Listeners are notified on the loop threads.
+	 * @param pUseNIO use the non-blocking engine for tcp connections
+	 */
+	public ConnectionOptions setUseNIO(boolean pUseNIO) {
+		useNIO = pUseNIO;
+		return this;
+	}
+
+	public int getAcceptorThreads() {
+		return acceptorThreads;
+	}
+	/**
+	 * Only used by the non-blocking engine.
+	 * @param pAcceptorThreads number of loops accepting new connections, at least 1
+	 */
+	public ConnectionOptions setAcceptorThreads(int pAcceptorThreads) {
+		if (pAcceptorThreads < 1) throw new IllegalArgumentException("Need at least one acceptor thread");
+		acceptorThreads = pAcceptorThreads;
+		return this;
+	}
+
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+	/**
+	 * Only used by the non-blocking engine. Defaults to the number of available processors.
+	 * @param pWorkerThreads number of loops serving the connections, at least 1
+	 */
+	public ConnectionOptions setWorkerThreads(int pWorkerThreads) {
+		if (pWorkerThreads < 1) throw new IllegalArgumentException("Need at least one worker thread");
+		workerThreads = pWorkerThreads;
+		return this;
+	}
+
+	public Balancing getBalancing() {
+		return balancing;
+	}
+	/**
+	 * Only used by the non-blocking engine.
+	 * A connection stays on the loop it was assigned to, so its messages are processed in order.
+	 * @param pBalancing how new connections are assigned to worker loops
+	 */
+	public ConnectionOptions setBalancing(Balancing pBalancing) {
+		if (pBalancing == null) throw new IllegalArgumentException("Balancing must not be null");
+		balancing = pBalancing;
+		return this;
+	}
+
+	public int getChannelFragmentSize() {
+		return channelFragmentSize;
+	}
+	/**
+	 * Messages on logical channels are split into fragments of this size, the channels of a connection
+	 * take turns after every fragment. Smaller fragments let short messages overtake large ones sooner. Defaults to 16 KiB.
+	 * @param pBytes maximal data bytes of a fragment
+	 */
+	public ConnectionOptions setChannelFragmentSize(int pBytes) {
+		if (pBytes < 1 || pBytes > TCPConnection.MAX_FRAME_SIZE - LogicalChannel.HEADER_SIZE) throw new IllegalArgumentException("Invalid fragment size: "+pBytes);
+		channelFragmentSize = pBytes;
+		return this;
+	}
+
+	public int getPoolMinConnections() {
+		return poolMinConnections;
+	}
+	public int getPoolMaxConnections() {
+		return poolMaxConnections;
+	}
+	/**
+	 * Connections a ConnectionPool keeps to each host. Defaults to 1 and 4.
+	 * @param pMin connections kept open even when idle
+	 * @param pMax connections opened at most, more are only opened while all have requests in flight
+	 */
+	public ConnectionOptions setPoolSize(int pMin, int pMax) {
+		if (pMin < 0 || pMax < 1 || pMax < pMin) throw new IllegalArgumentException("Need 0 <= min <= max and max >= 1");
+		poolMinConnections = pMin;
+		poolMaxConnections = pMax;
+		return this;
+	}
+
+	public long getPoolIdleTimeout() {
+		return poolIdleTimeout;
+	}
+	/**
+	 * Pooled connections above the minimum are closed when unused for this time. Defaults to 60 seconds.
+	 * @param pMillis idle timeout in milliseconds, 0 to never close idle connections
+	 */
+	public ConnectionOptions setPoolIdleTimeout(long pMillis) {
+		if (pMillis < 0) throw new IllegalArgumentException("Timeout must not be negative");
+		poolIdleTimeout = pMillis;
+		return this;
+	}
+
+	public Balancing getPoolBalancing() {
+		return poolBalancing;
+	}
+	/**
+	 * Defaults to LEAST_LOADED.
+	 * @param pBalancing how a ConnectionPool picks one of its connections to a host
+	 */
+	public ConnectionOptions setPoolBalancing(Balancing pBalancing) {
+		if (pBalancing == null) throw new IllegalArgumentException("Balancing must not be null");
+		poolBalancing = pBalancing;
+		return this;
+	}
+
+	public long getPoolValidationInterval() {
+		return poolValidationInterval;
+	}
+	public long getPoolValidationTimeout() {
+		return poolValidationTimeout;
+	}
+	/**
+	 * A pooled connection is always checked with isClosed() before it is handed out.
+	 * If it was not used for the interval it is pinged as well and dropped if the pong does not arrive in time.
+	 * Disabled by default.
+	 * @param pIntervalMillis unused time after which a connection is pinged, 0 to never ping
+	 * @param pTimeoutMillis time to wait for the pong
+	 */
+	public ConnectionOptions setPoolValidation(long pIntervalMillis, long pTimeoutMillis) {
+		if (pIntervalMillis < 0 || pTimeoutMillis < 1) throw new IllegalArgumentException("Need interval >= 0 and timeout > 0");
+		poolValidationInterval = pIntervalMillis;
+		poolValidationTimeout = pTimeoutMillis;
+		return this;
+	}
+
+	public int getMaxDatagramSize() {
+		return maxDatagramSize;
+	}
+	/**
+	 * Size of the receive buffer of the UDPListener. Longer datagrams are dropped
+	 * and counted in NetworkMetrics.getUdpPacketsDropped().
+	 * Defaults to ConnectionManager.MAX_UDP_MSG_SIZE.
+	 * @param pBytes maximal datagram size including the 16 byte sender id, at most 65507
+	 */
+	public ConnectionOptions setMaxDatagramSize(int pBytes) {
+		if (pBytes < UDPMessage.HEADER_SIZE || pBytes > 65507) throw new IllegalArgumentException("Datagram size must be between 16 and 65507");
+		maxDatagramSize = pBytes;
+		return this;
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+	/**
+	 * Creates the threads of the blocking model: the TCPListener, the UDPListener and the reader of every connection.
+	 * The event loops of the non-blocking engine always run on platform threads.
+	 * Use virtualThreads() to serve many idle connections at a low memory cost.
+	 * @param pThreadFactory factory for new threads, null for ordinary platform threads
+	 */
+	public ConnectionOptions setThreadFactory(ThreadFactory pThreadFactory) {
+		threadFactory = pThreadFactory;
+		return this;
+	}
+
+	public IMessageCodec getCodec() {
+		return codec;
+	}
+	/**
+	 * Both ends of a connection have to use the same codec.
+	 * Defaults to java serialization.
+	 * @param pCodec codec whose newInstance() is used for every connection
+	 */
+	public ConnectionOptions setCodec(IMessageCodec pCodec) {
+		if (pCodec == null) throw new IllegalArgumentException("Codec must not be null");
+		codec = pCodec;
+		return this;
+	}
+
+	public ClassRegistry getClassRegistry() {
+		return classRegistry;
+	}
+	/**
+	 * Classes registered here are sent by id instead of their class descriptor or name.
+	 * Every options object starts with its own empty registry.
+	 * @param pRegistry registry passed to the codec of every connection
+	 */
+	public ConnectionOptions setClassRegistry(ClassRegistry pRegistry) {
+		if (pRegistry == null) throw new IllegalArgumentException("Registry must not be null");
+		classRegistry = pRegistry;
+		return this;
+	}
+
+	public NetworkMetrics getMetrics() {
+		return metrics;
+	}
+	/**
+	 * Metrics shared by the manager and all connections created with these options.
+	 * Every options object starts with its own metrics, pass the same object to aggregate over several managers.
+	 * @param pMetrics metrics updated by the connections
+	 */
+	public ConnectionOptions setMetrics(NetworkMetrics pMetrics) {
+		if (pMetrics == null) throw new IllegalArgumentException("Metrics must not be null");
+		metrics = pMetrics;
+		return this;
+	}
+
+	public IMetricsSink getMetricsSink() {
+		return metricsSink;
+	}
+	public long getMetricsInterval() {
+		return metricsInterval;
+	}
+	/**
+	 * A ConnectionManager reports its metrics to the sink at a fixed rate until it stops. None by default.
+	 * @param pSink receiver of the metrics, null to report nowhere
+	 * @param pIntervalMillis time between two reports in milliseconds
+	 */
+	public ConnectionOptions setMetricsSink(IMetricsSink pSink, long pIntervalMillis) {
+		if (pIntervalMillis < 1) throw new IllegalArgumentException("Interval must be positive");
+		metricsSink = pSink;
+		metricsInterval = pIntervalMillis;
+		return this;
+	}
+
+	public boolean isJmxEnabled() {
+		return jmxEnabled;
+	}
+	/**
+	 * A ConnectionManager registers its metrics with the platform MBean server as
+	 * shylux.java.network:type=ConnectionManager,port=&lt;port&gt; until it stops. Enabled by default.
+	 * @param pJmxEnabled false to skip the registration
+	 */
+	public ConnectionOptions setJmxEnabled(boolean pJmxEnabled) {
+		jmxEnabled = pJmxEnabled;
+		return this;
+	}
+
+	public long getSendLinger() {
+		return sendLinger;
+	}
+	/**
+	 * Time the writer of TCPConnection.sendAsync waits for more messages before it flushes a batch.
+	 * Trades latency for fewer, bigger writes on chatty connections. Defaults to 0.
+	 * The non-blocking engine does not linger, it writes everything queued whenever the socket is writable.
+	 * @param pMillis linger time in milliseconds
+	 */
+	public ConnectionOptions setSendLinger(long pMillis) {
+		if (pMillis < 0) throw new IllegalArgumentException("Linger must not be negative");
+		sendLinger = pMillis;
+		return this;
+	}
+
+	public int getSendBatchBytes() {
+		return sendBatchBytes;
+	}
+	/**
+	 * The writer stops lingering and flushes as soon as this many bytes are queued.
+	 * @param pBytes batch size in bytes
+	 */
+	public ConnectionOptions setSendBatchBytes(int pBytes) {
+		if (pBytes < 1) throw new IllegalArgumentException("Batch size must be positive");
+		sendBatchBytes = pBytes;
+		return this;
+	}
+
+	public long getSendQueueMaxBytes() {
+		return sendQueueMaxBytes;
+	}
+	public int getSendQueueMaxMessages() {
+		return sendQueueMaxMessages;
+	}
+	/**
+	 * Limits the outbound queue of every connection, so a slow receiver cannot fill the heap.
+	 * The queue is full once either limit is reached, the overflow policy decides what happens then.
+	 * Unlimited by default.
+	 * @param pMaxBytes maximum of queued bytes
+	 * @param pMaxMessages maximum of queued messages
+	 */
+	public ConnectionOptions setSendQueueLimit(long pMaxBytes, int pMaxMessages) {
+		if (pMaxBytes < 1 || pMaxMessages < 1) throw new IllegalArgumentException("Limits must be positive");
+		sendQueueMaxBytes = pMaxBytes;
+		sendQueueMaxMessages = pMaxMessages;
+		return this;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	/**
+	 * Defaults to BLOCK. A sender on an event loop thread is never blocked, its message is rejected instead.
+	 * @param pPolicy what happens to a message sent while the queue is full
+	 */
+	public ConnectionOptions setOverflowPolicy(OverflowPolicy pPolicy) {
+		if (pPolicy == null) throw new IllegalArgumentException("Overflow policy must not be null");
+		overflowPolicy = pPolicy;
+		return this;
+	}
+
+	public long getLowWatermark() {
+		return lowWatermark;
+	}
+	public long getHighWatermark() {
+		return highWatermark;
+	}
+	/**
+	 * A connection becomes unwritable when more than pHigh bytes are queued
+	 * and writable again when less than pLow bytes are queued. IWritabilityListener are notified about both.
+	 * Defaults to 32 KiB and 64 KiB.
+	 * @param pLow low watermark in bytes
+	 * @param pHigh high watermark in bytes
+	 */
+	public ConnectionOptions setWatermarks(long pLow, long pHigh) {
+		if (pLow < 0 || pHigh < pLow) throw new IllegalArgumentException("Need 0 <= low <= high");
+		lowWatermark = pLow;
+		highWatermark = pHigh;
+		return this;
+	}
+
+	public long getRequestTimeout() {
+		return requestTimeout;
+	}
+	/**
+	 * Default timeout of TCPConnection.request. Defaults to 30 seconds.
+	 * @param pMillis timeout in milliseconds, 0 to wait forever
+	 */
+	public ConnectionOptions setRequestTimeout(long pMillis) {
+		if (pMillis < 0) throw new IllegalArgumentException("Timeout must not be negative");
+		requestTimeout = pMillis;
+		return this;
+	}
+
+	public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+	/**
+	 * A connection which did not send anything for the interval sends a ping.
+	 * The peer answers with a pong, so both sides see traffic on an otherwise idle link. Disabled by default.
+	 * @param pMillis interval in milliseconds, 0 to disable
+	 */
+	public ConnectionOptions setHeartbeatInterval(long pMillis) {
+		if (pMillis < 0) throw new IllegalArgumentException("Interval must not be negative");
+		heartbeatInterval = pMillis;
+		return this;
+	}
+
+	public long getReadIdleTimeout() {
+		return readIdleTimeout;
+	}
+	public long getWriteIdleTimeout() {
+		return writeIdleTimeout;
+	}
+	/**
+	 * Closes connections which look dead, the listeners are notified with onClose.
+	 * A connection is dead if it did not receive anything for the read timeout, or if queued frames
+	 * could not be written for the write timeout. The read timeout should be a multiple of the heartbeat
+	 * interval of the peer. Idle connections are checked several times per timeout, so a dead connection
+	 * is closed at most a quarter of the timeout late. Disabled by default.
+	 * @param pReadMillis read idle timeout, 0 to disable
+	 * @param pWriteMillis write idle timeout, 0 to disable
+	 */
+	public ConnectionOptions setIdleTimeouts(long pReadMillis, long pWriteMillis) {
+		if (pReadMillis < 0 || pWriteMillis < 0) throw new IllegalArgumentException("Timeouts must not be negative");
+		readIdleTimeout = pReadMillis;
+		writeIdleTimeout = pWriteMillis;
+		return this;
+	}
+
+	public Executor getDispatchExecutor() {
+		return dispatchExecutor;
+	}
+	/**
+	 * Runs IConnectionListener, IRequestHandler and udp notifications on this executor instead of
+	 * the thread reading the socket, so a slow listener does not stall the connection.
+	 * The notifications of one connection still run one after another in order,
+	 * different connections are notified in parallel. New connections are always announced
+	 * on the accepting thread, so a listener can be attached before the first message.
+	 * @param pExecutor executor running the notifications, null to notify on the reading thread
+	 */
+	public ConnectionOptions setDispatchExecutor(Executor pExecutor) {
+		dispatchExecutor = pExecutor;
+		return this;
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	/**
+	 * Compresses messages, requests and responses whose encoded size reaches the threshold.
+	 * Both peers announce their algorithm when the connection is set up, messages are only compressed
+	 * if both use the same one. Frames which do not get smaller are sent uncompressed.
+	 * Defaults to NONE.
+	 * @param pCompression algorithm
+	 * @param pThreshold minimal encoded size in bytes of a message to compress
+	 */
+	public ConnectionOptions setCompression(Compression pCompression, int pThreshold) {
+		if (pCompression == null) throw new IllegalArgumentException("Compression must not be null");
+		if (pThreshold < 0) throw new IllegalArgumentException("Threshold must not be negative");
+		compression = pCompression;
+		compressionThreshold = pThreshold;
+		return this;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	/**
+	 * Defaults to Deflater.BEST_SPEED.
+	 * @param pLevel deflate level from 0 to 9
+	 */
+	public ConnectionOptions setCompressionLevel(int pLevel) {
+		if (pLevel < Deflater.NO_COMPRESSION || pLevel > Deflater.BEST_COMPRESSION) throw new IllegalArgumentException("Level must be between 0 and 9");
+		compressionLevel = pLevel;
+		return this;
+	}
+
+	/**
+	 * Creates a thread using the configured factory.
+	 * @param pTask task of the thread
+	 * @param pName name of the thread
+	 * @return the new, not yet started thread
+	 */
+	Thread newThread(Runnable pTask, String pName) {
+		Thread th = threadFactory == null ? new Thread(pTask) : threadFactory.newThread(pTask);
+		th.setName(pName);
+		return th;
+	}
+
+	/**
+	 * Checks if the runtime supports virtual threads (Java 21 or newer).
+	 * @return true if virtualThreads() can be used
+	 */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a factory for virtual threads.
+	 * Looked up by reflection so the library still runs on older runtimes.
+	 * @return factory creating virtual threads
+	 * @throws UnsupportedOperationException if the runtime has no virtual threads
+	 */
+	public static ThreadFactory virtualThreads() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException("Virtual threads need Java 21 or newer");
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Virtual threads are not available", e);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package shylux.java.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps connections to remote hosts open for reuse, keyed by host and port.
+ * A TCPConnection can be used by many threads at once, so get() does not lend a connection exclusively:
+ * it picks one of the open connections to the host. A new connection is opened while fewer than the
+ * minimum are open or while every connection has requests or messages in flight, up to the maximum.
+ * Connections unused for longer than the idle timeout are closed down to the minimum.
+ *
+ * The pool settings are read from the ConnectionOptions, see setPoolSize and the related setters.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class ConnectionPool implements Closeable {
+	private final ConnectionOptions options;
+	// null to open connections with the static ConnectionManager.connect
+	private final ConnectionManager manager;
+	private final int minConnections;
+	private final int maxConnections;
+	private final long idleNanos;
+	private final long validationNanos;
+	private final long validationTimeout;
+	private final ConnectionOptions.Balancing balancing;
+	private final ConcurrentHashMap<String, HostPool> pools = new ConcurrentHashMap<String, HostPool>();
+	private final ScheduledFuture<?> evictor;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a pool opening blocking connections.
+	 * @param pOptions settings of the pool and its connections
+	 */
+	public ConnectionPool(ConnectionOptions pOptions) {
+		this(pOptions, null);
+	}
+
+	/**
+	 * Creates a pool opening its connections with the manager, so they use its engine and options.
+	 * @param pManager manager opening the connections
+	 */
+	public ConnectionPool(ConnectionManager pManager) {
+		this(pManager.getOptions(), pManager);
+	}
+
+	private ConnectionPool(ConnectionOptions pOptions, ConnectionManager pManager) {
+		options = pOptions;
+		manager = pManager;
+		minConnections = pOptions.getPoolMinConnections();
+		maxConnections = pOptions.getPoolMaxConnections();
+		idleNanos = TimeUnit.MILLISECONDS.toNanos(pOptions.getPoolIdleTimeout());
+		validationNanos = TimeUnit.MILLISECONDS.toNanos(pOptions.getPoolValidationInterval());
+		validationTimeout = pOptions.getPoolValidationTimeout();
+		balancing = pOptions.getPoolBalancing();
+		if (idleNanos > 0) {
+			long period = Math.max(1, pOptions.getPoolIdleTimeout() / 2);
+			evictor = ConnectionManager.TIMER.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					evictIdle(System.nanoTime());
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		} else {
+			evictor = null;
+		}
+	}
+
+	/**
+	 * Returns an open connection to the host, opening one if needed.
+	 * Closed connections are dropped, connections idle for longer than the validation interval are pinged first.
+	 * @param pHost hostname / ip of the remote host
+	 * @param pPort port number on the remote host
+	 * @return a connection to share with other users of the pool, do not close it
+	 * @throws IOException if no connection can be opened or the pool has been closed
+	 */
+	public TCPConnection get(String pHost, int pPort) throws IOException {
+		if (closed) throw new IOException("Pool closed");
+		String key = pHost+":"+pPort;
+		HostPool pool = pools.get(key);
+		if (pool == null) {
+			HostPool created = new HostPool(pHost, pPort);
+			pool = pools.putIfAbsent(key, created);
+			if (pool == null) pool = created;
+		}
+		return pool.get();
+	}
+
+	/**
+	 * Sends a request on a pooled connection.
+	 * @param pHost hostname / ip of the remote host
+	 * @param pPort port number on the remote host
+	 * @param pRequest the request
+	 * @return completes with the response, or exceptionally if no connection could be opened
+	 */
+	public CompletableFuture<Object> request(String pHost, int pPort, Serializable pRequest) {
+		try {
+			return get(pHost, pPort).request(pRequest);
+		} catch (IOException e) {
+			CompletableFuture<Object> failed = new CompletableFuture<Object>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	/**
+	 * @param pHost hostname / ip of the remote host
+	 * @param pPort port number on the remote host
+	 * @return number of open connections to the host
+	 */
+	public int getConnectionCount(String pHost, int pPort) {
+		HostPool pool = pools.get(pHost+":"+pPort);
+		return pool == null ? 0 : pool.entries.size();
+	}
+
+	/**
+	 * Closes the connections unused for longer than the idle timeout, keeping the minimum open.
+	 * @param pNow current System.nanoTime()
+	 */
+	void evictIdle(long pNow) {
+		for (HostPool pool: pools.values()) {
+			for (Entry e: pool.entries) {
+				if (pool.entries.size() <= minConnections) break;
+				if (pNow - e.lastUsed > idleNanos && load(e.conn) == 0 && pool.entries.remove(e)) {
+					ConnectionManager.LOG.fine("Closing idle pooled connection to "+pool.host+":"+pool.port);
+					e.conn.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes all pooled connections.
+	 */
+	public void close() {
+		closed = true;
+		if (evictor != null) evictor.cancel(false);
+		for (HostPool pool: pools.values()) {
+			for (Entry e: pool.entries) {
+				e.conn.close();
+			}
+			pool.entries.clear();
+		}
+		pools.clear();
+	}
+
+	private static int load(TCPConnection pConn) {
+		return pConn.getPendingRequests() + pConn.getQueuedMessages();
+	}
+
+	private static class Entry {
+		final TCPConnection conn;
+		volatile long lastUsed = System.nanoTime();
+
+		Entry(TCPConnection pConn) {
+			conn = pConn;
+		}
+	}
+
+	/**
+	 * The connections to one host.
+	 */
+	private class HostPool {
+		final String host;
+		final int port;
+		// read on every get without locking
+		final CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<Entry>();
+		final AtomicInteger next = new AtomicInteger();
+		// only one thread opens a connection at a time
+		final ReentrantLock openLock = new ReentrantLock();
+
+		HostPool(String pHost, int pPort) {
+			host = pHost;
+			port = pPort;
+		}
+
+		TCPConnection get() throws IOException {
+			while (true) {
+				Entry e = select();
+				if (e == null || entries.size() < minConnections || (load(e.conn) > 0 && entries.size() < maxConnections)) {
+					Entry opened = open();
+					if (opened != null) e = opened;
+				}
+				if (e == null) continue;
+				if (!validate(e)) {
+					if (entries.remove(e)) e.conn.close();
+					continue;
+				}
+				e.lastUsed = System.nanoTime();
+				return e.conn;
+			}
+		}
+
+		private Entry select() {
+			int size = entries.size();
+			if (size == 0) return null;
+			try {
+				if (balancing == ConnectionOptions.Balancing.ROUND_ROBIN) {
+					return entries.get((next.getAndIncrement() & Integer.MAX_VALUE) % size);
+				}
+				Entry best = null;
+				int bestLoad = Integer.MAX_VALUE;
+				for (Entry e: entries) {
+					int l = load(e.conn);
+					if (l < bestLoad) {
+						best = e;
+						bestLoad = l;
+					}
+				}
+				return best;
+			} catch (IndexOutOfBoundsException ex) {
+				// an entry was removed meanwhile
+				return null;
+			}
+		}
+
+		/**
+		 * @return the new connection, or null if the maximum has been reached meanwhile
+		 */
+		private Entry open() throws IOException {
+			openLock.lock();
+			try {
+				if (closed) throw new IOException("Pool closed");
+				if (entries.size() >= maxConnections) return null;
+				TCPConnection conn = manager == null ? ConnectionManager.connect(host, port, options) : manager.open(host, port);
+				final Entry e = new Entry(conn);
+				conn.addConnectionListener(new IConnectionListener() {
+					public void onMessage(Object o) {}
+					public void onClose() {
+						entries.remove(e);
+					}
+				});
+				entries.add(e);
+				ConnectionManager.LOG.fine("Opened pooled connection "+entries.size()+" to "+host+":"+port);
+				return e;
+			} finally {
+				openLock.unlock();
+			}
+		}
+
+		private boolean validate(Entry e) throws IOException {
+			if (e.conn.isClosed()) return false;
+			if (validationNanos == 0 || System.nanoTime() - e.lastUsed <= validationNanos) return true;
+			try {
+				e.conn.ping(validationTimeout).get(validationTimeout, TimeUnit.MILLISECONDS);
+				return true;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while validating");
+			} catch (ExecutionException ex) {
+				ConnectionManager.LOG.fine("Pooled connection to "+host+":"+port+" failed validation: "+ex.getCause());
+				return false;
+			} catch (TimeoutException ex) {
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package shylux.java.network;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Live connections of a manager and the groups they joined.
+ * A message for many connections is encoded once into a shared frame, every connection queues its own
+ * view of the same bytes. Connections are removed when they close, closed connections found while
+ * publishing are removed as well.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class ConnectionRegistry {
+	private final ConnectionOptions options;
+	private final Set<TCPConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<TCPConnection, Boolean>());
+	private final ConcurrentHashMap<String, Set<TCPConnection>> groups = new ConcurrentHashMap<String, Set<TCPConnection>>();
+
+	/**
+	 * @param pOptions options of the manager, their codec encodes the shared frames
+	 */
+	ConnectionRegistry(ConnectionOptions pOptions) {
+		options = pOptions;
+	}
+
+	/**
+	 * Registers a connection until it closes.
+	 * @param pConn new connection, ignored if already registered
+	 */
+	void add(final TCPConnection pConn) {
+		if (!connections.add(pConn)) return;
+		pConn.addConnectionListener(new IConnectionListener() {
+			public void onMessage(Object pMsg) {}
+			public void onClose() {
+				remove(pConn);
+			}
+		});
+	}
+
+	/**
+	 * Removes a connection from the registry and all groups.
+	 * @param pConn closed connection
+	 */
+	void remove(TCPConnection pConn) {
+		connections.remove(pConn);
+		for (Set<TCPConnection> members: groups.values()) {
+			members.remove(pConn);
+		}
+	}
+
+	/**
+	 * @return live view on the registered connections
+	 */
+	Set<TCPConnection> getConnections() {
+		return Collections.unmodifiableSet(connections);
+	}
+
+	/**
+	 * Adds a connection to a group, the group is created on first use.
+	 * @param pGroup name of the group
+	 * @param pConn connection, registered if it is not yet
+	 */
+	void join(String pGroup, TCPConnection pConn) {
+		if (pConn.isClosed()) return;
+		add(pConn);
+		Set<TCPConnection> members = groups.get(pGroup);
+		if (members == null) {
+			Set<TCPConnection> created = Collections.newSetFromMap(new ConcurrentHashMap<TCPConnection, Boolean>());
+			members = groups.putIfAbsent(pGroup, created);
+			if (members == null) members = created;
+		}
+		members.add(pConn);
+		// closed while joining, onClose may have missed the group
+		if (pConn.isClosed()) members.remove(pConn);
+	}
+
+	/**
+	 * @param pGroup name of the group
+	 * @param pConn member of the group
+	 */
+	void leave(String pGroup, TCPConnection pConn) {
+		Set<TCPConnection> members = groups.get(pGroup);
+		if (members != null) members.remove(pConn);
+	}
+
+	/**
+	 * @param pGroup name of the group
+	 * @return live view on the members, empty if the group is unknown
+	 */
+	Set<TCPConnection> getMembers(String pGroup) {
+		Set<TCPConnection> members = groups.get(pGroup);
+		if (members == null) return Collections.emptySet();
+		return Collections.unmodifiableSet(members);
+	}
+
+	/**
+	 * Encodes a message once and queues it on every connection of the set.
+	 * @param pTargets connections to send to
+	 * @param pObj message
+	 * @return number of connections the message was queued on
+	 * @throws IOException if the message cannot be encoded
+	 */
+	int publish(Set<TCPConnection> pTargets, Serializable pObj) throws IOException {
+		if (pTargets.isEmpty()) return 0;
+		ByteBuffer frame = encode(pObj);
+		int sent = 0;
+		for (TCPConnection conn: pTargets) {
+			if (conn.isClosed()) {
+				remove(conn);
+			} else if (conn.sendShared(frame.duplicate())) {
+				sent++;
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Encodes a message with a fresh codec instance, so the frame does not depend on the codec state of a connection.
+	 * @param pObj message
+	 * @return complete shared frame, it must not be modified
+	 * @throws IOException if the message cannot be encoded
+	 */
+	private ByteBuffer encode(Serializable pObj) throws IOException {
+		long start = System.nanoTime();
+		FrameBuffer buffer = new FrameBuffer();
+		buffer.beginFrame(TCPConnection.SHARED_FRAME);
+		options.getCodec().newInstance(options.getClassRegistry()).encode(pObj, buffer);
+		ByteBuffer frame = buffer.endFrame();
+		TCPConnection.checkMessageSize(frame.remaining() - TCPConnection.FRAME_HEADER_SIZE);
+		options.getMetrics().encoded(System.nanoTime() - start);
+		return frame;
+	}
+}
@@ -0,0 +1,245 @@
+package shylux.java.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds other nodes in the local networks.
+ * Every node broadcasts an announcement with its tcp port and metadata in a fixed interval,
+ * peers not heard of within the time to live are removed.
+ *
+ * An announcement is a udp payload of: int MAGIC, byte type (ANNOUNCE or LEAVE), int tcp port,
+ * unsigned short number of metadata entries followed by key and value of each entry in modified UTF-8.
+ *
+ * Lookups do not lock: getPeers() returns an immutable snapshot which is only replaced when a peer joins,
+ * leaves or changes, getPeer() reads a concurrent map.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class DiscoveryService implements INetworkListener {
+	/** First bytes of every discovery datagram. */
+	public static final int MAGIC = 0x53444953;
+	/** Type of a periodic announcement. */
+	public static final byte ANNOUNCE = 1;
+	/** Type of the goodbye sent on stop. */
+	public static final byte LEAVE = 2;
+	public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+	private final ConnectionManager manager;
+	private final long intervalMillis;
+	private final long ttlNanos;
+	private final byte[] announcement;
+	private final ConcurrentHashMap<UUID, Peer> peers = new ConcurrentHashMap<UUID, Peer>();
+	private volatile List<Peer> snapshot = Collections.emptyList();
+	private final List<IDiscoveryListener> listener = new CopyOnWriteArrayList<IDiscoveryListener>();
+	private ScheduledFuture<?> task;
+
+	/**
+	 * Creates a service announcing every DEFAULT_INTERVAL_MILLIS with a time to live of three intervals.
+	 * @param pManager manager receiving the announcements, its port is announced as tcp port
+	 * @param pMetadata announced to the other nodes, has to fit into one datagram
+	 */
+	public DiscoveryService(ConnectionManager pManager, Map<String, String> pMetadata) {
+		this(pManager, pMetadata, DEFAULT_INTERVAL_MILLIS, 3 * DEFAULT_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @param pManager manager receiving the announcements, its port is announced as tcp port
+	 * @param pMetadata announced to the other nodes, has to fit into one datagram
+	 * @param pIntervalMillis time between two announcements
+	 * @param pTtlMillis a peer is removed if it was not heard of for this time, should span several intervals
+	 */
+	public DiscoveryService(ConnectionManager pManager, Map<String, String> pMetadata, long pIntervalMillis, long pTtlMillis) {
+		if (pIntervalMillis < 1 || pTtlMillis < pIntervalMillis) throw new IllegalArgumentException("Need 0 < interval <= ttl");
+		manager = pManager;
+		intervalMillis = pIntervalMillis;
+		ttlNanos = TimeUnit.MILLISECONDS.toNanos(pTtlMillis);
+		announcement = encode(ANNOUNCE, pManager.getPort(), pMetadata);
+		if (announcement.length > pManager.getOptions().getMaxDatagramSize() - UDPMessage.HEADER_SIZE) {
+			throw new IllegalArgumentException("Metadata does not fit into a datagram");
+		}
+	}
+
+	/**
+	 * Starts listening and announcing.
+	 */
+	public synchronized void start() {
+		if (task != null) return;
+		manager.addNetworkListener(this);
+		task = ConnectionManager.TIMER.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				announce();
+				evict(System.nanoTime());
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Says goodbye to the other nodes and stops. Every known peer leaves.
+	 */
+	public synchronized void stop() {
+		if (task == null) return;
+		task.cancel(false);
+		task = null;
+		manager.removeNetworkListener(this);
+		try {
+			manager.getBroadcastSender().send(encode(LEAVE, manager.getPort(), Collections.<String, String>emptyMap()));
+		} catch (IOException e) {
+			ConnectionManager.LOG.warning("Cannot send goodbye: "+e.getMessage());
+		}
+		for (Peer p: snapshot) {
+			remove(p);
+		}
+	}
+
+	private void announce() {
+		try {
+			manager.getBroadcastSender().send(announcement);
+		} catch (IOException e) {
+			ConnectionManager.LOG.warning("Cannot announce: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes the peers not heard of within the time to live.
+	 * @param pNow current System.nanoTime()
+	 */
+	void evict(long pNow) {
+		for (Peer p: snapshot) {
+			if (pNow - p.lastSeen > ttlNanos) remove(p);
+		}
+	}
+
+	public void onConnection(TCPConnection pCon) {}
+
+	public void onUDPMessage(UDPMessage pMsg) {
+		ByteBuffer b = pMsg.getBuffer();
+		if (b.remaining() < 9 || b.getInt(b.position()) != MAGIC) return;
+		b.getInt();
+		byte type = b.get();
+		int port = b.getInt();
+		UUID id = pMsg.getSenderId();
+		if (type == LEAVE) {
+			Peer p = peers.get(id);
+			if (p != null) remove(p);
+			return;
+		}
+		if (type != ANNOUNCE) return;
+
+		Map<String, String> metadata = new HashMap<String, String>();
+		try {
+			ByteBufferInput in = new ByteBufferInput();
+			in.buffer = b;
+			int count = in.readUnsignedShort();
+			for (int i = 0; i < count; i++) {
+				metadata.put(in.readUTF(), in.readUTF());
+			}
+		} catch (IOException e) {
+			ConnectionManager.LOG.fine("Invalid announcement from "+pMsg.getSocketAddress());
+			return;
+		}
+		long now = System.nanoTime();
+		InetSocketAddress address = new InetSocketAddress(pMsg.getInetAddress(), port);
+		Peer known = peers.get(id);
+		if (known != null && known.getAddress().equals(address) && known.getMetadata().equals(metadata)) {
+			// the usual case, the snapshot stays as it is
+			known.lastSeen = now;
+			return;
+		}
+		// a changed peer leaves and joins again
+		if (known != null) remove(known);
+		add(new Peer(id, address, Collections.unmodifiableMap(metadata), now));
+	}
+
+	private void add(Peer pPeer) {
+		synchronized (peers) {
+			if (peers.putIfAbsent(pPeer.getId(), pPeer) != null) return;
+			updateSnapshot();
+		}
+		ConnectionManager.LOG.fine("Peer joined: "+pPeer);
+		for (IDiscoveryListener dl: listener) {
+			dl.onPeerJoined(pPeer);
+		}
+	}
+
+	private void remove(Peer pPeer) {
+		synchronized (peers) {
+			if (!peers.remove(pPeer.getId(), pPeer)) return;
+			updateSnapshot();
+		}
+		ConnectionManager.LOG.fine("Peer left: "+pPeer);
+		for (IDiscoveryListener dl: listener) {
+			dl.onPeerLeft(pPeer);
+		}
+	}
+
+	// must hold the lock on peers
+	private void updateSnapshot() {
+		snapshot = Collections.unmodifiableList(new ArrayList<Peer>(peers.values()));
+	}
+
+	/**
+	 * Returns the live peers without locking or copying. The list does not change,
+	 * a new one is published whenever a peer joins or leaves.
+	 * @return immutable list of the known peers
+	 */
+	public List<Peer> getPeers() {
+		return snapshot;
+	}
+
+	/**
+	 * @param pId id of a peer
+	 * @return the peer or null if it is not known
+	 */
+	public Peer getPeer(UUID pId) {
+		return peers.get(pId);
+	}
+
+	/**
+	 * Adds a listener which is notified when peers join or leave.
+	 * @param pDl
+	 */
+	public void addDiscoveryListener(IDiscoveryListener pDl) {
+		listener.add(pDl);
+	}
+	/**
+	 * Removes discovery listener from list. That listener wont receive notifications anymore.
+	 * @param pDl Listener to remove.
+	 */
+	public void removeDiscoveryListener(IDiscoveryListener pDl) {
+		listener.remove(pDl);
+	}
+
+	private static byte[] encode(byte pType, int pPort, Map<String, String> pMetadata) {
+		if (pMetadata.size() > 0xFFFF) throw new IllegalArgumentException("Too many metadata entries");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(pType);
+			out.writeInt(pPort);
+			out.writeShort(pMetadata.size());
+			for (Map.Entry<String, String> e: pMetadata.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeUTF(e.getValue());
+			}
+		} catch (IOException e) {
+			// not thrown by a memory stream
+			throw new IllegalArgumentException(e);
+		}
+		return bytes.toByteArray();
+	}
+}
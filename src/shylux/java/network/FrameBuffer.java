@@ -0,0 +1,60 @@
+package shylux.java.network;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Growable memory buffer used to assemble outgoing frames.
+ * Space for the length prefix is reserved when a frame begins and filled in when it ends.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class FrameBuffer extends ByteArrayOutputStream {
+
+	public FrameBuffer() {
+		super(256);
+	}
+
+	/**
+	 * Discards the content and reserves the length prefix of a new frame.
+	 * @param pType frame type, the first byte after the length
+	 */
+	public void beginFrame(byte pType) {
+		reset();
+		for (int i = 0; i < TCPConnection.FRAME_HEADER_SIZE; i++) write(0);
+		write(pType);
+	}
+
+	/**
+	 * Writes an int in big-endian order.
+	 * @param v value to write
+	 */
+	public void writeInt(int v) {
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			write(v >>> shift);
+		}
+	}
+
+	/**
+	 * Writes a long in big-endian order.
+	 * @param v value to write
+	 */
+	public void writeLong(long v) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			write((int) (v >>> shift));
+		}
+	}
+
+	/**
+	 * Fills in the length prefix.
+	 * @return view on the complete frame, valid until the buffer is modified
+	 */
+	public ByteBuffer endFrame() {
+		int length = count - TCPConnection.FRAME_HEADER_SIZE;
+		buf[0] = (byte) (length >>> 24);
+		buf[1] = (byte) (length >>> 16);
+		buf[2] = (byte) (length >>> 8);
+		buf[3] = (byte) length;
+		return ByteBuffer.wrap(buf, 0, count);
+	}
+}
@@ -0,0 +1,130 @@
+package shylux.java.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the payload of frames with a Deflater and an Inflater reused for the life of the connection.
+ * A compressed frame has the COMPRESSED_FLAG set in its type, followed by the uncompressed payload length and the deflate data.
+ * Sending threads use the deflater under the send lock, the reading thread uses the inflater.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class FrameCompressor {
+	/** Bit set in the frame type of a compressed frame. */
+	static final byte COMPRESSED_FLAG = (byte) 0x80;
+
+	private final int threshold;
+	private final Deflater deflater;
+	private final Inflater inflater = new Inflater();
+	private final FrameBuffer compressed = new FrameBuffer();
+	private final byte[] scratch = new byte[8192];
+	private byte[] inflated = new byte[8192];
+	private final CompressionStats stats = new CompressionStats();
+	private volatile boolean closed;
+
+	/**
+	 * @param pThreshold payloads smaller than this are sent uncompressed
+	 * @param pLevel deflate level
+	 */
+	FrameCompressor(int pThreshold, int pLevel) {
+		threshold = pThreshold;
+		deflater = new Deflater(pLevel);
+	}
+
+	/**
+	 * Compresses the payload of a frame.
+	 * @param pFrame complete frame in a heap buffer
+	 * @return the compressed frame, valid until the next call, or null if the frame is sent as is
+	 */
+	ByteBuffer compress(ByteBuffer pFrame) {
+		int header = TCPConnection.FRAME_HEADER_SIZE + 1;
+		int length = pFrame.remaining() - header;
+		if (length < threshold) return null;
+		long start = System.nanoTime();
+		synchronized (deflater) {
+			if (closed) return null;
+			byte type = pFrame.get(pFrame.position() + TCPConnection.FRAME_HEADER_SIZE);
+			deflater.reset();
+			deflater.setInput(pFrame.array(), pFrame.arrayOffset() + pFrame.position() + header, length);
+			deflater.finish();
+			compressed.beginFrame((byte) (type | COMPRESSED_FLAG));
+			compressed.writeInt(length);
+			while (!deflater.finished()) {
+				compressed.write(scratch, 0, deflater.deflate(scratch));
+			}
+		}
+		stats.compressNanos += System.nanoTime() - start;
+		int compressedLength = compressed.size() - header;
+		if (compressedLength >= length) {
+			stats.framesSkipped++;
+			return null;
+		}
+		stats.framesCompressed++;
+		stats.bytesBeforeCompression += length;
+		stats.bytesAfterCompression += compressedLength;
+		return compressed.endFrame();
+	}
+
+	/**
+	 * Decompresses the payload of a frame.
+	 * @param pPayload compressed payload, the part after the frame type
+	 * @return the original payload, valid until the next call
+	 * @throws IOException if the data is corrupted
+	 */
+	ByteBuffer inflate(ByteBuffer pPayload) throws IOException {
+		if (pPayload.remaining() < 4) throw new IOException("Frame too short");
+		int length = pPayload.getInt();
+		if (length < 0 || length > TCPConnection.MAX_FRAME_SIZE) throw new IOException("Invalid uncompressed length: "+length);
+		int compressedLength = pPayload.remaining();
+		long start = System.nanoTime();
+		synchronized (inflater) {
+			if (closed) throw new IOException("Connection closed");
+			if (inflated.length < length) inflated = new byte[Math.max(length, inflated.length * 2)];
+			inflater.reset();
+			if (pPayload.hasArray()) {
+				inflater.setInput(pPayload.array(), pPayload.arrayOffset() + pPayload.position(), compressedLength);
+			} else {
+				byte[] input = new byte[compressedLength];
+				pPayload.duplicate().get(input);
+				inflater.setInput(input);
+			}
+			try {
+				int n = 0;
+				while (n < length && !inflater.finished()) {
+					int read = inflater.inflate(inflated, n, length - n);
+					if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+					n += read;
+				}
+				if (n != length || !inflater.finished()) throw new IOException("Corrupted compressed frame");
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupted compressed frame: "+e.getMessage());
+			}
+		}
+		stats.inflateNanos += System.nanoTime() - start;
+		stats.framesInflated++;
+		stats.bytesBeforeInflation += compressedLength;
+		stats.bytesAfterInflation += length;
+		return ByteBuffer.wrap(inflated, 0, length);
+	}
+
+	CompressionStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Releases the native memory of the deflater and the inflater.
+	 */
+	void close() {
+		synchronized (deflater) {
+			closed = true;
+			deflater.end();
+		}
+		synchronized (inflater) {
+			inflater.end();
+		}
+	}
+}
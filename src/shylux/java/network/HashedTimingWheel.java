@@ -0,0 +1,141 @@
+package shylux.java.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Timer for many short lived timeouts, e.g. one per request or connection.
+ * Timeouts are hashed into a ring of buckets by their deadline, one thread advances the ring tick by tick
+ * and runs the timeouts of the current bucket. Scheduling and cancelling is O(1) and the precision is one tick.
+ * Tasks run on the timer thread and must be short.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class HashedTimingWheel implements Runnable {
+	/**
+	 * A scheduled task. Cancelled timeouts stay in their bucket until the wheel passes it.
+	 */
+	static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long rounds;
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable pTask, long pDeadline) {
+			task = pTask;
+			deadline = pDeadline;
+		}
+
+		/**
+		 * Prevents the task from running if it did not run yet.
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final long tickNanos;
+	private final List<ArrayDeque<Timeout>> wheel;
+	private final int mask;
+	// timeouts scheduled since the last tick, moved into the buckets by the timer thread
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicBoolean started = new AtomicBoolean();
+	private final String name;
+	private final long startTime = System.nanoTime();
+	private long tick;
+
+	/**
+	 * @param pName name of the timer thread
+	 * @param pTickMillis duration of one tick
+	 * @param pBuckets number of buckets, rounded up to a power of two
+	 */
+	HashedTimingWheel(String pName, long pTickMillis, int pBuckets) {
+		if (pTickMillis <= 0 || pBuckets <= 0) throw new IllegalArgumentException("Tick and buckets must be positive");
+		name = pName;
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(pTickMillis);
+		int size = Integer.highestOneBit(pBuckets);
+		if (size < pBuckets) size <<= 1;
+		wheel = new ArrayList<ArrayDeque<Timeout>>(size);
+		for (int i = 0; i < size; i++) {
+			wheel.add(new ArrayDeque<Timeout>());
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Schedules a task. The timer thread is started with the first timeout.
+	 * @param pTask task to run, exceptions are printed
+	 * @param pDelay delay, at least one tick
+	 * @param pUnit unit of the delay
+	 * @return handle to cancel the task
+	 */
+	Timeout schedule(Runnable pTask, long pDelay, TimeUnit pUnit) {
+		if (started.compareAndSet(false, true)) {
+			Thread th = new Thread(this, name);
+			th.setDaemon(true);
+			th.start();
+		}
+		Timeout timeout = new Timeout(pTask, System.nanoTime() - startTime + pUnit.toNanos(pDelay));
+		added.add(timeout);
+		return timeout;
+	}
+
+	public void run() {
+		while (true) {
+			long deadline = (tick + 1) * tickNanos;
+			long sleep = deadline - (System.nanoTime() - startTime);
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					// the timer of all connections keeps running
+				}
+				continue;
+			}
+			transferAdded();
+			expire(wheel.get((int) (tick & mask)));
+			tick++;
+		}
+	}
+
+	/**
+	 * Puts the new timeouts into the bucket of their deadline, overdue ones into the current bucket.
+	 */
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.cancelled) continue;
+			long ticks = Math.max(timeout.deadline / tickNanos, tick);
+			timeout.rounds = (ticks - tick) / wheel.size();
+			wheel.get((int) (ticks & mask)).add(timeout);
+		}
+	}
+
+	/**
+	 * Runs the due timeouts of a bucket, the others need more rounds of the wheel.
+	 */
+	private void expire(ArrayDeque<Timeout> pBucket) {
+		for (Iterator<Timeout> it = pBucket.iterator(); it.hasNext();) {
+			Timeout timeout = it.next();
+			if (timeout.cancelled) {
+				it.remove();
+			} else if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else {
+				it.remove();
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					// a failing task must not stop the timer
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package shylux.java.network;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Message which writes and reads its fields itself.
+ * The BinaryCodec sends such messages without any class metadata except the class name.
+ * Implementations need a public constructor without arguments.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public interface IBinaryMessage extends Serializable {
+	/**
+	 * Writes all fields.
+	 * @param pOut destination
+	 * @throws IOException if writing fails
+	 */
+	public void writeTo(DataOutput pOut) throws IOException;
+
+	/**
+	 * Reads the fields in the same order as they were written.
+	 * @param pIn source
+	 * @throws IOException if the data is corrupted
+	 */
+	public void readFrom(DataInput pIn) throws IOException;
+}
@@ -0,0 +1,21 @@
+package shylux.java.network;
+
+/**
+ * Inteface for classes who want to know when peers appear and disappear.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public interface IDiscoveryListener {
+	/**
+	 * A peer announced itself for the first time.
+	 * Called on the thread receiving the announcement.
+	 * @param pPeer the new peer
+	 */
+	public void onPeerJoined(Peer pPeer);
+
+	/**
+	 * A peer said goodbye or was not heard of within the time to live.
+	 * @param pPeer the peer that left
+	 */
+	public void onPeerLeft(Peer pPeer);
+}
@@ -0,0 +1,57 @@
+package shylux.java.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns messages into the payload of a frame and back.
+ * Every connection works with its own instance obtained by newInstance(), so a codec may keep
+ * state for the life of a connection. Both ends of a connection have to use the same codec.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public interface IMessageCodec {
+	/**
+	 * Creates the instance used by a new connection.
+	 * Stateless codecs may return themselves.
+	 * @return codec for one connection
+	 */
+	public IMessageCodec newInstance();
+
+	/**
+	 * Creates the instance used by a new connection, writing registered classes by their id.
+	 * Codecs without support for class ids ignore the registry.
+	 * @param pRegistry classes registered on both peers
+	 * @return codec for one connection
+	 */
+	public default IMessageCodec newInstance(ClassRegistry pRegistry) {
+		return newInstance();
+	}
+
+	/**
+	 * Writes a message. The same stream is passed on every call of one instance.
+	 * @param pObj message to write
+	 * @param pOut receives the payload of the frame
+	 * @throws IOException if the message cannot be encoded
+	 */
+	public void encode(Serializable pObj, OutputStream pOut) throws IOException;
+
+	/**
+	 * Reads a message from the payload of a frame.
+	 * The buffer is reused after this call, so it must not be kept.
+	 * @param pFrame payload of exactly one frame
+	 * @return the message
+	 * @throws IOException on a corrupted frame
+	 * @throws ClassNotFoundException if the message type is unknown
+	 */
+	public Object decode(ByteBuffer pFrame) throws IOException, ClassNotFoundException;
+
+	/**
+	 * Called when the payload written by the last encode is not sent, e.g. because it is too big.
+	 * Codecs keeping stream state have to make sure the next payload does not depend on the discarded one.
+	 */
+	public default void discard() {
+	}
+}
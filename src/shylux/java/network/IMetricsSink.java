@@ -0,0 +1,14 @@
+package shylux.java.network;
+
+/**
+ * Receives the metrics of a ConnectionManager periodically, to forward them to a monitoring system.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public interface IMetricsSink {
+	/**
+	 * Called on the shared timer thread at the configured interval, must not block for long.
+	 * @param pMetrics current metrics, the counters keep running between reports
+	 */
+	public void report(NetworkMetrics pMetrics);
+}
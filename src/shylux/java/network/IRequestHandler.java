@@ -0,0 +1,20 @@
+package shylux.java.network;
+
+import java.io.Serializable;
+
+/**
+ * Inteface for classes who answer requests sent with TCPConnection.request.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public interface IRequestHandler {
+	/**
+	 * A request arrived. The returned object is sent back as response.
+	 * An exception is sent back as well and fails the request on the remote side.
+	 * @param pCon connection the request arrived on
+	 * @param pRequest the request
+	 * @return the response
+	 * @throws Exception if the request cannot be answered
+	 */
+	public Serializable onRequest(TCPConnection pCon, Object pRequest) throws Exception;
+}
@@ -0,0 +1,40 @@
+package shylux.java.network;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Inteface for classes who receive files and streams sent with TCPConnection.sendFile and sendStream.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public interface ITransferHandler {
+	/**
+	 * The remote host started a transfer.
+	 * Called on the thread reading the connection, the data is written to the returned channel as it arrives.
+	 * A FileChannel stores the data without holding it on the heap, any other channel gets the data chunk by chunk.
+	 * @param pCon connection the transfer arrives on
+	 * @param pName name of the file or stream
+	 * @param pSize number of bytes, -1 if unknown
+	 * @return channel receiving the data, closed by the connection after the transfer; null to discard the data
+	 * @throws IOException if the transfer cannot be received, the data is discarded
+	 */
+	public WritableByteChannel onTransferStart(TCPConnection pCon, String pName, long pSize) throws IOException;
+
+	/**
+	 * All data has been written and the channel has been closed.
+	 * @param pCon connection the transfer arrived on
+	 * @param pName name of the file or stream
+	 * @param pBytes number of bytes received
+	 */
+	public void onTransferComplete(TCPConnection pCon, String pName, long pBytes);
+
+	/**
+	 * The transfer was aborted by the sender, the connection closed or writing to the channel failed.
+	 * The channel has been closed.
+	 * @param pCon connection the transfer arrived on
+	 * @param pName name of the file or stream
+	 * @param pError cause of the failure
+	 */
+	public void onTransferFailed(TCPConnection pCon, String pName, IOException pError);
+}
@@ -0,0 +1,16 @@
+package shylux.java.network;
+
+/**
+ * Inteface for classes who produce messages and want to pause while the receiver is slow.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public interface IWritabilityListener {
+	/**
+	 * The outbound queue crossed a watermark.
+	 * Called on the thread which sent or wrote the message that crossed it.
+	 * @param pCon the connection
+	 * @param pWritable false if producers should pause, true if they can resume
+	 */
+	public void onWritabilityChanged(TCPConnection pCon, boolean pWritable);
+}
@@ -0,0 +1,130 @@
+package shylux.java.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transfers a connection is receiving, by transfer id.
+ * Data arrives on the thread reading the connection, failAll may be called by the thread closing it.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class InboundTransfers {
+	private static class Transfer {
+		final String name;
+		final long size;
+		final WritableByteChannel target;
+		long received;
+
+		Transfer(String pName, long pSize, WritableByteChannel pTarget) {
+			name = pName;
+			size = pSize;
+			target = pTarget;
+		}
+	}
+
+	private final TCPConnection connection;
+	private final ConcurrentHashMap<Long, Transfer> transfers = new ConcurrentHashMap<Long, Transfer>();
+	private volatile ITransferHandler handler;
+
+	InboundTransfers(TCPConnection pConnection) {
+		connection = pConnection;
+	}
+
+	void setHandler(ITransferHandler pHandler) {
+		handler = pHandler;
+	}
+
+	/**
+	 * Asks the handler for the target of a new transfer.
+	 * Without handler or target the data of the transfer is discarded.
+	 */
+	void start(long pId, String pName, long pSize) {
+		WritableByteChannel target = null;
+		ITransferHandler h = handler;
+		if (h != null) {
+			try {
+				target = h.onTransferStart(connection, pName, pSize);
+			} catch (IOException e) {
+				ConnectionManager.LOG.warning("Discarding transfer "+pName+": "+e.getMessage());
+			}
+		} else {
+			ConnectionManager.LOG.warning("No transfer handler, discarding transfer "+pName);
+		}
+		transfers.put(pId, new Transfer(pName, pSize, target));
+	}
+
+	/**
+	 * Writes a chunk to the target of the transfer.
+	 * @param pData chunk, only valid during the call
+	 */
+	void chunk(long pId, ByteBuffer pData) {
+		Transfer t = transfers.get(pId);
+		if (t == null) return;
+		t.received += pData.remaining();
+		if (t.target == null) return;
+		try {
+			while (pData.hasRemaining()) {
+				t.target.write(pData);
+			}
+		} catch (IOException e) {
+			// keep discarding the rest of the transfer
+			transfers.put(pId, new Transfer(t.name, t.size, null));
+			fail(t, e);
+		}
+	}
+
+	/**
+	 * Finishes a transfer.
+	 * @param pBytes bytes sent by the remote host, -1 if it aborted the transfer
+	 */
+	void end(long pId, long pBytes) {
+		Transfer t = transfers.remove(pId);
+		if (t == null || t.target == null) return;
+		if (pBytes < 0) {
+			fail(t, new IOException("Transfer aborted by sender"));
+		} else if (pBytes != t.received) {
+			fail(t, new IOException("Transfer incomplete, received "+t.received+" of "+pBytes+" bytes"));
+		} else {
+			try {
+				t.target.close();
+			} catch (IOException e) {
+				fail(t, e);
+				return;
+			}
+			final Transfer done = t;
+			final ITransferHandler h = handler;
+			if (h == null) return;
+			connection.dispatch(new Runnable() {
+				public void run() {
+					h.onTransferComplete(connection, done.name, done.received);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Fails all open transfers, e.g. because the connection has been closed.
+	 */
+	void failAll(IOException pError) {
+		for (Long id: transfers.keySet()) {
+			Transfer t = transfers.remove(id);
+			if (t != null && t.target != null) fail(t, pError);
+		}
+	}
+
+	private void fail(final Transfer pTransfer, final IOException pError) {
+		try {
+			pTransfer.target.close();
+		} catch (IOException e) {e.printStackTrace();}
+		final ITransferHandler h = handler;
+		if (h == null) return;
+		connection.dispatch(new Runnable() {
+			public void run() {
+				h.onTransferFailed(connection, pTransfer.name, pError);
+			}
+		});
+	}
+}
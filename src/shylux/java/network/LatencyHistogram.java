@@ -0,0 +1,97 @@
+package shylux.java.network;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Distribution of durations in power of two buckets, cheap enough to record on every message.
+ * Bucket n counts the durations from 2^(n-1) to 2^n - 1 nanoseconds, so percentiles are exact up to a factor of two.
+ * Recording threads update striped counters and never wait for each other.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class LatencyHistogram {
+	/** Durations of 2^47 nanoseconds (about 39 hours) and more share the last bucket. */
+	private static final int BUCKETS = 48;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(new LongBinaryOperator() {
+		public long applyAsLong(long pLeft, long pRight) {
+			return Math.max(pLeft, pRight);
+		}
+	}, 0);
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param pNanos duration to add, negative durations count as 0
+	 */
+	public void record(long pNanos) {
+		long nanos = Math.max(0, pNanos);
+		buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	/**
+	 * @return number of recorded durations
+	 */
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket: buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * @return sum of all recorded durations in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	/**
+	 * @return mean duration in nanoseconds, 0 if nothing was recorded
+	 */
+	public double getMeanNanos() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getTotalNanos() / count;
+	}
+
+	/**
+	 * @return longest recorded duration in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * Returns the upper bound of the bucket holding the percentile.
+	 * @param pPercentile percentile between 0 and 100
+	 * @return duration in nanoseconds not exceeded by pPercentile percent of the recorded durations
+	 */
+	public long getPercentileNanos(double pPercentile) {
+		if (pPercentile < 0 || pPercentile > 100) throw new IllegalArgumentException("Percentile must be between 0 and 100");
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(pPercentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(i == 0 ? 0 : (1L << i) - 1, getMaxNanos());
+		}
+		return getMaxNanos();
+	}
+}
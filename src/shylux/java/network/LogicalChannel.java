@@ -0,0 +1,204 @@
+package shylux.java.network;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A stream of messages sharing the socket of a TCPConnection with other channels.
+ * Every channel has its own codec and listener, both peers address it by the same id.
+ *
+ * A message is split into fragments of at most the channel fragment size. The fragments of all channels
+ * are queued round-robin, so a large message on one channel delays the messages of another channel
+ * by a few fragments only.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class LogicalChannel {
+	/** Flag of the fragment completing a message. */
+	static final byte LAST_FRAGMENT = 1;
+	/** Size of the length, frame type, channel id and flags in front of the fragment data. */
+	static final int HEADER_SIZE = TCPConnection.FRAME_HEADER_SIZE + 1 + 4 + 1;
+
+	private final int id;
+	private final TCPConnection connection;
+	private final ChannelScheduler scheduler;
+	private final IMessageCodec codec;
+	private final int fragmentSize;
+	private final ReentrantLock sendLock = new ReentrantLock();
+	private final FrameBuffer frameBuffer = new FrameBuffer();
+	// fragments waiting for their turn, guarded by the lock of the scheduler
+	final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+	boolean scheduled;
+	// fragments of the message being received, only used by the reading thread
+	private ByteBuffer partial;
+
+	LogicalChannel(int pId, TCPConnection pConnection, ChannelScheduler pScheduler, ConnectionOptions pOptions) {
+		id = pId;
+		connection = pConnection;
+		scheduler = pScheduler;
+		codec = pOptions.getCodec().newInstance(pOptions.getClassRegistry());
+		fragmentSize = pOptions.getChannelFragmentSize();
+	}
+
+	/**
+	 * @return id of the channel, the same on both peers
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return connection carrying the channel
+	 */
+	public TCPConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Sends a message on this channel.
+	 * Returns after the message and all frames queued before it have been written.
+	 * @param pObj object to send
+	 */
+	public void sendMessage(Serializable pObj) {
+		if (!enqueue(pObj)) {
+			if (!connection.isClosed() && scheduler.isFull()) ConnectionManager.LOG.warning("Channel queue full, message dropped");
+			return;
+		}
+		try {
+			connection.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			connection.onClose();
+		}
+	}
+
+	/**
+	 * Queues a message on this channel and returns without waiting for the network.
+	 * @param pObj object to send
+	 * @return false if the message was rejected because the connection closed or the queue is full
+	 */
+	public boolean sendAsync(Serializable pObj) {
+		if (!enqueue(pObj)) return false;
+		connection.scheduleFlush();
+		return true;
+	}
+
+	/**
+	 * Encodes the message with the codec of the channel and hands its fragments to the scheduler.
+	 * Waits while the channels of the connection hold more than the send queue limit,
+	 * a thread that must not block gets its message rejected instead.
+	 */
+	private boolean enqueue(Serializable pObj) {
+		sendLock.lock();
+		try {
+			if (connection.isClosed()) return false;
+			// checked before encoding to keep the codec streams in sync
+			if (!scheduler.awaitSpace(connection.mayBlock())) return false;
+			try {
+				long start = System.nanoTime();
+				frameBuffer.beginFrame(TCPConnection.CHANNEL_FRAME);
+				frameBuffer.writeInt(id);
+				frameBuffer.write(LAST_FRAGMENT);
+				codec.encode(pObj, frameBuffer);
+				connection.metrics.messageOut(System.nanoTime() - start);
+			} catch (IOException e) {
+				e.printStackTrace();
+				connection.onClose();
+				return false;
+			}
+			ByteBuffer frame = frameBuffer.endFrame();
+			try {
+				// the remote host reassembles the fragments up to the same limit
+				TCPConnection.checkMessageSize(frame.remaining() - HEADER_SIZE);
+			} catch (IOException e) {
+				ConnectionManager.LOG.warning(e.getMessage()+", not sent on channel "+id);
+				codec.discard();
+				return false;
+			}
+			scheduler.add(this, fragment(frame));
+		} finally {
+			sendLock.unlock();
+		}
+		connection.fillFromChannels();
+		return true;
+	}
+
+	/**
+	 * Splits an encoded message into fragment frames owned by the caller.
+	 * @param pFrame complete frame with the last fragment flag set
+	 */
+	private List<ByteBuffer> fragment(ByteBuffer pFrame) {
+		List<ByteBuffer> fragments = new ArrayList<ByteBuffer>();
+		int length = pFrame.remaining() - HEADER_SIZE;
+		if (length <= fragmentSize) {
+			fragments.add(connection.compressFrame(pFrame, true));
+			return fragments;
+		}
+		for (int offset = 0; offset < length; offset += fragmentSize) {
+			int n = Math.min(fragmentSize, length - offset);
+			ByteBuffer fragment = ByteBuffer.allocate(HEADER_SIZE + n);
+			fragment.putInt(HEADER_SIZE - TCPConnection.FRAME_HEADER_SIZE + n).put(TCPConnection.CHANNEL_FRAME).putInt(id);
+			fragment.put(offset + n == length ? LAST_FRAGMENT : 0);
+			fragment.put(pFrame.array(), pFrame.arrayOffset() + HEADER_SIZE + offset, n).flip();
+			fragments.add(connection.compressFrame(fragment, false));
+		}
+		return fragments;
+	}
+
+	/**
+	 * Collects a fragment received on the reading thread and decodes the message once it is complete.
+	 * @param pFlags flags of the fragment
+	 * @param pData data of the fragment, valid only during this call
+	 * @return the message, or null if more fragments are expected
+	 * @throws IOException on a corrupted stream
+	 * @throws ClassNotFoundException if the message type is unknown
+	 */
+	Object onFragment(byte pFlags, ByteBuffer pData) throws IOException, ClassNotFoundException {
+		boolean last = (pFlags & LAST_FRAGMENT) != 0;
+		if (last && partial == null) return codec.decode(pData);
+		if (partial == null) {
+			partial = ByteBuffer.allocate(Math.max(2 * pData.remaining(), 8192));
+		} else if (partial.remaining() < pData.remaining()) {
+			if (partial.position() + pData.remaining() > TCPConnection.MAX_FRAME_SIZE) {
+				throw new IOException("Message on channel "+id+" exceeds "+TCPConnection.MAX_FRAME_SIZE+" bytes");
+			}
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * partial.capacity(), partial.position() + pData.remaining()));
+			partial.flip();
+			bigger.put(partial);
+			partial = bigger;
+		}
+		partial.put(pData);
+		if (!last) return null;
+		partial.flip();
+		try {
+			return codec.decode(partial);
+		} finally {
+			partial = null;
+		}
+	}
+
+	/* LISTENER */
+	// copy on write, so listener can be changed while a message is dispatched
+	List<IConnectionListener> listener = new CopyOnWriteArrayList<IConnectionListener>();
+
+	/**
+	 * Adds a listener notified of the messages on this channel and when the connection closes.
+	 * @param pCl
+	 */
+	public void addConnectionListener(IConnectionListener pCl) {
+		listener.add(pCl);
+	}
+	/**
+	 * Removes connection listener from list. That listener wont receive notifications anymore.
+	 * @param pCl Listener to remove.
+	 */
+	public void removeConnectionListener(IConnectionListener pCl) {
+		listener.remove(pCl);
+	}
+}
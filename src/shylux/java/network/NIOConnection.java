@@ -0,0 +1,171 @@
+package shylux.java.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection served by a NIOEventLoop instead of an own reader thread.
+ * Writes are queued and written by the loop as soon as the socket accepts data,
+ * so sendMessage does not wait for the network either.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class NIOConnection extends TCPConnection {
+	private final SocketChannel channel;
+	private final NIOEventLoop loop;
+	SelectionKey key;
+
+	private ByteBuffer readBuffer = ConnectionManager.BUFFERS.acquire(RECEIVE_BUFFER_SIZE);
+	private final ByteBuffer[] writeBatch = new ByteBuffer[64];
+	private final AtomicBoolean writeRequested = new AtomicBoolean();
+
+	/**
+	 * Creates a connection on a non-blocking channel.
+	 * It has to be registered with the loop before it receives anything.
+	 * @param pChannel connected channel in non-blocking mode
+	 * @param pLoop loop serving the channel
+	 * @param pOptions settings of the connection
+	 */
+	NIOConnection(SocketChannel pChannel, NIOEventLoop pLoop, ConnectionOptions pOptions) {
+		super(pChannel.socket(), pOptions, false);
+		channel = pChannel;
+		loop = pLoop;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Asks the loop to write the queue once the socket is writable.
+	 */
+	@Override
+	void flush() {
+		if (writeRequested.compareAndSet(false, true)) loop.requestWrite(this);
+	}
+
+	@Override
+	void scheduleFlush() {
+		flush();
+	}
+
+	/**
+	 * The loop must not wait for its own queue to drain.
+	 */
+	@Override
+	boolean mayBlock() {
+		return !loop.inEventLoop();
+	}
+
+	/**
+	 * Called by the loop when data arrived.
+	 * @throws IOException if the channel broke
+	 */
+	void handleRead() throws IOException {
+		if (readBuffer == null) return;
+		int n = channel.read(readBuffer);
+		if (n < 0) {
+			onClose();
+			return;
+		}
+		metrics.bytesIn(n);
+		readBuffer = onReceive(readBuffer);
+		// a listener may have closed the connection while the frames were parsed
+		if (isClosed()) releaseReadBuffer();
+	}
+
+	/**
+	 * Returns the receive buffer to the pool. Only called on the loop, after the current read finished.
+	 */
+	private void releaseReadBuffer() {
+		if (readBuffer == null) return;
+		ConnectionManager.BUFFERS.release(readBuffer);
+		readBuffer = null;
+	}
+
+	/**
+	 * Called by the loop when the socket accepts data.
+	 * Writes as much of the queue as possible and stops listening for write readiness once it is empty.
+	 * @throws IOException if the channel broke
+	 */
+	void handleWrite() throws IOException {
+		int n;
+		while ((n = outbound.peek(writeBatch)) > 0) {
+			// everything queued goes out with one gathering write
+			metrics.bytesOut(channel.write(writeBatch, 0, n));
+			int written = 0;
+			while (written < n && !writeBatch[written].hasRemaining()) written++;
+			fireWritability(outbound.remove(written));
+			fillFromChannels();
+			// socket buffer is full, try again when writable
+			if (written < n) return;
+		}
+		Arrays.fill(writeBatch, null);
+		writeRequested.set(false);
+		key.interestOps(SelectionKey.OP_READ);
+		// a frame might have been queued while the flag was still set
+		if (!outbound.isEmpty() && writeRequested.compareAndSet(false, true)) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Chunks fit the largest size class of the buffer pool, so their buffers are reused.
+	 */
+	@Override
+	int chunkSize() {
+		return BufferPool.MAX_SIZE - CHUNK_HEADER_SIZE;
+	}
+
+	/**
+	 * Queues the frame for the loop, waiting while the connection is unwritable so a transfer does not fill the heap.
+	 * A heap frame is copied into a pooled buffer, so the caller can reuse it.
+	 */
+	@Override
+	void writeFrame(ByteBuffer pFrame) throws IOException {
+		if (loop.inEventLoop()) throw new IOException("Transfers must not be sent from the event loop");
+		try {
+			if (!outbound.awaitWritable()) throw new IOException("Connection closed");
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		ByteBuffer frame = pFrame;
+		if (!frame.isDirect()) {
+			frame = ConnectionManager.BUFFERS.acquire(pFrame.remaining());
+			frame.put(pFrame).flip();
+		}
+		fireWritability(outbound.add(frame));
+		flush();
+	}
+
+	/**
+	 * The loop owns the channel, so the chunk is read into a pooled direct buffer and queued.
+	 */
+	@Override
+	void writeChunk(long pId, FileChannel pFile, long pPosition, int pLength) throws IOException {
+		ByteBuffer frame = ConnectionManager.BUFFERS.acquire(CHUNK_HEADER_SIZE + pLength);
+		putChunkHeader(frame, pId, pLength);
+		frame.position(CHUNK_HEADER_SIZE);
+		readFully(pFile, frame, pPosition);
+		frame.flip();
+		writeFrame(frame);
+	}
+
+	@Override
+	void closeTransport() throws IOException {
+		loop.unregister();
+		channel.close();
+		// the loop may be parsing the buffer right now, also if it is the one closing
+		loop.execute(new Runnable() {
+			public void run() {
+				releaseReadBuffer();
+			}
+		});
+	}
+}
@@ -0,0 +1,238 @@
+package shylux.java.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Non-blocking replacement for the TCPListener and the reader thread of every connection.
+ * A single thread serves reads and writes of many connections with one selector.
+ * Acceptor loops hand new connections to a worker loop of their NIOEventLoopGroup.
+ * Listener are notified on the loop thread, so they should not block.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class NIOEventLoop implements Runnable {
+	private final ConnectionManager manager;
+	private final NIOEventLoopGroup group;
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger connections = new AtomicInteger();
+	private volatile boolean running = true;
+	private volatile Thread thread;
+
+	/**
+	 * Creates a new loop. Use run() in a new thread to start it.
+	 * @param pManager manager to notify about new connections
+	 * @param pGroup group which provides the worker loops for accepted connections
+	 * @throws IOException if the selector could not be opened
+	 */
+	NIOEventLoop(ConnectionManager pManager, NIOEventLoopGroup pGroup) throws IOException {
+		manager = pManager;
+		group = pGroup;
+		selector = Selector.open();
+	}
+
+	public void run() {
+		thread = Thread.currentThread();
+		try {
+			while (running) {
+				selector.select();
+				runTasks();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						try {
+							accept((ServerSocketChannel) key.channel());
+						} catch (IOException e) {
+							// e.g. out of file descriptors, the next connection may succeed
+							ConnectionManager.LOG.warning("Could not accept connection: "+e.getMessage());
+						}
+					} else {
+						handle(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (running) ConnectionManager.LOG.warning(e.getMessage());
+		} finally {
+			ConnectionManager.LOG.info("Shutting down NIO event loop...");
+			shutdown();
+		}
+	}
+
+	private void accept(ServerSocketChannel pServer) throws IOException {
+		// other acceptor loops may have been faster
+		SocketChannel ch = pServer.accept();
+		if (ch == null) return;
+		if (ConnectionManager.LOG.isLoggable(Level.FINE)) {
+			ConnectionManager.LOG.fine(String.format("New connection from %s", ch.getRemoteAddress()));
+		}
+		manager.getOptions().getMetrics().connectionAccepted();
+		ch.configureBlocking(false);
+		NIOEventLoop worker = group.next();
+		NIOConnection conn = new NIOConnection(ch, worker, manager.getOptions());
+		// notify before reading, so the listener can attach itself without missing a message
+		manager.fireConnection(conn);
+		worker.register(conn);
+	}
+
+	private void handle(SelectionKey key) {
+		NIOConnection conn = (NIOConnection) key.attachment();
+		try {
+			if (key.isReadable()) conn.handleRead();
+			if (key.isValid() && key.isWritable()) conn.handleWrite();
+		} catch (CancelledKeyException e) {
+			conn.onClose();
+		} catch (IOException e) {
+			if (!conn.isClosed()) ConnectionManager.LOG.fine(e.getMessage());
+			conn.onClose();
+		} catch (RuntimeException e) {
+			// e.g. a listener notified on the loop, only its connection is closed
+			ConnectionManager.LOG.warning("Closing connection after an error on the event loop: "+e);
+			e.printStackTrace();
+			conn.onClose();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// a failing task must not stop the loop
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return true if called by the thread running this loop
+	 */
+	boolean inEventLoop() {
+		return thread == Thread.currentThread();
+	}
+
+	/**
+	 * Runs a task on the loop thread.
+	 * @param pTask task to run
+	 */
+	void execute(Runnable pTask) {
+		tasks.add(pTask);
+		selector.wakeup();
+	}
+
+	/**
+	 * Accepts connections of a bound server channel on this loop.
+	 * @param pServer server channel in non-blocking mode
+	 */
+	void listen(final ServerSocketChannel pServer) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					pServer.register(selector, SelectionKey.OP_ACCEPT);
+				} catch (IOException e) {
+					ConnectionManager.LOG.warning(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Registers an already connected channel with this loop.
+	 * The connection stays on this loop until it is closed.
+	 * @param pConn connection to serve
+	 */
+	void register(final NIOConnection pConn) {
+		connections.incrementAndGet();
+		execute(new Runnable() {
+			public void run() {
+				try {
+					pConn.key = pConn.getChannel().register(selector, SelectionKey.OP_READ, pConn);
+					// frames queued before the connection was registered
+					if (!pConn.outbound.isEmpty()) pConn.flush();
+				} catch (IOException e) {
+					pConn.onClose();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Asks the loop to write the pending frames of a connection.
+	 * @param pConn connection with pending frames
+	 */
+	void requestWrite(final NIOConnection pConn) {
+		execute(new Runnable() {
+			public void run() {
+				SelectionKey key = pConn.key;
+				if (key == null || !key.isValid()) return;
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		});
+	}
+
+	/**
+	 * Opens a connection to a remote host which is served by this loop.
+	 * @param pHost hostname / ip of the remote host
+	 * @param pPortNumber port number on the remote host
+	 * @return the new connection
+	 * @throws IOException if the connection failed
+	 */
+	NIOConnection connect(String pHost, int pPortNumber) throws IOException {
+		SocketChannel ch = SocketChannel.open(new InetSocketAddress(pHost, pPortNumber));
+		ch.configureBlocking(false);
+		NIOConnection conn = new NIOConnection(ch, this, manager.getOptions());
+		register(conn);
+		return conn;
+	}
+
+	/**
+	 * Called by a connection of this loop when it has been closed.
+	 */
+	void unregister() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of connections served by this loop.
+	 * @return number of open connections
+	 */
+	int getConnectionCount() {
+		return connections.get();
+	}
+
+	/**
+	 * Stops the loop. All connections served by it are closed.
+	 */
+	void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void shutdown() {
+		if (!selector.isOpen()) return;
+		for (SelectionKey key: new ArrayList<SelectionKey>(selector.keys())) {
+			if (key.attachment() instanceof NIOConnection) {
+				((NIOConnection) key.attachment()).onClose();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {}
+	}
+}
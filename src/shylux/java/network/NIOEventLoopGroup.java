@@ -0,0 +1,144 @@
+package shylux.java.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads of the non-blocking engine.
+ * Acceptor loops take new connections from the server channel and spread them over the worker loops.
+ * A connection is served by the same worker loop for its whole life, so its messages stay in order.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class NIOEventLoopGroup {
+	private final NIOEventLoop[] acceptors;
+	private final NIOEventLoop[] workers;
+	private final ConnectionOptions.Balancing balancing;
+	private final AtomicInteger nextWorker = new AtomicInteger();
+	private ServerSocketChannel serverChannel;
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	/**
+	 * Creates and starts the loops.
+	 * @param pManager manager to notify about new connections
+	 * @param pOptions sizes of the acceptor and worker pools and the balancing policy
+	 * @throws IOException if a selector could not be opened
+	 */
+	NIOEventLoopGroup(ConnectionManager pManager, ConnectionOptions pOptions) throws IOException {
+		balancing = pOptions.getBalancing();
+		acceptors = new NIOEventLoop[pOptions.isUseTCP() ? pOptions.getAcceptorThreads() : 0];
+		workers = new NIOEventLoop[pOptions.getWorkerThreads()];
+		for (int i = 0; i < acceptors.length; i++) {
+			acceptors[i] = new NIOEventLoop(pManager, this);
+		}
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new NIOEventLoop(pManager, this);
+		}
+		for (int i = 0; i < acceptors.length; i++) {
+			start(acceptors[i], "ConnectionManager-NIOAcceptor-"+i);
+		}
+		for (int i = 0; i < workers.length; i++) {
+			start(workers[i], "ConnectionManager-NIOWorker-"+i);
+		}
+	}
+
+	private void start(NIOEventLoop pLoop, String pName) {
+		Thread th = new Thread(pLoop);
+		th.setName(pName);
+		threads.add(th);
+		th.start();
+	}
+
+	/**
+	 * Binds the server channel and lets all acceptor loops accept connections on it.
+	 * @param pPortNumber port on which the server should listen, 0 for an ephemeral port
+	 * @return the bound port
+	 * @throws IOException if the port could not be bound
+	 */
+	int bind(int pPortNumber) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().bind(new InetSocketAddress(pPortNumber));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		serverChannel = channel;
+		int port = channel.socket().getLocalPort();
+		ConnectionManager.LOG.info("Starting NIO TCP server on port "+port);
+		for (NIOEventLoop acceptor: acceptors) {
+			acceptor.listen(serverChannel);
+		}
+		return port;
+	}
+	
+	/**
+	 * Stops accepting, the connections stay open.
+	 */
+	void unbind() {
+		try {
+			if (serverChannel != null) serverChannel.close();
+		} catch (IOException e) {}
+		serverChannel = null;
+	}
+
+	/**
+	 * Chooses the worker loop for a new connection.
+	 * @return worker loop according to the balancing policy
+	 */
+	NIOEventLoop next() {
+		if (balancing == ConnectionOptions.Balancing.LEAST_LOADED) {
+			NIOEventLoop best = workers[0];
+			for (int i = 1; i < workers.length; i++) {
+				if (workers[i].getConnectionCount() < best.getConnectionCount()) best = workers[i];
+			}
+			return best;
+		}
+		return workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+	}
+
+	/**
+	 * Opens a connection to a remote host which is served by one of the worker loops.
+	 * @param pHost hostname / ip of the remote host
+	 * @param pPortNumber port number on the remote host
+	 * @return the new connection
+	 * @throws IOException if the connection failed
+	 */
+	NIOConnection connect(String pHost, int pPortNumber) throws IOException {
+		return next().connect(pHost, pPortNumber);
+	}
+
+	/**
+	 * Waits for the loop threads to exit after close.
+	 * @param pDeadlineNanos System.nanoTime() at which to give up
+	 * @return false if a loop is still running
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	boolean awaitTermination(long pDeadlineNanos) throws InterruptedException {
+		boolean terminated = true;
+		for (Thread th: threads) {
+			terminated &= ConnectionManager.join(th, pDeadlineNanos);
+		}
+		return terminated;
+	}
+
+	/**
+	 * Stops accepting and closes all loops with their connections.
+	 */
+	void close() {
+		try {
+			if (serverChannel != null) serverChannel.close();
+		} catch (IOException e) {}
+		for (NIOEventLoop acceptor: acceptors) {
+			acceptor.close();
+		}
+		for (NIOEventLoop worker: workers) {
+			worker.close();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package shylux.java.network;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of all connections sharing one ConnectionOptions, and of the manager created with them.
+ * Registered as MBean by the ConnectionManager and reported to the IMetricsSink of the options.
+ * All counters are striped, recording does not lock and is cheap enough to stay enabled.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class NetworkMetrics implements NetworkMetricsMBean {
+	private final LongAdder openConnections = new LongAdder();
+	private final LongAdder acceptedConnections = new LongAdder();
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder messagesOut = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder queuedMessages = new LongAdder();
+	private final LongAdder queuedBytes = new LongAdder();
+	private final LongAdder udpPacketsReceived = new LongAdder();
+	private final LongAdder udpPacketsDropped = new LongAdder();
+	private final LatencyHistogram encodeTime = new LatencyHistogram();
+	private final LatencyHistogram decodeTime = new LatencyHistogram();
+	private final LatencyHistogram listenerTime = new LatencyHistogram();
+
+	void connectionOpened() {
+		openConnections.increment();
+	}
+
+	void connectionClosed() {
+		openConnections.decrement();
+	}
+
+	void connectionAccepted() {
+		acceptedConnections.increment();
+	}
+
+	void messageIn(long pDecodeNanos) {
+		messagesIn.increment();
+		decodeTime.record(pDecodeNanos);
+	}
+
+	void messageOut(long pEncodeNanos) {
+		messagesOut.increment();
+		encodeTime.record(pEncodeNanos);
+	}
+
+	void messageOut() {
+		messagesOut.increment();
+	}
+
+	void encoded(long pEncodeNanos) {
+		encodeTime.record(pEncodeNanos);
+	}
+
+	void bytesIn(long pBytes) {
+		bytesIn.add(pBytes);
+	}
+
+	void bytesOut(long pBytes) {
+		bytesOut.add(pBytes);
+	}
+
+	void queued(int pMessages, long pBytes) {
+		queuedMessages.add(pMessages);
+		queuedBytes.add(pBytes);
+	}
+
+	void listenerCalled(long pNanos) {
+		listenerTime.record(pNanos);
+	}
+
+	void udpPacketReceived() {
+		udpPacketsReceived.increment();
+	}
+
+	void udpPacketDropped() {
+		udpPacketsDropped.increment();
+	}
+
+	public long getOpenConnections() {
+		return openConnections.sum();
+	}
+
+	public long getAcceptedConnections() {
+		return acceptedConnections.sum();
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/**
+	 * @return messages waiting in the outbound queues of all open connections
+	 */
+	public long getQueuedMessages() {
+		return queuedMessages.sum();
+	}
+
+	/**
+	 * @return bytes waiting in the outbound queues of all open connections
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.sum();
+	}
+
+	public long getUdpPacketsReceived() {
+		return udpPacketsReceived.sum();
+	}
+
+	/**
+	 * @return datagrams discarded because they were too short or larger than the max datagram size
+	 */
+	public long getUdpPacketsDropped() {
+		return udpPacketsDropped.sum();
+	}
+
+	/**
+	 * @return time spent encoding outgoing messages
+	 */
+	public LatencyHistogram getEncodeTime() {
+		return encodeTime;
+	}
+
+	/**
+	 * @return time spent decoding incoming messages
+	 */
+	public LatencyHistogram getDecodeTime() {
+		return decodeTime;
+	}
+
+	/**
+	 * @return time spent in the listeners and request handlers of the connections
+	 */
+	public LatencyHistogram getListenerTime() {
+		return listenerTime;
+	}
+
+	public double getEncodeMeanNanos() {
+		return encodeTime.getMeanNanos();
+	}
+
+	public long getEncode99thPercentileNanos() {
+		return encodeTime.getPercentileNanos(99);
+	}
+
+	public double getDecodeMeanNanos() {
+		return decodeTime.getMeanNanos();
+	}
+
+	public long getDecode99thPercentileNanos() {
+		return decodeTime.getPercentileNanos(99);
+	}
+
+	public double getListenerMeanNanos() {
+		return listenerTime.getMeanNanos();
+	}
+
+	public long getListener99thPercentileNanos() {
+		return listenerTime.getPercentileNanos(99);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("connections=%d accepted=%d messagesIn=%d messagesOut=%d bytesIn=%d bytesOut=%d queued=%d/%dB udp=%d dropped=%d",
+				getOpenConnections(), getAcceptedConnections(), getMessagesIn(), getMessagesOut(), getBytesIn(), getBytesOut(),
+				getQueuedMessages(), getQueuedBytes(), getUdpPacketsReceived(), getUdpPacketsDropped());
+	}
+}
@@ -0,0 +1,26 @@
+package shylux.java.network;
+
+/**
+ * Management interface of the NetworkMetrics registered by a ConnectionManager.
+ * Durations are in nanoseconds.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public interface NetworkMetricsMBean {
+	public long getOpenConnections();
+	public long getAcceptedConnections();
+	public long getMessagesIn();
+	public long getMessagesOut();
+	public long getBytesIn();
+	public long getBytesOut();
+	public long getQueuedMessages();
+	public long getQueuedBytes();
+	public long getUdpPacketsReceived();
+	public long getUdpPacketsDropped();
+	public double getEncodeMeanNanos();
+	public long getEncode99thPercentileNanos();
+	public double getDecodeMeanNanos();
+	public long getDecode99thPercentileNanos();
+	public double getListenerMeanNanos();
+	public long getListener99thPercentileNanos();
+}
@@ -0,0 +1,446 @@
+package shylux.java.network;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent queue of the messages sent to one destination, for at-least-once delivery across disconnects.
+ * Attach it with TCPConnection.setJournal to every new connection to the destination.
+ *
+ * Every message gets a sequence number when it is appended and is stored as a complete frame in a memory-mapped
+ * segment file, so appending is a copy into memory. The connection sends the frames from the journal, the remote
+ * host acknowledges the messages of each read once its listeners ran and the acknowledgements advance a cursor,
+ * also stored in a mapped file. Messages that were not acknowledged are sent again to the next connection the journal is
+ * attached to, also after a restart of the process. The remote host may therefore receive a message twice.
+ *
+ * A segment whose messages are all acknowledged is cleared and reused for new messages.
+ * Mapped files survive a crash of the process, call force() to survive a crash of the machine.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class OutboundJournal implements Closeable {
+	/** Default size of a segment file. */
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	/** Segment header: sequence number of the first entry, 0 if the segment is unused. */
+	static final int SEGMENT_HEADER_SIZE = 8;
+	/** Offset of the sequence number in a journaled frame, after the length and the type. */
+	static final int SEQUENCE_OFFSET = TCPConnection.FRAME_HEADER_SIZE + 1;
+	/** Unused segments kept for reuse, further ones are deleted. */
+	private static final int SPARE_SEGMENTS = 2;
+	private static final String SEGMENT_SUFFIX = ".segment";
+	private static final String CURSOR_FILE = "ack.cursor";
+
+	/**
+	 * A mapped segment file. Entries are complete frames written back to back,
+	 * a zero length marks the end.
+	 */
+	private static class Segment {
+		final File file;
+		final FileChannel channel;
+		final MappedByteBuffer map;
+		long firstSeq;
+		int count;
+		int position = SEGMENT_HEADER_SIZE;
+		// the segment written after this one, null for the current segment
+		Segment next;
+
+		Segment(File pFile, int pSize) throws IOException {
+			file = pFile;
+			channel = FileChannel.open(pFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, pSize);
+		}
+
+		long lastSeq() {
+			return firstSeq + count - 1;
+		}
+
+		/**
+		 * Zeroes the written part, so the old entries are not found again after a restart.
+		 */
+		void clear() {
+			for (int i = 0; i < position; i += 8) {
+				map.putLong(i, 0);
+			}
+			firstSeq = 0;
+			count = 0;
+			position = SEGMENT_HEADER_SIZE;
+			next = null;
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final ReentrantLock lock = new ReentrantLock();
+	// segments holding unacknowledged entries, oldest first, the last one is written to
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private final List<Segment> spare = new ArrayList<Segment>();
+	private final FileChannel cursorChannel;
+	private final MappedByteBuffer cursor;
+	private int nextFile;
+	private long nextSeq = 1;
+	private long acknowledged;
+	private boolean closed;
+
+	// the connection sending the entries and the next entry it has to queue
+	private TCPConnection connection;
+	private Segment readSegment;
+	private int readPosition;
+	private long readSeq;
+
+	/**
+	 * Opens the journal with the default segment size.
+	 * @param pDirectory directory of the segment files, created if needed
+	 * @throws IOException if the files cannot be opened
+	 */
+	public OutboundJournal(Path pDirectory) throws IOException {
+		this(pDirectory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the journal and recovers the unacknowledged messages of a previous run.
+	 * @param pDirectory directory of the segment files, created if needed
+	 * @param pSegmentSize size of a segment file, limits the size of a single message
+	 * @throws IOException if the files cannot be opened
+	 */
+	public OutboundJournal(Path pDirectory, int pSegmentSize) throws IOException {
+		if (pSegmentSize < 1024) throw new IllegalArgumentException("Segment size must be at least 1024 bytes");
+		directory = pDirectory.toFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create "+directory);
+		// multiple of 8, segments are cleared in longs
+		segmentSize = pSegmentSize & ~7;
+		cursorChannel = FileChannel.open(new File(directory, CURSOR_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		cursor = cursorChannel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+		acknowledged = cursor.getLong(0);
+		nextSeq = acknowledged + 1;
+		recover();
+	}
+
+	/**
+	 * Maps the existing segment files and finds the entries which were not acknowledged.
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File pFile) {
+				return pFile.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		List<Segment> found = new ArrayList<Segment>();
+		for (File file: files) {
+			String name = file.getName();
+			try {
+				nextFile = Math.max(nextFile, Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())) + 1);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			Segment segment = new Segment(file, Math.max(segmentSize, (int) Math.min(file.length(), Integer.MAX_VALUE)));
+			segment.firstSeq = segment.map.getLong(0);
+			found.add(segment);
+		}
+		Collections.sort(found, new Comparator<Segment>() {
+			public int compare(Segment pA, Segment pB) {
+				return Long.compare(pA.firstSeq, pB.firstSeq);
+			}
+		});
+		for (Segment segment: found) {
+			if (segment.firstSeq != 0) scan(segment);
+			if (segment.firstSeq == 0 || segment.count == 0 || segment.lastSeq() <= acknowledged
+					|| (!segments.isEmpty() && segment.firstSeq != nextSeq)) {
+				// unused, acknowledged or not continuing the previous segment
+				recycle(segment);
+			} else {
+				if (!segments.isEmpty()) segments.peekLast().next = segment;
+				segments.add(segment);
+				nextSeq = segment.lastSeq() + 1;
+			}
+		}
+		if (!segments.isEmpty() && segments.peekFirst().firstSeq > acknowledged + 1) {
+			ConnectionManager.LOG.warning("Journal "+directory+" is missing the messages after "+acknowledged);
+		}
+	}
+
+	/**
+	 * Counts the complete entries of a recovered segment. An entry whose length was not written yet ends the segment.
+	 */
+	private void scan(Segment pSegment) {
+		// the file may have been written with another segment size
+		int end = pSegment.map.capacity();
+		int position = SEGMENT_HEADER_SIZE;
+		while (position + SEQUENCE_OFFSET + 8 <= end) {
+			int length = pSegment.map.getInt(position);
+			if (length <= 0 || position + TCPConnection.FRAME_HEADER_SIZE + length > end) break;
+			if (pSegment.map.getLong(position + SEQUENCE_OFFSET) != pSegment.firstSeq + pSegment.count) break;
+			pSegment.count++;
+			position += TCPConnection.FRAME_HEADER_SIZE + length;
+		}
+		pSegment.position = position;
+	}
+
+	/**
+	 * Assigns the next sequence number to a journal frame and stores it.
+	 * @param pFrame complete frame with space for the sequence number, which is filled in
+	 * @return sequence number of the message
+	 * @throws IOException if the frame does not fit into a segment or no segment could be created
+	 */
+	long append(ByteBuffer pFrame) throws IOException {
+		int length = pFrame.remaining();
+		if (SEGMENT_HEADER_SIZE + length + TCPConnection.FRAME_HEADER_SIZE > segmentSize) {
+			throw new IOException("Message of "+length+" bytes does not fit into a journal segment");
+		}
+		lock.lock();
+		try {
+			if (closed) throw new IOException("Journal closed");
+			Segment segment = segments.peekLast();
+			// keep space for the zero length ending the segment
+			if (segment == null || segment.position + length + TCPConnection.FRAME_HEADER_SIZE > segmentSize) {
+				segment = roll();
+			}
+			long seq = nextSeq++;
+			pFrame.putLong(pFrame.position() + SEQUENCE_OFFSET, seq);
+			ByteBuffer body = pFrame.duplicate();
+			body.position(body.position() + TCPConnection.FRAME_HEADER_SIZE);
+			segment.map.position(segment.position + TCPConnection.FRAME_HEADER_SIZE);
+			segment.map.put(body);
+			// the length last, so a torn entry is not recovered
+			segment.map.putInt(segment.position, length - TCPConnection.FRAME_HEADER_SIZE);
+			segment.position += length;
+			segment.count++;
+			return seq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Starts a new segment, reusing a spare one if possible.
+	 */
+	private Segment roll() throws IOException {
+		Segment segment;
+		if (!spare.isEmpty()) {
+			segment = spare.remove(spare.size() - 1);
+		} else {
+			segment = new Segment(new File(directory, (nextFile++)+SEGMENT_SUFFIX), segmentSize);
+		}
+		segment.firstSeq = nextSeq;
+		segment.map.putLong(0, nextSeq);
+		Segment last = segments.peekLast();
+		if (last != null) last.next = segment;
+		segments.add(segment);
+		if (readSegment == null) {
+			readSegment = segment;
+			readPosition = SEGMENT_HEADER_SIZE;
+		}
+		return segment;
+	}
+
+	/**
+	 * Advances the cursor and reuses the segments which are acknowledged completely.
+	 * @param pSeq every message up to this sequence number has been processed by the remote host
+	 */
+	void acknowledge(long pSeq) {
+		lock.lock();
+		try {
+			if (closed || pSeq <= acknowledged) return;
+			acknowledged = Math.min(pSeq, nextSeq - 1);
+			cursor.putLong(0, acknowledged);
+			while (segments.size() > 1 && segments.peekFirst().lastSeq() <= acknowledged) {
+				Segment done = segments.poll();
+				if (readSegment == done) {
+					readSegment = done.next;
+					readPosition = SEGMENT_HEADER_SIZE;
+					readSeq = Math.max(readSeq, readSegment.firstSeq);
+				}
+				try {
+					recycle(done);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Clears a segment for reuse or deletes it if there are enough spare segments.
+	 */
+	private void recycle(Segment pSegment) throws IOException {
+		if (spare.size() < SPARE_SEGMENTS && pSegment.map.capacity() == segmentSize) {
+			pSegment.clear();
+			spare.add(pSegment);
+		} else {
+			pSegment.close();
+			if (!pSegment.file.delete()) ConnectionManager.LOG.warning("Could not delete "+pSegment.file);
+		}
+	}
+
+	/**
+	 * Makes a connection the one sending the journal. It starts with the first message that was not acknowledged,
+	 * messages queued on a previous connection are sent again.
+	 * @param pConn new connection to the destination
+	 */
+	void attach(TCPConnection pConn) {
+		lock.lock();
+		try {
+			connection = pConn;
+			readSeq = acknowledged + 1;
+			readSegment = segments.peekFirst();
+			readPosition = SEGMENT_HEADER_SIZE;
+			// skip the acknowledged entries of the first segment
+			while (readSegment != null && readPosition < readSegment.position
+					&& readSegment.map.getLong(readPosition + SEQUENCE_OFFSET) < readSeq) {
+				readPosition += TCPConnection.FRAME_HEADER_SIZE + readSegment.map.getInt(readPosition);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the connection sending the journal, null if none was attached yet
+	 */
+	TCPConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * @param pConn connection asking
+	 * @return true if the connection still has to queue messages of the journal
+	 */
+	boolean hasPending(TCPConnection pConn) {
+		lock.lock();
+		try {
+			return pConn == connection && !closed && readSeq < nextSeq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Copies the next entries to the outbound queue of the attached connection until it holds enough to keep the writer busy.
+	 * @param pConn connection asking, nothing is queued if it is not the attached one
+	 * @param pOut outbound queue of the connection
+	 * @param pFillBytes queue the entries while the outbound queue holds fewer bytes
+	 * @return writability change of the outbound queue
+	 */
+	int fill(TCPConnection pConn, OutboundQueue pOut, long pFillBytes) {
+		int change = OutboundQueue.UNCHANGED;
+		lock.lock();
+		try {
+			if (pConn != connection || closed) return change;
+			while (readSeq < nextSeq && pOut.bytes() < pFillBytes && !pConn.isClosed()) {
+				if (readSeq > readSegment.lastSeq()) {
+					readSegment = readSegment.next;
+					readPosition = SEGMENT_HEADER_SIZE;
+				}
+				int length = TCPConnection.FRAME_HEADER_SIZE + readSegment.map.getInt(readPosition);
+				ByteBuffer entry = readSegment.map.duplicate();
+				entry.limit(readPosition + length).position(readPosition);
+				ByteBuffer frame = pConn.allocate(length);
+				frame.put(entry).flip();
+				int c = pOut.add(frame);
+				if (c != OutboundQueue.UNCHANGED) change = c;
+				readPosition += length;
+				readSeq++;
+			}
+			return change;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return sequence number of the last appended message, 0 if there was none
+	 */
+	public long getLastSequence() {
+		lock.lock();
+		try {
+			return nextSeq - 1;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return sequence number up to which the remote host processed the messages
+	 */
+	public long getAcknowledged() {
+		lock.lock();
+		try {
+			return acknowledged;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of messages which were not acknowledged yet
+	 */
+	public long getUnacknowledged() {
+		lock.lock();
+		try {
+			return nextSeq - 1 - acknowledged;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the mapped segments and the cursor to the storage device.
+	 */
+	public void force() {
+		lock.lock();
+		try {
+			if (closed) return;
+			for (Segment segment: segments) {
+				segment.map.force();
+			}
+			cursor.force();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the files. The messages which were not acknowledged are sent by the next journal opened on the directory.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			if (closed) return;
+			closed = true;
+			List<Segment> all = new ArrayList<Segment>(segments);
+			all.addAll(spare);
+			for (Segment segment: all) {
+				try {
+					segment.close();
+				} catch (IOException e) {e.printStackTrace();
+				}
+			}
+			segments.clear();
+			spare.clear();
+			try {
+				cursorChannel.close();
+			} catch (IOException e) {e.printStackTrace();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package shylux.java.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Encoded frames of a connection waiting to be written.
+ * Frames are added by the sending threads and removed by the single thread writing to the socket.
+ * The queue owns its frames, direct ones are returned to the BufferPool once they have been written or dropped.
+ * Uses a lock instead of monitors so waiting virtual threads do not block their carrier.
+ *
+ * The queue is full once it holds the configured number of bytes or messages.
+ * Crossing the high watermark makes the connection unwritable until the queue drains below the low watermark.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class OutboundQueue {
+	/** Writability did not change. */
+	static final int UNCHANGED = 0;
+	/** The queue crossed the high watermark. */
+	static final int BECAME_UNWRITABLE = 1;
+	/** The queue drained below the low watermark. */
+	static final int BECAME_WRITABLE = 2;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final Condition becameWritable = lock.newCondition();
+	private final Condition becameEmpty = lock.newCondition();
+	private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<ByteBuffer>();
+	private final long maxBytes;
+	private final int maxMessages;
+	private final long lowWatermark;
+	private final long highWatermark;
+	private final NetworkMetrics metrics;
+	private long bytes;
+	// frames handed to the writer by peek, they must stay until removed
+	private int inFlight;
+	private boolean writable = true;
+	private boolean closed;
+
+	/**
+	 * @param pOptions limits and watermarks of the queue
+	 */
+	OutboundQueue(ConnectionOptions pOptions) {
+		maxBytes = pOptions.getSendQueueMaxBytes();
+		maxMessages = pOptions.getSendQueueMaxMessages();
+		lowWatermark = pOptions.getLowWatermark();
+		highWatermark = pOptions.getHighWatermark();
+		metrics = pOptions.getMetrics();
+	}
+
+	/**
+	 * Appends a frame. Limits are checked by the caller before encoding, so a frame is never rejected here.
+	 * @param pFrame complete frame, owned by the queue from now on
+	 * @return writability change
+	 */
+	int add(ByteBuffer pFrame) {
+		lock.lock();
+		try {
+			frames.add(pFrame);
+			bytes += pFrame.limit();
+			metrics.queued(1, pFrame.limit());
+			notEmpty.signalAll();
+			if (writable && bytes > highWatermark) {
+				writable = false;
+				return BECAME_UNWRITABLE;
+			}
+			return UNCHANGED;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Copies the first frames into the array without removing them.
+	 * A frame that was partially written keeps its position.
+	 * @param pBatch destination
+	 * @return number of frames copied
+	 */
+	int peek(ByteBuffer[] pBatch) {
+		lock.lock();
+		try {
+			int n = 0;
+			for (ByteBuffer frame: frames) {
+				if (n == pBatch.length) break;
+				pBatch[n++] = frame;
+			}
+			inFlight = n;
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the first frames after they have been written.
+	 * @param pCount number of frames to remove
+	 * @return writability change
+	 */
+	int remove(int pCount) {
+		lock.lock();
+		try {
+			// close() may have dropped the frames meanwhile
+			for (int i = 0; i < pCount && !frames.isEmpty(); i++) {
+				ByteBuffer frame = frames.poll();
+				bytes -= frame.limit();
+				metrics.queued(-1, -frame.limit());
+				ConnectionManager.BUFFERS.release(frame);
+			}
+			inFlight = 0;
+			if (frames.isEmpty()) becameEmpty.signalAll();
+			return drained();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the oldest frames which are not being written until the queue is no longer full.
+	 * @return writability change
+	 */
+	int dropOldest() {
+		lock.lock();
+		try {
+			int skip = inFlight;
+			// a partially written frame has to be finished
+			if (skip == 0 && !frames.isEmpty() && frames.peek().position() > 0) skip = 1;
+			Iterator<ByteBuffer> it = frames.iterator();
+			for (int i = 0; i < skip && it.hasNext(); i++) it.next();
+			while (isFull() && it.hasNext()) {
+				ByteBuffer frame = it.next();
+				bytes -= frame.limit();
+				metrics.queued(-1, -frame.limit());
+				it.remove();
+				ConnectionManager.BUFFERS.release(frame);
+			}
+			return drained();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int drained() {
+		if (!isFull()) notFull.signalAll();
+		if (!writable && bytes < lowWatermark) {
+			writable = true;
+			becameWritable.signalAll();
+			return BECAME_WRITABLE;
+		}
+		return UNCHANGED;
+	}
+
+	private boolean isFull() {
+		return bytes >= maxBytes || frames.size() >= maxMessages;
+	}
+
+	/**
+	 * @return true if another message may be added
+	 */
+	boolean hasSpace() {
+		lock.lock();
+		try {
+			return !isFull();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until another message may be added.
+	 * @return false if the queue has been closed
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	boolean awaitSpace() throws InterruptedException {
+		lock.lock();
+		try {
+			while (isFull() && !closed) {
+				notFull.await();
+			}
+			return !closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the queue is below the high watermark, or drained below the low watermark after crossing it.
+	 * @return false if the queue has been closed
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	boolean awaitWritable() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!writable && !closed) {
+				becameWritable.await();
+			}
+			return !closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until a frame is queued.
+	 * With a linger time it keeps waiting for more frames until pBatchBytes are queued or the time is up.
+	 * @param pLingerNanos time to wait for more frames after the first one
+	 * @param pBatchBytes stop lingering once this many bytes are queued
+	 * @return false if the queue has been closed
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	boolean awaitBatch(long pLingerNanos, long pBatchBytes) throws InterruptedException {
+		lock.lock();
+		try {
+			while (frames.isEmpty() && !closed) {
+				notEmpty.await();
+			}
+			long nanos = pLingerNanos;
+			while (nanos > 0 && bytes < pBatchBytes && !closed) {
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return !closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until all frames have been written.
+	 * @param pDeadlineNanos System.nanoTime() at which to give up
+	 * @return true if the queue is empty or has been closed, false if the time is up
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	boolean awaitEmpty(long pDeadlineNanos) throws InterruptedException {
+		lock.lock();
+		try {
+			while (!frames.isEmpty() && !closed) {
+				long nanos = pDeadlineNanos - System.nanoTime();
+				if (nanos <= 0) return false;
+				becameEmpty.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops all frames and wakes up waiting threads.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			metrics.queued(-frames.size(), -bytes);
+			int i = 0;
+			for (ByteBuffer frame: frames) {
+				// the writer may still be writing the frames it peeked, they are left to the garbage collector
+				if (i++ < inFlight) {
+					ConnectionManager.BUFFERS.discard(frame);
+				} else {
+					ConnectionManager.BUFFERS.release(frame);
+				}
+			}
+			frames.clear();
+			bytes = 0;
+			notEmpty.signalAll();
+			notFull.signalAll();
+			becameWritable.signalAll();
+			becameEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isEmpty() {
+		lock.lock();
+		try {
+			return frames.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return false between crossing the high watermark and draining below the low watermark
+	 */
+	boolean isWritable() {
+		lock.lock();
+		try {
+			return writable;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of queued frames
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return frames.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of queued bytes
+	 */
+	long bytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
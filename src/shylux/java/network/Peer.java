@@ -0,0 +1,58 @@
+package shylux.java.network;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A node found by the DiscoveryService.
+ * Immutable apart from the time it was last seen.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class Peer {
+	private final UUID id;
+	private final InetSocketAddress address;
+	private final Map<String, String> metadata;
+	volatile long lastSeen;
+
+	Peer(UUID pId, InetSocketAddress pAddress, Map<String, String> pMetadata, long pSeen) {
+		id = pId;
+		address = pAddress;
+		metadata = pMetadata;
+		lastSeen = pSeen;
+	}
+
+	/**
+	 * @return id of the ConnectionManager process of the peer
+	 */
+	public UUID getId() {
+		return id;
+	}
+
+	/**
+	 * @return host and tcp port to connect to
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return metadata announced by the peer, unmodifiable
+	 */
+	public Map<String, String> getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * @return System.nanoTime() of the last announcement
+	 */
+	public long getLastSeen() {
+		return lastSeen;
+	}
+
+	@Override
+	public String toString() {
+		return id+"@"+address+metadata;
+	}
+}
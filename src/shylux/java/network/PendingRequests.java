@@ -0,0 +1,92 @@
+package shylux.java.network;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Requests of a connection waiting for their response, by correlation id.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class PendingRequests {
+	private final AtomicLong nextId = new AtomicLong();
+	private final ConcurrentHashMap<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<Long, CompletableFuture<Object>>();
+
+	/**
+	 * Registers a new request.
+	 * @param pTimeoutMillis the request fails with a TimeoutException after this time, 0 for no timeout
+	 * @return id of the request
+	 */
+	long add(final long pTimeoutMillis) {
+		final long id = nextId.incrementAndGet();
+		CompletableFuture<Object> future = new CompletableFuture<Object>();
+		pending.put(id, future);
+		if (pTimeoutMillis > 0) {
+			final HashedTimingWheel.Timeout timeout = ConnectionManager.WHEEL.schedule(new Runnable() {
+				public void run() {
+					fail(id, new TimeoutException("No response within "+pTimeoutMillis+" ms"));
+				}
+			}, pTimeoutMillis, TimeUnit.MILLISECONDS);
+			future.whenComplete(new BiConsumer<Object, Throwable>() {
+				public void accept(Object pResult, Throwable pError) {
+					timeout.cancel();
+				}
+			});
+		}
+		return id;
+	}
+
+	/**
+	 * @param pId id of the request
+	 * @return the future of the request or null if it is not pending anymore
+	 */
+	CompletableFuture<Object> get(long pId) {
+		return pending.get(pId);
+	}
+
+	/**
+	 * Completes a request with its response. Late responses of timed out requests are ignored.
+	 * @param pId id of the request
+	 * @param pResponse the response
+	 */
+	void complete(long pId, Object pResponse) {
+		CompletableFuture<Object> future = pending.remove(pId);
+		if (future == null) {
+			ConnectionManager.LOG.fine("Response to unknown request "+pId);
+			return;
+		}
+		future.complete(pResponse);
+	}
+
+	/**
+	 * Fails a request.
+	 * @param pId id of the request
+	 * @param pError cause of the failure
+	 */
+	void fail(long pId, Throwable pError) {
+		CompletableFuture<Object> future = pending.remove(pId);
+		if (future != null) future.completeExceptionally(pError);
+	}
+
+	/**
+	 * Fails all pending requests, e.g. because the connection has been closed.
+	 * @param pError cause of the failure
+	 */
+	void failAll(Throwable pError) {
+		for (Long id: new ArrayList<Long>(pending.keySet())) {
+			fail(id, pError);
+		}
+	}
+
+	/**
+	 * @return number of requests waiting for their response
+	 */
+	int size() {
+		return pending.size();
+	}
+}
@@ -0,0 +1,17 @@
+package shylux.java.network;
+
+/**
+ * The remote request handler failed or was missing.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class RequestFailedException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param pMessage error reported by the remote host
+	 */
+	public RequestFailedException(String pMessage) {
+		super(pMessage);
+	}
+}
@@ -0,0 +1,67 @@
+package shylux.java.network;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one after another in submission order on a shared executor.
+ * Every connection gets its own SerialExecutor, so the messages of a connection are handled in order
+ * while different connections are handled in parallel.
+ * At most one task of a SerialExecutor is queued on the shared executor at any time,
+ * after a batch of tasks it gives the other connections a turn.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+class SerialExecutor implements Executor, Runnable {
+	/** Tasks run per turn before the drain is rescheduled. */
+	private static final int BATCH = 64;
+
+	private final Executor executor;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/**
+	 * @param pExecutor executor running the tasks
+	 */
+	SerialExecutor(Executor pExecutor) {
+		executor = pExecutor;
+	}
+
+	public void execute(Runnable pTask) {
+		tasks.add(pTask);
+		schedule();
+	}
+
+	private void schedule() {
+		if (!scheduled.compareAndSet(false, true)) return;
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			ConnectionManager.LOG.warning("Dispatch executor rejected task, dropping "+tasks.size()+" notifications");
+			tasks.clear();
+			scheduled.set(false);
+		}
+	}
+
+	/**
+	 * Runs a batch of tasks on the shared executor.
+	 */
+	public void run() {
+		for (int i = 0; i < BATCH; i++) {
+			Runnable task = tasks.poll();
+			if (task == null) break;
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// a failing listener must not stop the notifications of the connection
+				e.printStackTrace();
+			}
+		}
+		scheduled.set(false);
+		// tasks added after the last poll, or left over after a full batch
+		if (!tasks.isEmpty()) schedule();
+	}
+}
@@ -0,0 +1,223 @@
+package shylux.java.network;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Default codec using java serialization.
+ * The object streams live as long as the connection, so class descriptors and back references
+ * are only transferred once per connection.
+ *
+ * Both streams keep a reference to every object sent since the last reset, which keeps them from being
+ * garbage collected and makes a modified object arrive unchanged if it is sent again.
+ * The ResetPolicy decides how often the streams are reset to bound that memory.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
+public class SerializationCodec implements IMessageCodec {
+	/**
+	 * Decides when the object streams are reset.
+	 * A reset drops all back references, so the next message carries its class descriptors again.
+	 */
+	public static class ResetPolicy {
+		/** Never reset, every object stays referenced for the life of the connection. */
+		public static final ResetPolicy NEVER = new ResetPolicy(0, 0);
+		/** Reset before every message, messages never share objects. */
+		public static final ResetPolicy ALWAYS = new ResetPolicy(1, 0);
+
+		private final int messages;
+		private final long bytes;
+
+		/**
+		 * @param pMessages reset after this many messages, 0 to ignore the message count
+		 * @param pBytes reset after this many bytes, 0 to ignore the byte count
+		 */
+		public ResetPolicy(int pMessages, long pBytes) {
+			if (pMessages < 0 || pBytes < 0) throw new IllegalArgumentException("Limits must not be negative");
+			messages = pMessages;
+			bytes = pBytes;
+		}
+
+		/**
+		 * @param pMessages reset after this many messages
+		 * @return policy resetting every pMessages messages
+		 */
+		public static ResetPolicy everyMessages(int pMessages) {
+			return new ResetPolicy(pMessages, 0);
+		}
+
+		/**
+		 * @param pBytes reset after this many bytes
+		 * @return policy resetting every pBytes bytes
+		 */
+		public static ResetPolicy everyBytes(long pBytes) {
+			return new ResetPolicy(0, pBytes);
+		}
+
+		boolean shouldReset(int pMessages, long pBytes) {
+			return (messages > 0 && pMessages >= messages) || (bytes > 0 && pBytes >= bytes);
+		}
+	}
+
+	private final ResetPolicy resetPolicy;
+	// null if no classes are registered
+	private ClassRegistry registry;
+	private TrackingOutputStream writer;
+	private CountingOutputStream counter;
+	private ObjectInputStream reader;
+	private ByteBufferInput input = new ByteBufferInput();
+
+	private int messagesSinceReset;
+	private long resets;
+	// the last message started the stream, or was discarded and the next one has to reset it
+	private boolean startedStream;
+	private boolean resetPending;
+
+	/**
+	 * Creates a codec which never resets the streams.
+	 */
+	public SerializationCodec() {
+		this(ResetPolicy.NEVER);
+	}
+
+	/**
+	 * @param pResetPolicy decides when the streams are reset
+	 */
+	public SerializationCodec(ResetPolicy pResetPolicy) {
+		if (pResetPolicy == null) throw new IllegalArgumentException("Reset policy must not be null");
+		resetPolicy = pResetPolicy;
+	}
+
+	public IMessageCodec newInstance() {
+		return new SerializationCodec(resetPolicy);
+	}
+
+	/**
+	 * Registered classes are sent as a 2 byte id instead of their class descriptor.
+	 */
+	@Override
+	public IMessageCodec newInstance(ClassRegistry pRegistry) {
+		SerializationCodec codec = new SerializationCodec(resetPolicy);
+		if (pRegistry != null && !pRegistry.isEmpty()) codec.registry = pRegistry;
+		return codec;
+	}
+
+	public void encode(Serializable pObj, OutputStream pOut) throws IOException {
+		startedStream = writer == null;
+		if (writer == null) {
+			// the stream header is sent with the first message
+			counter = new CountingOutputStream(pOut);
+			writer = new TrackingOutputStream(counter, registry);
+		} else if (resetPending || resetPolicy.shouldReset(messagesSinceReset, counter.count)) {
+			resetPending = false;
+			// written before the message, so the reader consumes it together with the message
+			writer.reset();
+			writer.handles = 0;
+			counter.count = 0;
+			messagesSinceReset = 0;
+			resets++;
+		}
+		writer.writeObject(pObj);
+		writer.flush();
+		messagesSinceReset++;
+	}
+
+	/**
+	 * The reader never saw the objects and descriptors of the discarded message, so the next message resets the
+	 * streams. If the discarded message carried the stream header, the next one starts the stream again.
+	 */
+	@Override
+	public void discard() {
+		if (startedStream) {
+			writer = null;
+			counter = null;
+			messagesSinceReset = 0;
+		} else {
+			resetPending = true;
+		}
+	}
+
+	public Object decode(ByteBuffer pFrame) throws IOException, ClassNotFoundException {
+		input.buffer = pFrame;
+		// the object stream never reads past the object it decodes, so every frame is consumed exactly
+		if (reader == null) reader = new ClassIdInputStream(input, registry);
+		return reader.readObject();
+	}
+
+	public ResetPolicy getResetPolicy() {
+		return resetPolicy;
+	}
+
+	/**
+	 * Returns the number of objects the output stream holds a reference to.
+	 * The receiving stream holds the same objects. Class descriptors are not counted.
+	 * @return objects written since the last reset
+	 */
+	public int getHandleCount() {
+		return writer == null ? 0 : writer.handles;
+	}
+
+	/**
+	 * @return bytes written since the last reset
+	 */
+	public long getBytesSinceReset() {
+		return counter == null ? 0 : counter.count;
+	}
+
+	/**
+	 * @return messages written since the last reset
+	 */
+	public int getMessagesSinceReset() {
+		return messagesSinceReset;
+	}
+
+	/**
+	 * @return number of resets so far
+	 */
+	public long getResetCount() {
+		return resets;
+	}
+
+	/**
+	 * Counts objects entering the handle table. replaceObject is only called for objects
+	 * which are not already referenced by a handle.
+	 */
+	private static class TrackingOutputStream extends ClassIdOutputStream {
+		int handles;
+
+		TrackingOutputStream(OutputStream pOut, ClassRegistry pRegistry) throws IOException {
+			super(pOut, pRegistry);
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) {
+			handles++;
+			return obj;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream pOut) {
+			super(pOut);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -1,85 +1,931 @@
 package shylux.java.network;
 
-import java.io.EOFException;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A network connection used to send and receive messages.
  * Basically a wrapper for socket.
+ *
+ * Every message is sent as a frame: a 4 byte length, a 1 byte frame type and the payload.
+ * The payload of a message frame is written and read by the IMessageCodec of the connection.
  * @author Lukas Knoepfel <shylux@gmail.com>
  *
  */
 public class TCPConnection implements Runnable {
+	/** Size of the frame length prefix. */
+	static final int FRAME_HEADER_SIZE = 4;
+	/** Frame type of a message encoded by the codec. */
+	static final byte MESSAGE_FRAME = 0;
+	/** Frame type of a request, the payload starts with the request id. */
+	static final byte REQUEST_FRAME = 1;
+	/** Frame type of a response, the payload starts with the id of the request. */
+	static final byte RESPONSE_FRAME = 2;
+	/** Frame type of a failed request, the id of the request is followed by the error message. */
+	static final byte ERROR_FRAME = 3;
+	/** Frame type starting a transfer: transfer id, size or -1 and the name in modified UTF-8. */
+	static final byte TRANSFER_FRAME = 4;
+	/** Frame type of transfer data: transfer id followed by the raw bytes. */
+	static final byte CHUNK_FRAME = 5;
+	/** Frame type ending a transfer: transfer id and the number of bytes sent or -1 if aborted. */
+	static final byte TRANSFER_END_FRAME = 6;
+	/** Frame type announcing the compression a peer wants to use, sent first if compression is enabled. */
+	static final byte HELLO_FRAME = 7;
+	/** Frame type of a ping, answered with a pong carrying the same id. */
+	static final byte PING_FRAME = 8;
+	/** Frame type answering a ping. */
+	static final byte PONG_FRAME = 9;
+	/** Frame type of a message fragment on a logical channel: channel id, flags and the data. */
+	static final byte CHANNEL_FRAME = 10;
+	/** Frame type of a message encoded by a fresh codec instance, so the same frame can be sent on many connections. */
+	static final byte SHARED_FRAME = 11;
+	/** Frame type of a journaled message: the sequence number and the message encoded by a fresh codec instance. */
+	static final byte JOURNAL_FRAME = 12;
+	/** Frame type acknowledging every journaled message up to a sequence number. */
+	static final byte ACK_FRAME = 13;
+	/** Maximal number of data bytes in a chunk frame. */
+	static final int CHUNK_SIZE = 256 * 1024;
+	/** Size of the length, type and transfer id in front of the chunk data. */
+	static final int CHUNK_HEADER_SIZE = FRAME_HEADER_SIZE + 1 + 8;
+	/** Initial size of the receive buffer, it grows for bigger frames. */
+	static final int RECEIVE_BUFFER_SIZE = 8192;
+	/** Frames bigger than this are treated as a corrupted stream. */
+	public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Checks that the remote host accepts a message, it would drop the connection otherwise.
+	 * @param pBytes encoded size of the message after the frame length
+	 * @throws IOException if the message is bigger than MAX_FRAME_SIZE
+	 */
+	static void checkMessageSize(long pBytes) throws IOException {
+		if (pBytes > MAX_FRAME_SIZE) throw new IOException("Message of "+pBytes+" bytes exceeds the maximum frame size of "+MAX_FRAME_SIZE+" bytes");
+	}
+
 	private Socket socket;
-	
+	// blocking transport, the channel is only available if the socket was created by one
+	private SocketChannel channel;
+	private InputStream in;
+	private OutputStream out;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final IMessageCodec codec;
+
 	/**
 	 * Creates a new connection from a give socket.
 	 * Also creates a new thread to listen for new messages.
 	 * @param pSocket socket from which input/output streams are used.
 	 */
 	public TCPConnection(Socket pSocket) {
+		this(pSocket, new ConnectionOptions());
+	}
+
+	/**
+	 * Creates a new connection from a give socket.
+	 * Also creates a new thread to listen for new messages, using the thread factory of the options.
+	 * @param pSocket socket from which input/output streams are used.
+	 * @param pOptions settings of the connection
+	 */
+	public TCPConnection(Socket pSocket, ConnectionOptions pOptions) {
+		this(pSocket, pOptions, true);
+		startReader();
+	}
+
+	/**
+	 * Creates a new connection.
+	 * @param pSocket underlying socket
+	 * @param pOptions settings of the connection
+	 * @param pBlocking if true the connection reads and writes on the socket itself once startReader() is called,
+	 *  otherwise the subclass is responsible for the transport
+	 */
+	TCPConnection(Socket pSocket, ConnectionOptions pOptions, boolean pBlocking) {
 		socket = pSocket;
-		Thread th = new Thread(this);
-		th.start();
-		
-		try {
-			writer = new ObjectOutputStream(socket.getOutputStream());
-		} catch (IOException e) {
-			ConnectionManager.LOG.severe(e.getMessage());
-			e.printStackTrace();
+		options = pOptions;
+		// the blocking transport without channel writes and reads heap arrays
+		directBuffers = !pBlocking || pSocket.getChannel() != null;
+		metrics = new ConnectionMetrics(pOptions.getMetrics());
+		metrics.getAggregate().connectionOpened();
+		outbound = new OutboundQueue(pOptions);
+		overflowPolicy = pOptions.getOverflowPolicy();
+		requestTimeout = pOptions.getRequestTimeout();
+		dispatcher = pOptions.getDispatchExecutor() == null ? null : new SerialExecutor(pOptions.getDispatchExecutor());
+		codec = pOptions.getCodec().newInstance(pOptions.getClassRegistry());
+		channels = new ChannelScheduler(this, pOptions);
+		lingerNanos = TimeUnit.MILLISECONDS.toNanos(pOptions.getSendLinger());
+		batchBytes = pOptions.getSendBatchBytes();
+		compression = pOptions.getCompression();
+		if (compression != ConnectionOptions.Compression.NONE) {
+			compressor = new FrameCompressor(pOptions.getCompressionThreshold(), pOptions.getCompressionLevel());
+			// compression starts once the peer announced the same algorithm
+			ByteBuffer hello = ByteBuffer.allocate(FRAME_HEADER_SIZE + 2);
+			hello.putInt(2).put(HELLO_FRAME).put((byte) compression.ordinal()).flip();
+			outbound.add(hello);
+		} else {
+			compressor = null;
 		}
+		heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(pOptions.getHeartbeatInterval());
+		readIdleNanos = TimeUnit.MILLISECONDS.toNanos(pOptions.getReadIdleTimeout());
+		writeIdleNanos = TimeUnit.MILLISECONDS.toNanos(pOptions.getWriteIdleTimeout());
+		scheduleIdleCheck();
+
+		if (pBlocking) {
+			try {
+				channel = socket.getChannel();
+				in = socket.getInputStream();
+				// flushed once per batch
+				out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+			} catch (IOException e) {
+				ConnectionManager.LOG.severe(e.getMessage());
+				e.printStackTrace();
+			}
+			if (out != null && !outbound.isEmpty()) {
+				try {
+					flush();
+				} catch (IOException e) {
+					// the reader notices the broken socket
+					ConnectionManager.LOG.warning(e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts the thread reading the socket of a blocking connection.
+	 * Called after the listeners of the connection had a chance to attach themselves.
+	 */
+	void startReader() {
+		readerThread = options.newThread(this, "TCPConnection-"+socket.getPort());
+		readerThread.start();
 	}
-	
+
 
 	/**
 	 * Listens on the connection for new messages.
 	 * Notifies all IConnectionListener on new message.
 	 */
 	public void run() {
-		ObjectInputStream reader;
-		try {
-			reader = new ObjectInputStream(socket.getInputStream());
-		} catch (IOException e1) {e1.printStackTrace();this.onClose();return;}
+		if (in == null) {this.onClose();return;}
 
-		Object inData;
+		ByteBuffer buffer = allocate(RECEIVE_BUFFER_SIZE);
 		try {
 			while (true) {
-				try {
-				inData = reader.readObject();
-				} catch (EOFException e) {
-					// ok, can happen. carry on
-					continue;
-				} catch (ClassNotFoundException e) {
-					ConnectionManager.LOG.warning("Remote sent some gibberish: "+e.getMessage());
-					continue;
+				int n;
+				if (channel != null) {
+					n = channel.read(buffer);
+				} else {
+					n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+					if (n > 0) buffer.position(buffer.position() + n);
 				}
+				if (n < 0) break;
+				metrics.bytesIn(n);
+				buffer = onReceive(buffer);
+			}
+		} catch (SocketException e) {
+			// normal close
+		} catch (IOException e) {
+			if (!isClosed()) e.printStackTrace();
+		} finally {
+			this.onClose();
+			ConnectionManager.BUFFERS.release(buffer);
+		}
+	}
+
+	/**
+	 * Allocates a buffer for a frame or for receiving. Connections writing to a channel get a direct buffer
+	 * from the pool, it is released by the outbound queue or the reader.
+	 * @param pSize number of bytes
+	 * @return buffer with pSize bytes remaining
+	 */
+	ByteBuffer allocate(int pSize) {
+		return directBuffers ? ConnectionManager.BUFFERS.acquire(pSize) : ByteBuffer.allocate(pSize);
+	}
+
+	/**
+	 * Processes all complete frames in the receive buffer.
+	 * @param pBuffer buffer in write mode which just received data
+	 * @return the buffer to continue reading into, may be a bigger one if a frame does not fit
+	 * @throws IOException on a corrupted stream
+	 */
+	ByteBuffer onReceive(ByteBuffer pBuffer) throws IOException {
+		pBuffer.flip();
+		while (pBuffer.remaining() >= FRAME_HEADER_SIZE) {
+			int length = pBuffer.getInt(pBuffer.position());
+			if (length < 0 || length > MAX_FRAME_SIZE) throw new IOException("Invalid frame length: "+length);
+			if (pBuffer.remaining() < FRAME_HEADER_SIZE + length) {
+				if (pBuffer.capacity() < FRAME_HEADER_SIZE + length) {
+					// frame does not fit, move to a bigger buffer
+					ByteBuffer bigger = allocate(FRAME_HEADER_SIZE + length);
+					bigger.put(pBuffer);
+					ConnectionManager.BUFFERS.release(pBuffer);
+					return bigger;
+				}
+				break;
+			}
+			pBuffer.position(pBuffer.position() + FRAME_HEADER_SIZE);
+			ByteBuffer frame = pBuffer.slice();
+			frame.limit(length);
+			pBuffer.position(pBuffer.position() + length);
+			onFrame(frame);
+		}
+		acknowledgeJournal();
+		pBuffer.compact();
+		return pBuffer;
+	}
+
+	/**
+	 * Decodes one frame and notifies the listener.
+	 * @param pFrame content of the frame, starting with the frame type
+	 * @throws IOException on a corrupted stream
+	 */
+	void onFrame(ByteBuffer pFrame) throws IOException {
+		if (!pFrame.hasRemaining()) throw new IOException("Empty frame");
+		byte type = pFrame.get();
+		if ((type & FrameCompressor.COMPRESSED_FLAG) != 0) {
+			if (compressor == null) throw new IOException("Compressed frame but compression is disabled");
+			type = (byte) (type & ~FrameCompressor.COMPRESSED_FLAG);
+			pFrame = compressor.inflate(pFrame);
+		}
+		long id = 0;
+		switch (type) {
+		case MESSAGE_FRAME:
+		case SHARED_FRAME:
+			break;
+		case JOURNAL_FRAME:
+		case REQUEST_FRAME:
+		case RESPONSE_FRAME:
+		case ERROR_FRAME:
+			if (pFrame.remaining() < 8) throw new IOException("Frame too short");
+			id = pFrame.getLong();
+			break;
+		case TRANSFER_FRAME:
+		case CHUNK_FRAME:
+		case TRANSFER_END_FRAME:
+			onTransferFrame(type, pFrame);
+			return;
+		case HELLO_FRAME:
+			onHello(pFrame);
+			return;
+		case CHANNEL_FRAME:
+			onChannelFrame(pFrame);
+			return;
+		case ACK_FRAME:
+			if (pFrame.remaining() < 8) throw new IOException("Frame too short");
+			OutboundJournal j = journal;
+			if (j != null) j.acknowledge(pFrame.getLong());
+			return;
+		case PING_FRAME:
+		case PONG_FRAME:
+			if (pFrame.remaining() < 8) throw new IOException("Frame too short");
+			if (type == PING_FRAME) {
+				sendControl(PONG_FRAME, pFrame.getLong());
+			} else {
+				long pong = pFrame.getLong();
+				// heartbeats are not tracked as requests
+				if (pong != HEARTBEAT_ID) requests.complete(pong, null);
+			}
+			return;
+		default:
+			ConnectionManager.LOG.warning("Unknown frame type: "+type);
+			return;
+		}
 
-				if (inData == null) break;
+		Object inData;
+		try {
+			long start = System.nanoTime();
+			if (type == SHARED_FRAME || type == JOURNAL_FRAME) {
+				// encoded without the stream state of this connection
+				inData = options.getCodec().newInstance(options.getClassRegistry()).decode(pFrame);
+			} else {
+				inData = codec.decode(pFrame);
+			}
+			metrics.messageIn(System.nanoTime() - start);
+		} catch (ClassNotFoundException e) {
+			ConnectionManager.LOG.warning("Remote sent some gibberish: "+e.getMessage());
+			if (type == REQUEST_FRAME) sendFrame(ERROR_FRAME, id, "Unknown request type: "+e.getMessage());
+			if (type == RESPONSE_FRAME) requests.fail(id, e);
+			return;
+		}
 
-				ConnectionManager.LOG.finer(String.format("Received message from %s:%s (%s)", socket.getInetAddress().toString(), socket.getPort(), inData.toString()));
+		switch (type) {
+		case REQUEST_FRAME:
+			final long requestId = id;
+			final Object request = inData;
+			dispatch(new Runnable() {
+				public void run() {
+					onRequest(requestId, request);
+				}
+			});
+			return;
+		case RESPONSE_FRAME:
+			requests.complete(id, inData);
+			return;
+		case ERROR_FRAME:
+			requests.fail(id, new RequestFailedException(String.valueOf(inData)));
+			return;
+		}
+
+		ConnectionManager.LOG.finer(String.format("Received message from %s:%s (%s)", socket.getInetAddress().toString(), socket.getPort(), inData));
+		final Object message = inData;
+		if (type == JOURNAL_FRAME) journalReceived = id;
+		dispatch(new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
 				// notify listener
 				for (IConnectionListener cl: listener) {
-					cl.onMessage(inData);
+					cl.onMessage(message);
 				}
+				metrics.getAggregate().listenerCalled(System.nanoTime() - start);
+			}
+		});
+	}
+
+	/**
+	 * Acknowledges the journaled messages of the last read with a single frame.
+	 * It is dispatched after their notifications, so the messages are acknowledged once the listeners ran.
+	 */
+	private void acknowledgeJournal() {
+		if (journalReceived == 0) return;
+		final long seq = journalReceived;
+		journalReceived = 0;
+		dispatch(new Runnable() {
+			public void run() {
+				sendControl(ACK_FRAME, seq);
+			}
+		});
+	}
+
+	/**
+	 * Enables compression if the peer wants the same algorithm.
+	 */
+	private void onHello(ByteBuffer pFrame) throws IOException {
+		if (!pFrame.hasRemaining()) throw new IOException("Frame too short");
+		int algorithm = pFrame.get();
+		compressOut = compressor != null && algorithm == compression.ordinal();
+		ConnectionManager.LOG.fine("Peer wants compression "+algorithm+", compressing: "+compressOut);
+	}
+
+	/**
+	 * Passes a fragment to its channel and dispatches the message once it is complete.
+	 */
+	private void onChannelFrame(ByteBuffer pFrame) throws IOException {
+		if (pFrame.remaining() < 5) throw new IOException("Frame too short");
+		final LogicalChannel ch = channels.open(pFrame.getInt());
+		byte flags = pFrame.get();
+		final Object message;
+		try {
+			long start = System.nanoTime();
+			message = ch.onFragment(flags, pFrame);
+			if (message != null) metrics.messageIn(System.nanoTime() - start);
+		} catch (ClassNotFoundException e) {
+			ConnectionManager.LOG.warning("Remote sent some gibberish on channel "+ch.getId()+": "+e.getMessage());
+			return;
+		}
+		if (message == null) return;
+		dispatch(new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				for (IConnectionListener cl: ch.listener) {
+					cl.onMessage(message);
+				}
+				metrics.getAggregate().listenerCalled(System.nanoTime() - start);
+			}
+		});
+	}
+
+	/**
+	 * Passes a transfer frame to the inbound transfers. The data is written on the reading thread,
+	 * the chunk is only valid until this method returns.
+	 */
+	private void onTransferFrame(byte pType, ByteBuffer pFrame) throws IOException {
+		if (pFrame.remaining() < 8) throw new IOException("Frame too short");
+		long id = pFrame.getLong();
+		switch (pType) {
+		case TRANSFER_FRAME:
+			if (pFrame.remaining() < 8) throw new IOException("Frame too short");
+			long size = pFrame.getLong();
+			ByteBufferInput input = new ByteBufferInput();
+			input.buffer = pFrame;
+			transfers.start(id, input.readUTF(), size);
+			break;
+		case CHUNK_FRAME:
+			transfers.chunk(id, pFrame);
+			break;
+		case TRANSFER_END_FRAME:
+			if (pFrame.remaining() < 8) throw new IOException("Frame too short");
+			transfers.end(id, pFrame.getLong());
+			break;
+		}
+	}
+
+	/**
+	 * Runs a notification on the dispatch executor of the connection or directly if there is none.
+	 * Notifications of one connection always run in order.
+	 * @param pTask notification
+	 */
+	void dispatch(Runnable pTask) {
+		if (dispatcher == null) {
+			pTask.run();
+		} else {
+			dispatcher.execute(pTask);
+		}
+	}
+
+	/**
+	 * Answers a request with the request handler.
+	 * @param pId id of the request
+	 * @param pRequest the request
+	 */
+	private void onRequest(long pId, Object pRequest) {
+		IRequestHandler handler = requestHandler;
+		if (handler == null) {
+			sendFrame(ERROR_FRAME, pId, "No request handler");
+			return;
+		}
+		Serializable response;
+		long start = System.nanoTime();
+		try {
+			response = handler.onRequest(this, pRequest);
+		} catch (Exception e) {
+			sendFrame(ERROR_FRAME, pId, e.toString());
+			return;
+		} finally {
+			metrics.getAggregate().listenerCalled(System.nanoTime() - start);
+		}
+		sendFrame(RESPONSE_FRAME, pId, response);
+	}
+
+	/* COMPRESSION */
+	private final ConnectionOptions.Compression compression;
+	// null if compression is disabled
+	private final FrameCompressor compressor;
+	private volatile boolean compressOut;
+
+	/**
+	 * Compression is used once both peers announced the same algorithm at connection setup.
+	 * @return true if messages above the threshold are sent compressed
+	 */
+	public boolean isCompressing() {
+		return compressOut;
+	}
+
+	/**
+	 * @return counters of the compression, all zero if compression is disabled
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressor == null ? new CompressionStats() : compressor.getStats();
+	}
+
+	/* CHANNELS */
+	private final ChannelScheduler channels;
+
+	/**
+	 * Returns the logical channel with the id, opening it on first use.
+	 * Channels share the socket of this connection, their fragments are written in turns.
+	 * A channel is also opened when the remote host sends the first message on it,
+	 * messages arriving before a listener was added are dropped.
+	 * @param pId id of the channel, the remote host uses the same id
+	 * @return the channel
+	 */
+	public LogicalChannel openChannel(int pId) {
+		return channels.open(pId);
+	}
+
+	/**
+	 * Moves fragments of the logical channels and journaled messages to the outbound queue if it runs low.
+	 */
+	void fillFromChannels() {
+		fireWritability(channels.fill(outbound));
+		OutboundJournal j = journal;
+		if (j != null) fireWritability(j.fill(this, outbound, batchBytes));
+	}
+
+	/**
+	 * Compresses a frame if compression has been negotiated.
+	 * @param pFrame complete frame in a heap buffer
+	 * @param pCopy true if the frame is reused by the caller and has to be copied
+	 * @return the frame to queue
+	 */
+	ByteBuffer compressFrame(ByteBuffer pFrame, boolean pCopy) {
+		if (compressOut) {
+			// the compressed frame is only valid until the next send
+			sendLock.lock();
+			try {
+				ByteBuffer compressed = compressor.compress(pFrame);
+				if (compressed != null) {
+					ByteBuffer copy = allocate(compressed.remaining());
+					copy.put(compressed).flip();
+					return copy;
+				}
+			} finally {
+				sendLock.unlock();
+			}
+		}
+		if (!pCopy) return pFrame;
+		ByteBuffer copy = allocate(pFrame.remaining());
+		copy.put(pFrame).flip();
+		return copy;
+	}
+
+	/* TRANSFERS */
+	private final InboundTransfers transfers = new InboundTransfers(this);
+	private final AtomicLong nextTransferId = new AtomicLong();
+
+	/**
+	 * Sends a file without loading it into memory. Messages sent meanwhile are interleaved between the chunks.
+	 * The blocking transport hands the file to the socket with FileChannel.transferTo, so the data is not copied
+	 * through the heap. The non-blocking engine reads each chunk into a direct buffer and queues it,
+	 * waiting while the connection is unwritable.
+	 * Blocks until the file has been written (blocking transport) or queued (non-blocking engine).
+	 * Must not be called on an event loop thread. Do not combine with the DROP_OLDEST overflow policy.
+	 * @param pFile file to send, received under its file name
+	 * @return number of bytes sent
+	 * @throws IOException if the file cannot be read or the connection closed
+	 */
+	public long sendFile(Path pFile) throws IOException {
+		FileChannel file = FileChannel.open(pFile, StandardOpenOption.READ);
+		try {
+			long size = file.size();
+			long id = beginTransfer(pFile.getFileName().toString(), size);
+			long position = 0;
+			try {
+				while (position < size) {
+					int length = (int) Math.min(chunkSize(), size - position);
+					writeChunk(id, file, position, length);
+					position += length;
+				}
+			} catch (IOException e) {
+				endTransfer(id, -1);
+				throw e;
+			}
+			endTransfer(id, size);
+			return size;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Sends the content of a stream in chunks, without loading it into memory.
+	 * Messages sent meanwhile are interleaved between the chunks. Does not close the stream.
+	 * Must not be called on an event loop thread.
+	 * @param pName name of the stream given to the ITransferHandler of the receiver
+	 * @param pIn stream to send until its end
+	 * @return number of bytes sent
+	 * @throws IOException if the stream cannot be read or the connection closed
+	 */
+	public long sendStream(String pName, InputStream pIn) throws IOException {
+		long id = beginTransfer(pName, -1);
+		long total = 0;
+		int size = chunkSize();
+		// writeFrame is done with the frame when it returns, so one array serves the whole transfer
+		byte[] chunk = new byte[CHUNK_HEADER_SIZE + size];
+		try {
+			while (true) {
+				int length = 0;
+				int n = 0;
+				while (length < size && (n = pIn.read(chunk, CHUNK_HEADER_SIZE + length, size - length)) >= 0) {
+					length += n;
+				}
+				if (length > 0) {
+					ByteBuffer frame = ByteBuffer.wrap(chunk, 0, CHUNK_HEADER_SIZE + length);
+					putChunkHeader(frame, id, length);
+					writeFrame(frame);
+					total += length;
+				}
+				if (n < 0) break;
 			}
-		} catch (SocketException e) {
-			// normal close
 		} catch (IOException e) {
-			e.printStackTrace();
+			endTransfer(id, -1);
+			throw e;
+		}
+		endTransfer(id, total);
+		return total;
+	}
+
+	/**
+	 * Sets the handler receiving the files and streams of the remote host.
+	 * Without handler every transfer is discarded.
+	 * @param pHandler handler called on the reader thread
+	 */
+	public void setTransferHandler(ITransferHandler pHandler) {
+		transfers.setHandler(pHandler);
+	}
+
+	private long beginTransfer(String pName, long pSize) throws IOException {
+		long id = nextTransferId.incrementAndGet();
+		FrameBuffer frame = new FrameBuffer();
+		frame.beginFrame(TRANSFER_FRAME);
+		DataOutputStream data = new DataOutputStream(frame);
+		data.writeLong(id);
+		data.writeLong(pSize);
+		data.writeUTF(pName);
+		writeFrame(frame.endFrame());
+		return id;
+	}
+
+	private void endTransfer(long pId, long pBytes) throws IOException {
+		if (isClosed()) return;
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + 1 + 16);
+		frame.putInt(1 + 16).put(TRANSFER_END_FRAME).putLong(pId).putLong(pBytes).flip();
+		writeFrame(frame);
+	}
+
+	/**
+	 * Writes length, frame type and transfer id in front of the chunk data.
+	 * @param pFrame frame with space for the header at its start, position is left unchanged
+	 */
+	static void putChunkHeader(ByteBuffer pFrame, long pId, int pLength) {
+		int start = pFrame.position();
+		pFrame.putInt(start, 1 + 8 + pLength);
+		pFrame.put(start + FRAME_HEADER_SIZE, CHUNK_FRAME);
+		pFrame.putLong(start + FRAME_HEADER_SIZE + 1, pId);
+	}
+
+	/**
+	 * @return maximal number of data bytes in the chunk frames this connection sends
+	 */
+	int chunkSize() {
+		return CHUNK_SIZE;
+	}
+
+	/**
+	 * Writes a complete frame bypassing the codec, after everything queued before.
+	 * The blocking transport writes it directly. Either way the frame can be reused once this method returns.
+	 * A failed write leaves the stream without framing, so the connection is closed.
+	 * @param pFrame complete frame
+	 * @throws IOException if the connection closed
+	 */
+	void writeFrame(ByteBuffer pFrame) throws IOException {
+		writeLock.lock();
+		try {
+			if (isClosed()) throw new IOException("Connection closed");
+			writeQueued();
+			metrics.bytesOut(pFrame.remaining());
+			if (channel != null) {
+				while (pFrame.hasRemaining()) channel.write(pFrame);
+			} else {
+				out.write(pFrame.array(), pFrame.arrayOffset() + pFrame.position(), pFrame.remaining());
+				pFrame.position(pFrame.limit());
+				out.flush();
+			}
+		} catch (IOException e) {
+			onClose();
+			throw e;
 		} finally {
-			this.onClose();
+			writeLock.unlock();
 		}
 	}
-	
-	
+
+	/**
+	 * Writes a chunk frame with data from a file.
+	 * With a socket channel the data goes from the file to the socket without passing the heap.
+	 * @param pId transfer id
+	 * @param pFile source of the data
+	 * @param pPosition position of the chunk in the file
+	 * @param pLength number of bytes, at most chunkSize()
+	 * @throws IOException if the file cannot be read or the connection closed
+	 */
+	void writeChunk(long pId, FileChannel pFile, long pPosition, int pLength) throws IOException {
+		if (channel == null) {
+			ByteBuffer frame = ByteBuffer.allocate(CHUNK_HEADER_SIZE + pLength);
+			putChunkHeader(frame, pId, pLength);
+			frame.position(CHUNK_HEADER_SIZE);
+			readFully(pFile, frame, pPosition);
+			frame.flip();
+			writeFrame(frame);
+			return;
+		}
+		ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+		putChunkHeader(header, pId, pLength);
+		writeLock.lock();
+		try {
+			if (isClosed()) throw new IOException("Connection closed");
+			writeQueued();
+			while (header.hasRemaining()) channel.write(header);
+			long done = 0;
+			while (done < pLength) {
+				long n = pFile.transferTo(pPosition + done, pLength - done, channel);
+				if (n <= 0) throw new IOException("File truncated during transfer");
+				done += n;
+			}
+			metrics.bytesOut(CHUNK_HEADER_SIZE + pLength);
+		} catch (IOException e) {
+			// the frame is incomplete, the stream cannot be continued
+			onClose();
+			throw e;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads from a file until the buffer is full.
+	 * @throws IOException if the file ends early
+	 */
+	static void readFully(FileChannel pFile, ByteBuffer pBuffer, long pPosition) throws IOException {
+		long position = pPosition;
+		while (pBuffer.hasRemaining()) {
+			int n = pFile.read(pBuffer, position);
+			if (n < 0) throw new IOException("File truncated during transfer");
+			position += n;
+		}
+	}
+
+	/* REQUESTS */
+	private final PendingRequests requests = new PendingRequests();
+	private final long requestTimeout;
+	// runs the notifications in order, null to notify on the reading thread
+	private final Executor dispatcher;
+	private volatile IRequestHandler requestHandler;
+
+	/**
+	 * Sends a request and returns without waiting for the response.
+	 * Many requests can be in flight at once, responses are matched by a correlation id.
+	 * Fails after the request timeout of the connection options.
+	 * @param pObj the request
+	 * @return completes with the response, or exceptionally with a TimeoutException,
+	 *  a RequestFailedException if the remote handler failed or an IOException if the connection closed
+	 */
+	public CompletableFuture<Object> request(Serializable pObj) {
+		return request(pObj, requestTimeout);
+	}
+
+	/**
+	 * Sends a request and returns without waiting for the response.
+	 * @param pObj the request
+	 * @param pTimeoutMillis the request fails after this time, 0 to wait forever
+	 * @return completes with the response
+	 */
+	public CompletableFuture<Object> request(Serializable pObj, long pTimeoutMillis) {
+		long id = requests.add(pTimeoutMillis);
+		// get it before sending, a fast response removes it
+		CompletableFuture<Object> future = requests.get(id);
+		if (!sendFrame(REQUEST_FRAME, id, pObj)) {
+			requests.fail(id, new IOException(rejection()));
+		}
+		return future;
+	}
+
+	/**
+	 * Checks if the remote host still answers. The pong is sent by the connection itself,
+	 * it does not need a request handler or listener.
+	 * @param pTimeoutMillis the ping fails after this time, 0 to wait forever
+	 * @return completes with the round trip time in nanoseconds
+	 */
+	public CompletableFuture<Long> ping(long pTimeoutMillis) {
+		final long start = System.nanoTime();
+		long id = requests.add(pTimeoutMillis);
+		CompletableFuture<Object> future = requests.get(id);
+		if (!sendControl(PING_FRAME, id)) {
+			requests.fail(id, new IOException("Connection closed"));
+		}
+		return future.thenApply(new Function<Object, Long>() {
+			public Long apply(Object pPong) {
+				return System.nanoTime() - start;
+			}
+		});
+	}
+
+	/** Id of the pings sent as heartbeat, request ids start at 1. */
+	private static final long HEARTBEAT_ID = 0;
+	private final long heartbeatNanos;
+	private final long readIdleNanos;
+	private final long writeIdleNanos;
+	private volatile HashedTimingWheel.Timeout idleCheck;
+	// traffic counters seen by the last check, only used on the timer thread
+	private long bytesInSample = -1;
+	private long bytesOutSample = -1;
+	private long receivedSince;
+	private long sentSince;
+	private long writeStalledSince;
+
+	/**
+	 * Schedules the next idle check on the shared timer if heartbeats or idle timeouts are enabled.
+	 * Checks run a few times per interval, so the counters of the connection are only sampled and
+	 * reading and writing do not touch the timer.
+	 */
+	private void scheduleIdleCheck() {
+		long period = Long.MAX_VALUE;
+		if (heartbeatNanos > 0) period = Math.min(period, heartbeatNanos);
+		if (readIdleNanos > 0) period = Math.min(period, readIdleNanos);
+		if (writeIdleNanos > 0) period = Math.min(period, writeIdleNanos);
+		if (period == Long.MAX_VALUE || isClosed()) return;
+		idleCheck = ConnectionManager.WHEEL.schedule(new Runnable() {
+			public void run() {
+				checkIdle();
+			}
+		}, period / 4, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sends a heartbeat if nothing was sent for the heartbeat interval and closes the connection
+	 * if nothing was received for the read timeout or queued frames did not move for the write timeout.
+	 * Runs on the timing wheel shared by all connections, so the heartbeat and the close are handed off:
+	 * both may call listeners, which must not hold up the timeouts of other connections.
+	 */
+	private void checkIdle() {
+		if (isClosed()) return;
+		long now = System.nanoTime();
+		long in = metrics.getBytesIn();
+		if (in != bytesInSample) {
+			bytesInSample = in;
+			receivedSince = now;
+		}
+		long out = metrics.getBytesOut();
+		if (out != bytesOutSample) {
+			bytesOutSample = out;
+			sentSince = now;
+			writeStalledSince = now;
+		} else if (outbound.isEmpty()) {
+			// nothing to write is not a stall
+			writeStalledSince = now;
+		}
+		if (readIdleNanos > 0 && now - receivedSince >= readIdleNanos) {
+			ConnectionManager.LOG.warning(String.format("Nothing received from %s:%s for %d ms, closing", socket.getInetAddress().toString(), socket.getPort(), TimeUnit.NANOSECONDS.toMillis(now - receivedSince)));
+			closeIdle();
+			return;
+		}
+		if (writeIdleNanos > 0 && now - writeStalledSince >= writeIdleNanos) {
+			ConnectionManager.LOG.warning(String.format("Could not write to %s:%s for %d ms, closing", socket.getInetAddress().toString(), socket.getPort(), TimeUnit.NANOSECONDS.toMillis(now - writeStalledSince)));
+			closeIdle();
+			return;
+		}
+		if (heartbeatNanos > 0 && now - sentSince >= heartbeatNanos) {
+			ConnectionManager.TIMER.execute(new Runnable() {
+				public void run() {
+					sendControl(PING_FRAME, HEARTBEAT_ID);
+				}
+			});
+			sentSince = now;
+		}
+		scheduleIdleCheck();
+	}
+
+	/**
+	 * Closes an idle connection on a thread of its own. The close fails pending requests and notifies
+	 * the listeners, which may take as long as they like.
+	 */
+	private void closeIdle() {
+		options.newThread(new Runnable() {
+			public void run() {
+				onClose();
+			}
+		}, "TCPConnection-Closer-"+socket.getPort()).start();
+	}
+
+	/**
+	 * Queues a frame consisting of a type and an id. Control frames are tiny and ignore the queue limits.
+	 * They do not depend on the codec, so they bypass the send lock and never wait behind a blocked sender,
+	 * which matters on event loops and on the timer thread.
+	 * @return false if the connection has been closed
+	 */
+	private boolean sendControl(byte pType, long pId) {
+		if (isClosed()) return false;
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + 1 + 8);
+		frame.putInt(1 + 8).put(pType).putLong(pId).flip();
+		fireWritability(outbound.add(frame));
+		scheduleFlush();
+		return true;
+	}
+
+	/**
+	 * Sets the handler answering requests of the remote host.
+	 * Without handler every request fails.
+	 * @param pHandler handler called on the reader thread
+	 */
+	public void setRequestHandler(IRequestHandler pHandler) {
+		requestHandler = pHandler;
+	}
+
+	/**
+	 * @return number of requests waiting for their response
+	 */
+	public int getPendingRequests() {
+		return requests.size();
+	}
+
+
 	/**
 	 * Returns ip address of connected machine.
 	 * @return ip address of connected machine
@@ -87,7 +933,15 @@ public class TCPConnection implements Runnable {
 	public InetAddress getRemoteAddress() {
 		return socket.getInetAddress();
 	}
-	
+
+	/**
+	 * Returns the codec instance of this connection, e.g. to inspect the state of a SerializationCodec.
+	 * @return codec of this connection
+	 */
+	public IMessageCodec getCodec() {
+		return codec;
+	}
+
 	/**
 	 * Returns port number of connected machine.
 	 * @return port number of connected machine
@@ -95,74 +949,532 @@ public class TCPConnection implements Runnable {
 	public int getRemotePort() {
 		return socket.getPort();
 	}
-	
-	private ObjectOutputStream writer;
+
+	private FrameBuffer frameBuffer = new FrameBuffer();
+	final OutboundQueue outbound;
+	private final ConnectionOptions.OverflowPolicy overflowPolicy;
+	private final ReentrantLock sendLock = new ReentrantLock();
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final ByteBuffer[] writeBatch = new ByteBuffer[64];
+	private final long lingerNanos;
+	private final int batchBytes;
+	private final ConnectionOptions options;
+	private final boolean directBuffers;
+	final ConnectionMetrics metrics;
+	private Thread writerThread;
+	private Thread readerThread;
+	private final CountDownLatch closeLatch = new CountDownLatch(1);
+
+	private volatile OutboundJournal journal;
+	// sequence number of the last journaled message received in the current read, only used by the reader
+	private long journalReceived;
+
+	/**
+	 * Sends the messages of this connection through a journal, for at-least-once delivery to the destination.
+	 * Messages the journal holds from a previous connection which were not acknowledged are sent first.
+	 * From now on sendMessage and sendAsync append to the journal, also while the connection is closed,
+	 * the messages are sent by the next connection the journal is attached to.
+	 * Requests, channels and transfers are not journaled. Acknowledgements cover every message up to their
+	 * sequence number, so the overflow policy DROP_OLDEST would lose journaled messages.
+	 * @param pJournal journal of the destination
+	 */
+	public void setJournal(OutboundJournal pJournal) {
+		journal = pJournal;
+		pJournal.attach(this);
+		fillFromChannels();
+		scheduleFlush();
+	}
+
+	/**
+	 * @return journal of this connection, null if messages are not journaled
+	 */
+	public OutboundJournal getJournal() {
+		return journal;
+	}
+
 	/**
 	 * Sends a new message to the remote host.
+	 * Returns after the message and all messages queued before it have been written.
 	 * @param pObj object to send
 	 */
-	public synchronized void sendMessage(Serializable pObj) {
-		ConnectionManager.LOG.finer(String.format("Sending message to %s:%s (%s)", socket.getInetAddress().toString(), socket.getPort(), pObj.toString()));
+	public void sendMessage(Serializable pObj) {
+		if (!enqueue(pObj)) {
+			// a journaled message does not go through the send queue, the journal logged why it failed
+			if (journal == null && !isClosed() && !outbound.hasSpace()) ConnectionManager.LOG.warning("Send queue full, message dropped");
+			return;
+		}
 		try {
-			writer.writeObject(pObj);
-			writer.flush();
+			flush();
 		} catch (IOException e) {
 			e.printStackTrace();
 			this.onClose();
-			return;
 		}
 	}
-	
+
+	/**
+	 * Queues a message and returns without waiting for the network.
+	 * A writer drains the queue in batches and flushes once per batch.
+	 * Messages keep their order, also when mixed with sendMessage.
+	 * If the queue is full the overflow policy of the connection applies.
+	 * @param pObj object to send
+	 * @return false if the message was rejected because the queue is full or the connection closed
+	 */
+	public boolean sendAsync(Serializable pObj) {
+		if (!enqueue(pObj)) return false;
+		scheduleFlush();
+		return true;
+	}
+
+	/**
+	 * Encodes the message and appends the frame to the outbound queue.
+	 * Encoding and queueing happen under one lock, so frames are queued in the order the codec wrote them.
+	 * @param pObj object to send
+	 * @return false if the connection has been closed or the message was rejected
+	 */
+	private boolean enqueue(Serializable pObj) {
+		OutboundJournal j = journal;
+		if (j != null) return journal(j, pObj);
+		return enqueue(MESSAGE_FRAME, 0, pObj);
+	}
+
+	/**
+	 * Encodes the message with a fresh codec instance, so another connection can send it, and appends it to the journal.
+	 * The connection the journal is attached to takes it from there.
+	 * @param pJournal journal of this connection
+	 * @param pObj object to send
+	 * @return false if the message could not be encoded or stored
+	 */
+	private boolean journal(OutboundJournal pJournal, Serializable pObj) {
+		sendLock.lock();
+		try {
+			long start = System.nanoTime();
+			frameBuffer.beginFrame(JOURNAL_FRAME);
+			// filled in by the journal
+			frameBuffer.writeLong(0);
+			options.getCodec().newInstance(options.getClassRegistry()).encode(pObj, frameBuffer);
+			ByteBuffer frame = frameBuffer.endFrame();
+			checkMessageSize(frame.remaining() - FRAME_HEADER_SIZE);
+			pJournal.append(frame);
+			metrics.messageOut(System.nanoTime() - start);
+		} catch (IOException e) {
+			ConnectionManager.LOG.warning("Message not journaled: "+e.getMessage());
+			return false;
+		} finally {
+			sendLock.unlock();
+		}
+		TCPConnection target = pJournal.getConnection();
+		if (target != null) {
+			target.fillFromChannels();
+			if (target != this) target.scheduleFlush();
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a frame and makes sure it is written soon.
+	 * @return false if the connection has been closed or the frame was rejected
+	 */
+	private boolean sendFrame(byte pType, long pId, Serializable pObj) {
+		if (!enqueue(pType, pId, pObj)) return false;
+		scheduleFlush();
+		return true;
+	}
+
+	/**
+	 * Encodes a frame with a codec payload and appends it to the outbound queue.
+	 * @param pType frame type
+	 * @param pId request id, only written if the frame type has one
+	 * @param pObj payload
+	 * @return false if the connection has been closed or the frame was rejected
+	 */
+	private boolean enqueue(byte pType, long pId, Serializable pObj) {
+		sendLock.lock();
+		try {
+			if (isClosed()) return false;
+			// checked before encoding, a message that was encoded has to be sent to keep the codec streams in sync
+			if (!reserveSpace()) return false;
+			ConnectionManager.LOG.finer(String.format("Sending message to %s:%s (%s)", socket.getInetAddress().toString(), socket.getPort(), pObj));
+			try {
+				long start = System.nanoTime();
+				frameBuffer.beginFrame(pType);
+				if (pType != MESSAGE_FRAME) frameBuffer.writeLong(pId);
+				codec.encode(pObj, frameBuffer);
+				metrics.messageOut(System.nanoTime() - start);
+			} catch (IOException e) {
+				e.printStackTrace();
+				this.onClose();
+				return false;
+			}
+			ByteBuffer frame = frameBuffer.endFrame();
+			try {
+				checkMessageSize(frame.remaining() - FRAME_HEADER_SIZE);
+			} catch (IOException e) {
+				ConnectionManager.LOG.warning(e.getMessage()+", not sent");
+				codec.discard();
+				return false;
+			}
+			if (compressOut) {
+				ByteBuffer compressed = compressor.compress(frame);
+				if (compressed != null) frame = compressed;
+			}
+			ByteBuffer copy = allocate(frame.remaining());
+			copy.put(frame).flip();
+			fireWritability(outbound.add(copy));
+			return true;
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a frame shared with other connections and makes sure it is written soon.
+	 * The frame is neither copied nor compressed, every connection gets its own view on the same bytes.
+	 * @param pFrame complete shared frame, not modified by any connection
+	 * @return false if the connection has been closed or the frame was rejected
+	 */
+	boolean sendShared(ByteBuffer pFrame) {
+		sendLock.lock();
+		try {
+			if (isClosed() || !reserveSpace()) return false;
+			metrics.messageOut();
+			fireWritability(outbound.add(pFrame));
+		} finally {
+			sendLock.unlock();
+		}
+		scheduleFlush();
+		return true;
+	}
+
+	/**
+	 * @return why a frame was not queued, a connection with space left rejected it for its size
+	 */
+	private String rejection() {
+		if (isClosed()) return "Connection closed";
+		return outbound.hasSpace() ? "Message exceeds the maximum frame size of "+MAX_FRAME_SIZE+" bytes" : "Send queue full";
+	}
+
+	/**
+	 * Applies the overflow policy if the outbound queue is full.
+	 * Must hold the send lock. A blocking sender releases it while waiting, so responses and other frames
+	 * are not stuck behind it, and checks the queue again once it holds the lock again.
+	 * @return true if the message may be queued
+	 */
+	private boolean reserveSpace() {
+		while (!outbound.hasSpace()) {
+			if (overflowPolicy != ConnectionOptions.OverflowPolicy.BLOCK) return applyOverflowPolicy();
+			if (!mayBlock()) {
+				ConnectionManager.LOG.warning("Send queue full on an event loop thread, cannot block");
+				return false;
+			}
+			sendLock.unlock();
+			try {
+				if (!outbound.awaitSpace()) return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				sendLock.lock();
+			}
+			if (isClosed()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Applies an overflow policy which does not wait.
+	 * @return true if the message may be queued
+	 */
+	private boolean applyOverflowPolicy() {
+		switch (overflowPolicy) {
+		case DROP_OLDEST:
+			ConnectionManager.LOG.fine("Send queue full, dropping oldest messages");
+			fireWritability(outbound.dropOldest());
+			return true;
+		case DISCONNECT:
+			ConnectionManager.LOG.warning(String.format("Send queue to %s:%s full, disconnecting slow receiver", socket.getInetAddress().toString(), socket.getPort()));
+			this.onClose();
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if the current thread may wait for the queue to drain.
+	 * @return false if the current thread is the one draining the queue
+	 */
+	boolean mayBlock() {
+		return true;
+	}
+
+	/**
+	 * Writes all queued frames before returning.
+	 * @throws IOException if the connection broke
+	 */
+	void flush() throws IOException {
+		writeLock.lock();
+		try {
+			writeQueued();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Makes sure the queued frames get written soon, without waiting for it.
+	 * The blocking transport starts a writer thread on first use.
+	 */
+	void scheduleFlush() {
+		synchronized (outbound) {
+			if (writerThread != null) return;
+			writerThread = options.newThread(new Runnable() {
+				public void run() {
+					writeLoop();
+				}
+			}, "TCPConnection-Writer-"+socket.getPort());
+		}
+		writerThread.start();
+	}
+
+	private void writeLoop() {
+		try {
+			while (outbound.awaitBatch(lingerNanos, batchBytes)) {
+				flush();
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (IOException e) {
+			if (!isClosed()) e.printStackTrace();
+			this.onClose();
+		}
+	}
+
+	/**
+	 * Writes the queue in batches with a single flush per batch.
+	 * Must hold the write lock.
+	 */
+	private void writeQueued() throws IOException {
+		int n;
+		while ((n = outbound.peek(writeBatch)) > 0) {
+			long bytes = 0;
+			for (int i = 0; i < n; i++) bytes += writeBatch[i].remaining();
+			if (channel != null) {
+				long remaining = bytes;
+				while (remaining > 0) {
+					remaining -= channel.write(writeBatch, 0, n);
+				}
+			} else {
+				for (int i = 0; i < n; i++) {
+					ByteBuffer frame = writeBatch[i];
+					out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+					frame.position(frame.limit());
+				}
+				out.flush();
+			}
+			metrics.bytesOut(bytes);
+			fireWritability(outbound.remove(n));
+			fillFromChannels();
+		}
+		Arrays.fill(writeBatch, null);
+	}
+
+	/**
+	 * Checks if producers should keep sending.
+	 * @return false while the outbound queue is above the high watermark
+	 */
+	public boolean isWritable() {
+		return outbound.isWritable();
+	}
+
+	/**
+	 * @return number of bytes waiting to be written
+	 */
+	public long getQueuedBytes() {
+		return outbound.bytes();
+	}
+
+	/**
+	 * @return number of messages waiting to be written
+	 */
+	public int getQueuedMessages() {
+		return outbound.size();
+	}
+
+	/**
+	 * @return traffic counters of this connection
+	 */
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
 	/**
 	 * Terminates connection.
 	 */
 	public void close() {
 		this.onClose();
 	}
-	
+
 	/* LISTENER */
-	List<IConnectionListener> listener = new ArrayList<IConnectionListener>();
-	
+	// copy on write, so listener can be changed while a message is dispatched
+	List<IConnectionListener> listener = new CopyOnWriteArrayList<IConnectionListener>();
+
 	/**
 	 * Adds a listener. All listener are notified on new message.
 	 * @param pCl
 	 */
-	public synchronized void addConnectionListener(IConnectionListener pCl) {
+	public void addConnectionListener(IConnectionListener pCl) {
 		listener.add(pCl);
 	}
 	/**
 	 * Removes connection listener from list. That listener wont receive notifications anymore.
 	 * @param pCl Listener to remove.
 	 */
-	public synchronized void removeConnectionListener(IConnectionListener pCl) {
+	public void removeConnectionListener(IConnectionListener pCl) {
 		listener.remove(pCl);
 	}
 	/**
 	 * Clears listener list. Every listener gets removed and wont receive notifications anymore.
 	 */
-	public synchronized void clearConnectionListener() {
+	public void clearConnectionListener() {
 		listener.clear();
 	}
-	
+
+	List<IWritabilityListener> writabilityListener = new CopyOnWriteArrayList<IWritabilityListener>();
+
+	/**
+	 * Adds a listener which is notified when the outbound queue crosses a watermark.
+	 * @param pWl
+	 */
+	public void addWritabilityListener(IWritabilityListener pWl) {
+		writabilityListener.add(pWl);
+	}
+	/**
+	 * Removes writability listener from list. That listener wont receive notifications anymore.
+	 * @param pWl Listener to remove.
+	 */
+	public void removeWritabilityListener(IWritabilityListener pWl) {
+		writabilityListener.remove(pWl);
+	}
+
+	void fireWritability(int pChange) {
+		if (pChange == OutboundQueue.UNCHANGED) return;
+		boolean writable = pChange == OutboundQueue.BECAME_WRITABLE;
+		for (IWritabilityListener wl: writabilityListener) {
+			wl.onWritabilityChanged(this, writable);
+		}
+	}
+
+	/**
+	 * Writes everything queued, including the fragments of the logical channels.
+	 * Messages sent meanwhile are written as well.
+	 * @param pDeadlineNanos System.nanoTime() at which to give up
+	 * @return true if everything was written or the connection closed, false if the time is up
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	boolean drain(long pDeadlineNanos) throws InterruptedException {
+		while (!isClosed()) {
+			OutboundJournal j = journal;
+			if (outbound.isEmpty() && channels.isEmpty() && (j == null || !j.hasPending(this))) return true;
+			fillFromChannels();
+			scheduleFlush();
+			if (!outbound.awaitEmpty(pDeadlineNanos)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the sending half of the connection after everything queued has been written,
+	 * so the remote host reads all messages and then the end of the stream.
+	 * A connection which could not be drained in time is closed.
+	 * @param pDeadlineNanos System.nanoTime() at which to give up
+	 * @return false if the connection had to be closed without writing everything
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	boolean shutdownOutput(long pDeadlineNanos) throws InterruptedException {
+		try {
+			if (drain(pDeadlineNanos)) {
+				if (!isClosed()) socket.shutdownOutput();
+				return true;
+			}
+		} catch (IOException e) {
+			// already broken
+		}
+		onClose();
+		return false;
+	}
+
+	/**
+	 * Waits for the remote host to close its side after shutdownOutput, then closes the connection.
+	 * @param pDeadlineNanos System.nanoTime() at which the connection is closed anyway
+	 * @return true if the remote host closed the connection in time
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	boolean awaitClose(long pDeadlineNanos) throws InterruptedException {
+		try {
+			return closeLatch.await(pDeadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} finally {
+			onClose();
+		}
+	}
+
+	/**
+	 * Waits for the reader and writer threads of a blocking connection after it was closed.
+	 * @param pDeadlineNanos System.nanoTime() at which to give up
+	 * @return false if a thread is still running
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	boolean awaitThreads(long pDeadlineNanos) throws InterruptedException {
+		return ConnectionManager.join(readerThread, pDeadlineNanos) && ConnectionManager.join(writerThread, pDeadlineNanos);
+	}
+
 	/**
 	 * Closes the connection.
 	 * By closing the socket the reading process gets interrupted and the thread gets terminated.
+	 * Listener are notified only once.
 	 */
-	private synchronized void onClose() {
+	void onClose() {
+		if (!closed.compareAndSet(false, true)) return;
+		metrics.getAggregate().connectionClosed();
+		HashedTimingWheel.Timeout check = idleCheck;
+		if (check != null) check.cancel();
+		closeLatch.countDown();
+		outbound.close();
+		requests.failAll(new IOException("Connection closed"));
+		transfers.failAll(new IOException("Connection closed"));
+		final List<LogicalChannel> open = channels.close();
+		if (compressor != null) compressor.close();
 		try {
-			socket.close();
+			closeTransport();
 		} catch (IOException e) {e.printStackTrace();
 		}
-		for (IConnectionListener cl: listener) {
-			cl.onClose();
-		}
+		// after the messages still waiting for dispatch
+		dispatch(new Runnable() {
+			public void run() {
+				for (IConnectionListener cl: listener) {
+					cl.onClose();
+				}
+				for (LogicalChannel ch: open) {
+					for (IConnectionListener cl: ch.listener) {
+						cl.onClose();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Releases the underlying socket.
+	 * @throws IOException if closing failed
+	 */
+	void closeTransport() throws IOException {
+		socket.close();
 	}
-	
+
 	/**
 	 * Checks if connection is closed.
 	 * @return true if the socket has been closed
 	 */
 	public boolean isClosed() {
-		return socket.isClosed();
+		return closed.get() || socket.isClosed();
 	}
 }
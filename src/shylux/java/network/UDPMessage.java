@@ -3,26 +3,106 @@ package shylux.java.network;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
 
+/**
+ * A datagram received by the UDPListener of a ConnectionManager.
+ * A datagram starts with the 16 byte id of the sending manager, followed by the payload.
+ * @author Lukas Knoepfel <shylux@gmail.com>
+ *
+ */
 public class UDPMessage {
-	DatagramPacket source;
-	String message;
+	/** Size of the sender id in front of the payload. */
+	public static final int HEADER_SIZE = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer payload;
+	private final InetSocketAddress sender;
+	private final long idMost;
+	private final long idLeast;
+	private String message;
 
 	public UDPMessage(DatagramPacket dp) {
-		source = dp;
-		message = new String(source.getData()).trim();
-		message = message.substring(ConnectionManager.ID.toString().length());
+		this(ByteBuffer.wrap(dp.getData(), dp.getOffset(), dp.getLength()), (InetSocketAddress) dp.getSocketAddress());
+	}
+
+	/**
+	 * @param pDatagram the whole datagram from its position to its limit, the payload is a view on it
+	 * @param pSender address the datagram came from
+	 */
+	UDPMessage(ByteBuffer pDatagram, InetSocketAddress pSender) {
+		if (pDatagram.remaining() < HEADER_SIZE) throw new IllegalArgumentException("Datagram too short");
+		int start = pDatagram.position();
+		idMost = pDatagram.getLong(start);
+		idLeast = pDatagram.getLong(start + 8);
+		ByteBuffer view = pDatagram.duplicate();
+		view.position(start + HEADER_SIZE);
+		payload = view.slice();
+		sender = pSender;
 	}
 
+	/**
+	 * Decodes the payload as UTF-8 text on first use.
+	 * @return the payload as text
+	 */
 	public String getMessage() {
+		if (message == null) {
+			ByteBuffer b = payload.duplicate();
+			if (b.hasArray()) {
+				message = new String(b.array(), b.arrayOffset() + b.position(), b.remaining(), UTF8);
+			} else {
+				message = UTF8.decode(b).toString();
+			}
+		}
 		return message;
 	}
-	
+
+	/**
+	 * Returns a read-only view on the payload without copying it.
+	 * Without dispatch executor the view points into the receive buffer of the listener,
+	 * so it is only valid during INetworkListener.onUDPMessage. Use getBytes() to keep the payload.
+	 * @return the payload from position to limit
+	 */
+	public ByteBuffer getBuffer() {
+		return payload.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return a copy of the payload
+	 */
+	public byte[] getBytes() {
+		byte[] b = new byte[payload.remaining()];
+		payload.duplicate().get(b);
+		return b;
+	}
+
+	/**
+	 * @return id of the ConnectionManager which sent the datagram
+	 */
+	public UUID getSenderId() {
+		return new UUID(idMost, idLeast);
+	}
+
+	/**
+	 * Checks the sender without creating a UUID.
+	 * @param pId id of a ConnectionManager
+	 * @return true if the datagram was sent by that manager
+	 */
+	public boolean isFrom(UUID pId) {
+		return pId.getMostSignificantBits() == idMost && pId.getLeastSignificantBits() == idLeast;
+	}
+
 	public InetAddress getInetAddress() {
-		return ((InetSocketAddress)source.getSocketAddress()).getAddress();
+		return sender.getAddress();
 	}
 	
 	public int getPort() {
-		return source.getPort();
+		return sender.getPort();
+	}
+
+	public InetSocketAddress getSocketAddress() {
+		return sender;
 	}
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import shylux.java.network.TCPConnection;
 import shylux.java.network.ConnectionManager;
+import shylux.java.network.ConnectionOptions;
 import shylux.java.network.IConnectionListener;
 
 /**
@@ -35,7 +36,9 @@ public class AliceMain implements IConnectionListener {
 	
 	public AliceMain() {
 		try {
-			connToBob = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT);
+			ConnectionOptions options = new ConnectionOptions();
+			ExampleMessage.registerClasses(options.getClassRegistry());
+			connToBob = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT, options);
 		} catch (IOException e) {
 			e.printStackTrace();
 			return;
@@ -13,6 +13,7 @@ public class Bob implements IConnectionListener, INetworkListener {
 	
 	public Bob() {
 		manager = new ConnectionManager();
+		ExampleMessage.registerClasses(manager.getOptions().getClassRegistry());
 		manager.addNetworkListener(this);
 	}
 	
@@ -2,6 +2,8 @@ package shylux.java.network.example;
 
 import java.io.Serializable;
 
+import shylux.java.network.ClassRegistry;
+
 public class ExampleMessage implements Serializable {
 
 	enum State {OVER, OUT}
@@ -20,4 +22,14 @@ public class ExampleMessage implements Serializable {
 	public State getState() {
 		return state;
 	}
+	
+	/**
+	 * Registers the classes of the example. Both sides call this before connecting,
+	 * so the classes get the same ids.
+	 * @param pRegistry registry of the connection options
+	 */
+	public static void registerClasses(ClassRegistry pRegistry) {
+		pRegistry.register(ExampleMessage.class);
+		pRegistry.register(State.class);
+	}
 }
@@ -0,0 +1,157 @@
+package shylux.java.network.junit;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import shylux.java.network.BinaryCodec;
+import shylux.java.network.ClassRegistry;
+import shylux.java.network.IBinaryMessage;
+import shylux.java.network.IMessageCodec;
+import shylux.java.network.SerializationCodec;
+
+public class CodecTest {
+	public static class Position implements IBinaryMessage {
+		private static final long serialVersionUID = 1L;
+		int x, y;
+		String name;
+		
+		public Position() {}
+		public Position(int pX, int pY, String pName) {
+			x = pX;
+			y = pY;
+			name = pName;
+		}
+		
+		public void writeTo(DataOutput pOut) throws IOException {
+			pOut.writeInt(x);
+			pOut.writeInt(y);
+			pOut.writeUTF(name);
+		}
+		
+		public void readFrom(DataInput pIn) throws IOException {
+			x = pIn.readInt();
+			y = pIn.readInt();
+			name = pIn.readUTF();
+		}
+	}
+	
+	public static class Point implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int x, y;
+		
+		public Point(int pX, int pY) {
+			x = pX;
+			y = pY;
+		}
+	}
+	
+	/**
+	 * Encodes every message into its own frame and decodes them in order.
+	 */
+	private Object[] roundTrip(IMessageCodec pCodec, Serializable... pMessages) throws Exception {
+		return roundTrip(pCodec, null, pMessages);
+	}
+	
+	private Object[] roundTrip(IMessageCodec pCodec, ClassRegistry pRegistry, Serializable... pMessages) throws Exception {
+		IMessageCodec encoder = pCodec.newInstance(pRegistry);
+		IMessageCodec decoder = pCodec.newInstance(pRegistry);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Object[] result = new Object[pMessages.length];
+		for (int i = 0; i < pMessages.length; i++) {
+			out.reset();
+			encoder.encode(pMessages[i], out);
+			ByteBuffer frame = ByteBuffer.wrap(out.toByteArray());
+			result[i] = decoder.decode(frame);
+			assertFalse("frame not fully consumed", frame.hasRemaining());
+		}
+		return result;
+	}
+	
+	@Test
+	public void testSerializationCodec() throws Exception {
+		ArrayList<String> list = new ArrayList<String>(Arrays.asList("a", "b"));
+		Object[] result = roundTrip(new SerializationCodec(), "Test", 42, list, list);
+		assertEquals("Test", result[0]);
+		assertEquals(42, result[1]);
+		assertEquals(list, result[2]);
+		// back reference to the first list
+		assertSame(result[2], result[3]);
+	}
+	
+	@Test
+	public void testSerializationCodecReset() throws Exception {
+		ArrayList<String> list = new ArrayList<String>(Arrays.asList("a", "b"));
+		Object[] result = roundTrip(new SerializationCodec(SerializationCodec.ResetPolicy.ALWAYS), list, list);
+		assertEquals(list, result[1]);
+		// the second message is a fresh copy
+		assertFalse(result[0] == result[1]);
+		
+		SerializationCodec codec = new SerializationCodec(SerializationCodec.ResetPolicy.everyMessages(2));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.encode(list, out);
+		codec.encode("x", out);
+		assertEquals(2, codec.getMessagesSinceReset());
+		assertTrue(codec.getHandleCount() >= 4);
+		codec.encode("y", out);
+		assertEquals(1, codec.getResetCount());
+		assertEquals(1, codec.getHandleCount());
+	}
+	
+	@Test
+	public void testBinaryCodec() throws Exception {
+		ArrayList<String> list = new ArrayList<String>(Arrays.asList("a", "b"));
+		Object[] result = roundTrip(new BinaryCodec(), "Test \u00e4", 42, 7L, true, 1.5, new byte[] {1, 2, 3}, null,
+				new Position(3, 4, "home"), list);
+		assertEquals("Test \u00e4", result[0]);
+		assertEquals(42, result[1]);
+		assertEquals(7L, result[2]);
+		assertEquals(true, result[3]);
+		assertEquals(1.5, result[4]);
+		assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) result[5]);
+		assertNull(result[6]);
+		Position p = (Position) result[7];
+		assertEquals(3, p.x);
+		assertEquals(4, p.y);
+		assertEquals("home", p.name);
+		assertEquals(list, result[8]);
+	}
+	
+	private int encodedSize(IMessageCodec pCodec, Serializable pMessage) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		pCodec.encode(pMessage, out);
+		return out.size();
+	}
+	
+	@Test
+	public void testClassRegistry() throws Exception {
+		ClassRegistry registry = new ClassRegistry();
+		assertEquals(0, registry.register(Point.class));
+		registry.register(10, Position.class);
+		assertEquals(0, registry.register(Point.class));
+		assertEquals(10, registry.getId(Position.class));
+		assertSame(Point.class, registry.getRegisteredClass(0));
+		assertEquals(-1, registry.getId(String.class));
+		
+		Object[] result = roundTrip(new SerializationCodec(), registry, new Point(1, 2), "x", new Point(3, 4));
+		assertEquals(3, ((Point) result[2]).x);
+		result = roundTrip(new BinaryCodec(), registry, new Position(5, 6, "pos"), new Point(7, 8));
+		assertEquals("pos", ((Position) result[0]).name);
+		assertEquals(8, ((Point) result[1]).y);
+		
+		// ids are shorter than class descriptors and names
+		Point p = new Point(1, 2);
+		assertTrue(encodedSize(new SerializationCodec().newInstance(registry), p) < encodedSize(new SerializationCodec().newInstance(), p) - 20);
+		Position pos = new Position(1, 2, "a");
+		assertTrue(encodedSize(new BinaryCodec().newInstance(registry), pos) < encodedSize(new BinaryCodec().newInstance(), pos) - 20);
+	}
+}
@@ -2,20 +2,75 @@ package shylux.java.network.junit;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 
+import javax.management.ObjectName;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import shylux.java.network.BinaryCodec;
+import shylux.java.network.BroadcastSender;
+import shylux.java.network.ConnectionPool;
 import shylux.java.network.TCPConnection;
+import shylux.java.network.BufferPool;
 import shylux.java.network.ConnectionManager;
+import shylux.java.network.ConnectionOptions;
+import shylux.java.network.DiscoveryService;
+import shylux.java.network.IDiscoveryListener;
+import shylux.java.network.Peer;
 import shylux.java.network.IConnectionListener;
+import shylux.java.network.IRequestHandler;
+import shylux.java.network.ITransferHandler;
 import shylux.java.network.INetworkListener;
+import shylux.java.network.LogicalChannel;
+import shylux.java.network.IMetricsSink;
+import shylux.java.network.NetworkMetrics;
+import shylux.java.network.OutboundJournal;
+import shylux.java.network.IWritabilityListener;
+import shylux.java.network.RequestFailedException;
 import shylux.java.network.UDPMessage;
 
 public class NetworkTest {
@@ -79,12 +134,6 @@ public class NetworkTest {
 		handler.setLevel(Level.ALL);
 		ConnectionManager.LOG.addHandler(handler);
 		manager = new ConnectionManager();
-		
-		// give him time to start - TODO maybe move to manager?
-		// btw spent half an hour on this shit -.-
-		try {
-			Thread.sleep(200);
-		} catch (InterruptedException e) {e.printStackTrace();}
 	}
 	
 	@After
@@ -97,6 +146,32 @@ public class NetworkTest {
         this.doConnectAndClose();
 	}
 	
+	@Test
+	public void testEphemeralPort() throws IOException {
+		ConnectionManager ephemeral = ConnectionManager.start(0, new ConnectionOptions().setJmxEnabled(false));
+		try {
+			assertTrue(ephemeral.getPort() > 0);
+			assertNull(ephemeral.getBindException());
+			// listening as soon as it is started
+			ConnectionManager.connect("localhost", ephemeral.getPort()).close();
+		} finally {
+			ephemeral.stop();
+		}
+	}
+	
+	@Test
+	public void testBindFailure() {
+		try {
+			ConnectionManager.start(ConnectionManager.DEFAULT_PORT, new ConnectionOptions().setUseUDP(false).setJmxEnabled(false));
+			fail("port is already in use");
+		} catch (IOException e) {
+			// expected
+		}
+		ConnectionManager clash = new ConnectionManager(ConnectionManager.DEFAULT_PORT, new ConnectionOptions().setUseUDP(false).setJmxEnabled(false));
+		assertNotNull(clash.getBindException());
+		clash.stop();
+	}
+	
 	@Test
 	public void testManagerReturnsNewConnection() throws IOException {
 		ConnectionCounter counter = new ConnectionCounter();
@@ -159,5 +234,1238 @@ public class NetworkTest {
 		
 		assertEquals("Blub", mr2.lastMessage.toString());
 	}
+	
+	@Test
+	public void testAsyncSendKeepsOrder() throws IOException {
+		SingleConnectionProvider scp = new SingleConnectionProvider();
+		manager.addNetworkListener(scp);
+		TCPConnection conn = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT,
+				new ConnectionOptions().setSendLinger(5));
+		try {
+			Thread.sleep(200);
+		} catch (InterruptedException e) {e.printStackTrace();}
+		
+		final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+		scp.conn.addConnectionListener(new IConnectionListener() {
+			public void onMessage(Object o) {
+				received.add(o);
+			}
+			public void onClose() {}
+		});
+		
+		for (int i = 0; i < 1000; i++) {
+			conn.sendAsync(i);
+		}
+		conn.sendMessage(1000);
+		try {
+			Thread.sleep(200);
+		} catch (InterruptedException e) {e.printStackTrace();}
+		
+		assertEquals(1001, received.size());
+		for (int i = 0; i <= 1000; i++) {
+			assertEquals(i, received.get(i));
+		}
+		conn.close();
+	}
+	
+	@Test
+	public void testSlowReceiver() throws IOException {
+		// accepts but never reads
+		ServerSocket server = new ServerSocket();
+		// a small window, so the kernel buffers cannot take the whole queue
+		server.setReceiveBufferSize(8*1024);
+		server.bind(new InetSocketAddress(ConnectionManager.DEFAULT_PORT+3));
+		TCPConnection conn = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT+3,
+				new ConnectionOptions().setSendQueueLimit(1024*1024, 1000).setWatermarks(64*1024, 256*1024)
+					.setOverflowPolicy(ConnectionOptions.OverflowPolicy.FAIL_FAST));
+		Socket peer = server.accept();
+		final List<Boolean> changes = Collections.synchronizedList(new ArrayList<Boolean>());
+		conn.addWritabilityListener(new IWritabilityListener() {
+			public void onWritabilityChanged(TCPConnection pCon, boolean pWritable) {
+				changes.add(pWritable);
+			}
+		});
+		try {
+			int sent = 0;
+			// a new array each time, a resent one would only be a back reference
+			while (conn.sendAsync(new byte[16*1024])) {
+				sent++;
+				assertTrue("queue is not limited", sent < 10000);
+			}
+			// rejected once the queue held the limit, the socket buffer may have taken more and the queue may drain afterwards
+			assertTrue(sent >= 1024*1024 / (16*1024));
+			assertEquals(Boolean.FALSE, changes.get(0));
+			assertFalse(conn.isClosed());
+		} finally {
+			conn.close();
+			peer.close();
+			server.close();
+		}
+	}
+	
+	/**
+	 * Accepts connections but never reads from them.
+	 */
+	private ServerSocket startQuietServer() throws IOException {
+		ServerSocket server = new ServerSocket();
+		// a small window, so the kernel buffers cannot take the whole queue
+		server.setReceiveBufferSize(8*1024);
+		server.bind(new InetSocketAddress(0));
+		return server;
+	}
+
+	/**
+	 * Starts reading everything the peer received, the frames are thrown away.
+	 */
+	private void drain(final Socket pPeer) {
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[64*1024];
+				try {
+					while (pPeer.getInputStream().read(buffer) >= 0);
+				} catch (IOException e) {}
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void awaitQueued(TCPConnection pConn, long pBytes) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pConn.getQueuedBytes() < pBytes) {
+			assertTrue("queue did not fill up", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testBlockingOverflow() throws Exception {
+		ServerSocket server = startQuietServer();
+		final TCPConnection conn = ConnectionManager.connect("localhost", server.getLocalPort(),
+				new ConnectionOptions().setSendQueueLimit(64*1024, 1000)
+					.setOverflowPolicy(ConnectionOptions.OverflowPolicy.BLOCK));
+		Socket peer = server.accept();
+		ExecutorService senders = Executors.newCachedThreadPool();
+		try {
+			Future<?> producer = senders.submit(new Runnable() {
+				public void run() {
+					// more than the kernel buffers take
+					for (int i = 0; i < 1000; i++) {
+						assertTrue(conn.sendAsync(new byte[16*1024]));
+					}
+				}
+			});
+			awaitQueued(conn, 64*1024);
+			// the producer is waiting for space now
+			Thread.sleep(100);
+			assertFalse(producer.isDone());
+
+			// control frames neither wait for the producer nor for space
+			Future<CompletableFuture<Long>> ping = senders.submit(new Callable<CompletableFuture<Long>>() {
+				public CompletableFuture<Long> call() {
+					return conn.ping(0);
+				}
+			});
+			ping.get(1, TimeUnit.SECONDS);
+			// a request waits for space like any other message
+			Future<CompletableFuture<Object>> request = senders.submit(new Callable<CompletableFuture<Object>>() {
+				public CompletableFuture<Object> call() {
+					return conn.request("no handler", 300);
+				}
+			});
+
+			drain(peer);
+			producer.get(5, TimeUnit.SECONDS);
+			try {
+				// the quiet peer never answers
+				request.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+				fail("request should have timed out");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof TimeoutException);
+			}
+			assertFalse(conn.isClosed());
+		} finally {
+			senders.shutdownNow();
+			conn.close();
+			peer.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testDropOldestOverflow() throws Exception {
+		ServerSocket server = startQuietServer();
+		TCPConnection conn = ConnectionManager.connect("localhost", server.getLocalPort(),
+				new ConnectionOptions().setSendQueueLimit(64*1024, 1000).setCodec(new BinaryCodec())
+					.setOverflowPolicy(ConnectionOptions.OverflowPolicy.DROP_OLDEST));
+		Socket peer = server.accept();
+		try {
+			int sent = 100;
+			for (int i = 0; i < sent; i++) {
+				byte[] payload = new byte[16*1024];
+				payload[0] = (byte) i;
+				assertTrue(conn.sendAsync(payload));
+				assertTrue(conn.getQueuedBytes() <= 64*1024 + 16*1024 + 64);
+			}
+			assertFalse(conn.isClosed());
+
+			DataInputStream in = new DataInputStream(peer.getInputStream());
+			List<Integer> received = new ArrayList<Integer>();
+			while (received.isEmpty() || received.get(received.size()-1) != sent - 1) {
+				byte[] frame = new byte[in.readInt()];
+				in.readFully(frame);
+				// a message (type 0) is followed by the codec tag and the length of the payload
+				if (frame[0] == 0) received.add(frame[1 + 1 + 4] & 0xff);
+			}
+			assertTrue("nothing was dropped", received.size() < sent);
+			for (int i = 1; i < received.size(); i++) {
+				assertTrue(received.get(i-1) < received.get(i));
+			}
+		} finally {
+			conn.close();
+			peer.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testDisconnectOverflow() throws Exception {
+		ServerSocket server = startQuietServer();
+		TCPConnection conn = ConnectionManager.connect("localhost", server.getLocalPort(),
+				new ConnectionOptions().setSendQueueLimit(64*1024, 1000)
+					.setOverflowPolicy(ConnectionOptions.OverflowPolicy.DISCONNECT));
+		Socket peer = server.accept();
+		try {
+			int sent = 0;
+			while (conn.sendAsync(new byte[16*1024])) {
+				sent++;
+				assertTrue("queue is not limited", sent < 10000);
+			}
+			assertTrue(conn.isClosed());
+		} finally {
+			conn.close();
+			peer.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testWatermarks() throws Exception {
+		ServerSocket server = startQuietServer();
+		TCPConnection conn = ConnectionManager.connect("localhost", server.getLocalPort(),
+				new ConnectionOptions().setWatermarks(16*1024, 64*1024));
+		Socket peer = server.accept();
+		final List<Boolean> changes = Collections.synchronizedList(new ArrayList<Boolean>());
+		final CountDownLatch writable = new CountDownLatch(1);
+		conn.addWritabilityListener(new IWritabilityListener() {
+			public void onWritabilityChanged(TCPConnection pCon, boolean pWritable) {
+				changes.add(pWritable);
+				if (pWritable) writable.countDown();
+			}
+		});
+		try {
+			int sent = 0;
+			while (conn.isWritable()) {
+				assertTrue(conn.sendAsync(new byte[16*1024]));
+				assertTrue("never crossed the high watermark", ++sent < 10000);
+			}
+			assertEquals(Arrays.asList(Boolean.FALSE), new ArrayList<Boolean>(changes));
+
+			drain(peer);
+			assertTrue(writable.await(5, TimeUnit.SECONDS));
+			assertTrue(conn.isWritable());
+			assertEquals(Arrays.asList(Boolean.FALSE, Boolean.TRUE), new ArrayList<Boolean>(changes));
+		} finally {
+			conn.close();
+			peer.close();
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testRequestResponse() throws Exception {
+		SingleConnectionProvider scp = new SingleConnectionProvider();
+		manager.addNetworkListener(scp);
+		TCPConnection conn = ConnectionManager.connect("localhost");
+		try {
+			Thread.sleep(200);
+		} catch (InterruptedException e) {e.printStackTrace();}
+		
+		scp.conn.setRequestHandler(new IRequestHandler() {
+			public Serializable onRequest(TCPConnection pCon, Object pRequest) throws Exception {
+				if ("fail".equals(pRequest)) throw new IllegalStateException("failed on purpose");
+				if ("ignore".equals(pRequest)) Thread.sleep(300);
+				return ((Integer) pRequest) * 2;
+			}
+		});
+		
+		// pipelined, all requests are sent before the first response arrives
+		List<CompletableFuture<Object>> responses = new ArrayList<CompletableFuture<Object>>();
+		for (int i = 0; i < 100; i++) {
+			responses.add(conn.request(i));
+		}
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i*2, responses.get(i).get(2, TimeUnit.SECONDS));
+		}
+		
+		try {
+			conn.request("fail").get(2, TimeUnit.SECONDS);
+			fail("request should have failed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RequestFailedException);
+		}
+		
+		try {
+			conn.request("ignore", 50).get(2, TimeUnit.SECONDS);
+			fail("request should have timed out");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		
+		CompletableFuture<Object> pending = conn.request("ignore", 0);
+		conn.close();
+		assertTrue(pending.isCompletedExceptionally());
+		assertEquals(0, conn.getPendingRequests());
+	}
+	
+	@Test
+	public void testDispatchExecutor() throws IOException {
+		SingleConnectionProvider scp = new SingleConnectionProvider();
+		manager.addNetworkListener(scp);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		TCPConnection conn = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT,
+				new ConnectionOptions().setDispatchExecutor(executor));
+		try {
+			Thread.sleep(200);
+		} catch (InterruptedException e) {e.printStackTrace();}
+		
+		final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+		final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+		final TCPConnection client = conn;
+		conn.addConnectionListener(new IConnectionListener() {
+			public void onMessage(Object o) {
+				received.add(o);
+				threads.add(Thread.currentThread().getName());
+				// changing the listener while notifying must be safe
+				IConnectionListener noop = new MessageRegister();
+				client.addConnectionListener(noop);
+				client.removeConnectionListener(noop);
+			}
+			public void onClose() {}
+		});
+		
+		for (int i = 0; i < 500; i++) {
+			scp.conn.sendAsync(i);
+		}
+		try {
+			Thread.sleep(500);
+		} catch (InterruptedException e) {e.printStackTrace();}
+		
+		assertEquals(500, received.size());
+		for (int i = 0; i < 500; i++) {
+			assertEquals(i, received.get(i));
+		}
+		assertFalse(threads.get(0).startsWith("TCPConnection"));
+		conn.close();
+		executor.shutdown();
+	}
+	
+	@Test
+	public void testBufferPoolReuse() throws Exception {
+		SingleConnectionProvider scp = new SingleConnectionProvider();
+		manager.addNetworkListener(scp);
+		TCPConnection conn = ConnectionManager.connect("localhost");
+		final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+		conn.addConnectionListener(new IConnectionListener() {
+			public void onMessage(Object o) {
+				received.add(o);
+			}
+			public void onClose() {}
+		});
+		try {
+			Thread.sleep(200);
+		} catch (InterruptedException e) {e.printStackTrace();}
+		
+		BufferPool pool = ConnectionManager.getBufferPool();
+		long acquired = pool.getAcquireCount();
+		long allocated = pool.getAllocationCount();
+		for (int i = 0; i < 1000; i++) {
+			scp.conn.sendMessage("pooled "+i);
+		}
+		try {
+			Thread.sleep(500);
+		} catch (InterruptedException e) {e.printStackTrace();}
+		
+		assertEquals(1000, received.size());
+		// written frames go back to the pool and are reused by the next ones
+		assertTrue(pool.getAcquireCount() - acquired >= 1000);
+		assertTrue(pool.getAllocationCount() - allocated < 100);
+		conn.close();
+	}
+	
+	@Test
+	public void testCloseFromListenerOnNIO() throws Exception {
+		ConnectionManager nioManager = ConnectionManager.start(0, new ConnectionOptions().setUseUDP(false).setJmxEnabled(false)
+				.setUseNIO(true).setWorkerThreads(1));
+		try {
+			final List<TCPConnection> accepted = Collections.synchronizedList(new ArrayList<TCPConnection>());
+			final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+			final StringBuilder big = new StringBuilder();
+			while (big.length() < 5000) big.append("reply ");
+			nioManager.addNetworkListener(new INetworkListener() {
+				public void onConnection(final TCPConnection pCon) {
+					if (!accepted.isEmpty()) {
+						accepted.add(pCon);
+						return;
+					}
+					accepted.add(pCon);
+					pCon.addConnectionListener(new IConnectionListener() {
+						public void onMessage(Object o) {
+							received.add(o);
+							if (received.size() > 1) return;
+							// closes while the other frames of the read are still parsed,
+							// the reply is encoded on the same loop thread
+							pCon.close();
+							accepted.get(1).sendAsync(big.toString());
+						}
+						public void onClose() {}
+					});
+				}
+				public void onUDPMessage(UDPMessage pMsg) {}
+			});
+			// the frames are written in one batch and arrive in one read
+			TCPConnection closing = ConnectionManager.connect("localhost", nioManager.getPort(), new ConnectionOptions().setSendLinger(100));
+			Thread.sleep(200);
+			TCPConnection other = ConnectionManager.connect("localhost", nioManager.getPort());
+			MessageRegister reply = new MessageRegister();
+			other.addConnectionListener(reply);
+			Thread.sleep(200);
+			assertEquals(2, accepted.size());
+			
+			for (int i = 0; i < 5; i++) {
+				closing.sendAsync("frame "+i);
+			}
+			Thread.sleep(500);
+			
+			assertEquals(5, received.size());
+			for (int i = 0; i < 5; i++) {
+				assertEquals("frame "+i, received.get(i));
+			}
+			assertEquals(big.toString(), reply.lastMessage);
+			closing.close();
+			other.close();
+		} finally {
+			nioManager.stop();
+		}
+	}
+	
+	/**
+	 * Starts a manager with three worker loops which records the loop thread serving each client, by the message the client sent.
+	 */
+	private ConnectionManager startWorkerGroup(ConnectionOptions.Balancing pBalancing, final Map<Object, String> pLoops) throws IOException {
+		ConnectionManager nioManager = ConnectionManager.start(0, new ConnectionOptions().setUseUDP(false).setJmxEnabled(false)
+				.setUseNIO(true).setWorkerThreads(3).setBalancing(pBalancing));
+		nioManager.addNetworkListener(new INetworkListener() {
+			public void onConnection(TCPConnection pCon) {
+				pCon.addConnectionListener(new IConnectionListener() {
+					public void onMessage(Object o) {
+						// listeners run on the loop serving the connection
+						pLoops.put(o, Thread.currentThread().getName());
+					}
+					public void onClose() {}
+				});
+			}
+			public void onUDPMessage(UDPMessage pMsg) {}
+		});
+		return nioManager;
+	}
+	
+	@Test
+	public void testRoundRobinWorkers() throws Exception {
+		Map<Object, String> loops = new ConcurrentHashMap<Object, String>();
+		ConnectionManager nioManager = startWorkerGroup(ConnectionOptions.Balancing.ROUND_ROBIN, loops);
+		try {
+			List<TCPConnection> clients = new ArrayList<TCPConnection>();
+			for (int i = 0; i < 6; i++) {
+				TCPConnection conn = ConnectionManager.connect("localhost", nioManager.getPort());
+				conn.sendMessage(i);
+				clients.add(conn);
+				Thread.sleep(50);
+			}
+			Thread.sleep(200);
+			
+			assertEquals(6, loops.size());
+			assertEquals(3, new HashSet<String>(loops.values()).size());
+			for (int i = 0; i < 3; i++) {
+				// every loop gets the next connection in turn
+				assertEquals(loops.get(i), loops.get(i + 3));
+			}
+			for (TCPConnection conn: clients) conn.close();
+		} finally {
+			nioManager.stop();
+		}
+	}
+	
+	@Test
+	public void testLeastLoadedWorkers() throws Exception {
+		Map<Object, String> loops = new ConcurrentHashMap<Object, String>();
+		ConnectionManager nioManager = startWorkerGroup(ConnectionOptions.Balancing.LEAST_LOADED, loops);
+		try {
+			List<TCPConnection> clients = new ArrayList<TCPConnection>();
+			for (int i = 0; i < 3; i++) {
+				TCPConnection conn = ConnectionManager.connect("localhost", nioManager.getPort());
+				conn.sendMessage(i);
+				clients.add(conn);
+				Thread.sleep(50);
+			}
+			Thread.sleep(200);
+			assertEquals(3, new HashSet<String>(loops.values()).size());
+			
+			// the loop which lost its connection is the least loaded one
+			clients.get(1).close();
+			Thread.sleep(200);
+			TCPConnection conn = ConnectionManager.connect("localhost", nioManager.getPort());
+			conn.sendMessage("new");
+			clients.add(conn);
+			Thread.sleep(200);
+			assertEquals(loops.get(1), loops.get("new"));
+			for (TCPConnection c: clients) c.close();
+		} finally {
+			nioManager.stop();
+		}
+	}
+	
+	@Test
+	public void testListenerExceptionOnNIO() throws Exception {
+		ConnectionManager nioManager = ConnectionManager.start(0, new ConnectionOptions().setUseUDP(false).setJmxEnabled(false)
+				.setUseNIO(true).setWorkerThreads(1));
+		try {
+			final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+			nioManager.addNetworkListener(new INetworkListener() {
+				public void onConnection(TCPConnection pCon) {
+					pCon.addConnectionListener(new IConnectionListener() {
+						public void onMessage(Object o) {
+							if ("boom".equals(o)) throw new IllegalStateException("listener failed");
+							received.add(o);
+						}
+						public void onClose() {}
+					});
+				}
+				public void onUDPMessage(UDPMessage pMsg) {}
+			});
+			TCPConnection failing = ConnectionManager.connect("localhost", nioManager.getPort());
+			TCPConnection healthy = ConnectionManager.connect("localhost", nioManager.getPort());
+			Thread.sleep(200);
+			
+			// both connections are served by the single worker loop
+			failing.sendMessage("boom");
+			Thread.sleep(200);
+			healthy.sendMessage("still served");
+			Thread.sleep(200);
+			
+			assertTrue(failing.isClosed());
+			assertEquals(Arrays.<Object>asList("still served"), received);
+			assertEquals(1, nioManager.getConnections().size());
+			healthy.close();
+		} finally {
+			nioManager.stop();
+		}
+	}
+	
+	@Test
+	public void testMessageTooBig() throws Exception {
+		SingleConnectionProvider scp = new SingleConnectionProvider();
+		manager.addNetworkListener(scp);
+		TCPConnection conn = ConnectionManager.connect("localhost");
+		final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+		Thread.sleep(200);
+		scp.conn.addConnectionListener(new IConnectionListener() {
+			public void onMessage(Object o) {
+				received.add(o);
+			}
+			public void onClose() {}
+		});
+		
+		byte[] big = new byte[TCPConnection.MAX_FRAME_SIZE + 1];
+		// rejected on the first message, which starts the codec stream, and on a later one
+		conn.sendMessage(big);
+		conn.sendMessage("small");
+		conn.sendMessage(big);
+		conn.sendMessage("after");
+		try {
+			conn.request(big).get(2, TimeUnit.SECONDS);
+			fail("Request should have been rejected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause().getMessage().contains("maximum frame size"));
+		}
+		Thread.sleep(300);
+		
+		assertFalse(conn.isClosed());
+		assertFalse(scp.conn.isClosed());
+		assertEquals(Arrays.<Object>asList("small", "after"), received);
+		conn.close();
+	}
+	
+	@Test
+	public void testSendFile() throws Exception {
+		SingleConnectionProvider scp = new SingleConnectionProvider();
+		manager.addNetworkListener(scp);
+		TCPConnection conn = ConnectionManager.connect("localhost");
+		try {
+			Thread.sleep(200);
+		} catch (InterruptedException e) {e.printStackTrace();}
+		
+		// not a multiple of the chunk size
+		byte[] data = new byte[3*1000*1000+7];
+		new Random(42).nextBytes(data);
+		Path source = Files.createTempFile("transfer", ".bin");
+		final Path target = Files.createTempFile("transfer", ".out");
+		Files.write(source, data);
+		
+		final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+		final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		final CountDownLatch done = new CountDownLatch(2);
+		scp.conn.addConnectionListener(new IConnectionListener() {
+			public void onMessage(Object o) {
+				received.add(o);
+			}
+			public void onClose() {}
+		});
+		scp.conn.setTransferHandler(new ITransferHandler() {
+			public WritableByteChannel onTransferStart(TCPConnection pCon, String pName, long pSize) throws IOException {
+				if (pName.equals("stream")) return Channels.newChannel(streamed);
+				return FileChannel.open(target, StandardOpenOption.WRITE);
+			}
+			public void onTransferComplete(TCPConnection pCon, String pName, long pBytes) {
+				received.add(pName);
+				done.countDown();
+			}
+			public void onTransferFailed(TCPConnection pCon, String pName, IOException pError) {
+				pError.printStackTrace();
+			}
+		});
+		
+		try {
+			conn.sendMessage("before");
+			assertEquals(data.length, conn.sendFile(source));
+			conn.sendMessage("between");
+			assertEquals(data.length, conn.sendStream("stream", new ByteArrayInputStream(data)));
+			conn.sendMessage("after");
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			
+			assertArrayEquals(data, Files.readAllBytes(target));
+			assertArrayEquals(data, streamed.toByteArray());
+			// transfers keep their place between the messages
+			assertEquals(Arrays.asList("before", source.getFileName().toString(), "between", "stream"), received.subList(0, 4));
+		} finally {
+			conn.close();
+			Files.delete(source);
+			Files.delete(target);
+		}
+	}
+	
+	@Test
+	public void testSendFileOnNIO() throws Exception {
+		SingleConnectionProvider scp = new SingleConnectionProvider();
+		manager.addNetworkListener(scp);
+		ConnectionManager nioManager = ConnectionManager.start(0, new ConnectionOptions().setUseUDP(false).setJmxEnabled(false)
+				.setUseNIO(true).setWorkerThreads(1));
+		byte[] data = new byte[8*1000*1000+7];
+		new Random(42).nextBytes(data);
+		Path source = Files.createTempFile("transfer", ".bin");
+		Files.write(source, data);
+		try {
+			TCPConnection conn = nioManager.open("localhost", ConnectionManager.DEFAULT_PORT);
+			Thread.sleep(200);
+			final List<ByteArrayOutputStream> sinks = Collections.synchronizedList(new ArrayList<ByteArrayOutputStream>());
+			final CountDownLatch done = new CountDownLatch(2);
+			scp.conn.setTransferHandler(new ITransferHandler() {
+				public WritableByteChannel onTransferStart(TCPConnection pCon, String pName, long pSize) throws IOException {
+					ByteArrayOutputStream sink = new ByteArrayOutputStream();
+					sinks.add(sink);
+					return Channels.newChannel(sink);
+				}
+				public void onTransferComplete(TCPConnection pCon, String pName, long pBytes) {
+					done.countDown();
+				}
+				public void onTransferFailed(TCPConnection pCon, String pName, IOException pError) {
+					pError.printStackTrace();
+				}
+			});
+
+			BufferPool pool = ConnectionManager.getBufferPool();
+			long acquired = pool.getAcquireCount();
+			long allocated = pool.getAllocationCount();
+			assertEquals(data.length, conn.sendFile(source));
+			assertEquals(data.length, conn.sendStream("stream", new ByteArrayInputStream(data)));
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+
+			assertArrayEquals(data, sinks.get(0).toByteArray());
+			assertArrayEquals(data, sinks.get(1).toByteArray());
+			// the chunks fit a size class of the pool, so written chunks are reused by the next ones
+			assertTrue(pool.getAcquireCount() - acquired >= 2 * data.length / (64*1024));
+			assertTrue(pool.getAllocationCount() - allocated < 20);
+			conn.close();
+		} finally {
+			nioManager.stop();
+			Files.delete(source);
+		}
+	}
+	
+	@Test
+	public void testCompression() throws Exception {
+		ConnectionOptions options = new ConnectionOptions().setUseUDP(false)
+				.setCompression(ConnectionOptions.Compression.DEFLATE, 512);
+		ConnectionManager compressingManager = new ConnectionManager(ConnectionManager.DEFAULT_PORT+4, options);
+		SingleConnectionProvider scp = new SingleConnectionProvider();
+		compressingManager.addNetworkListener(scp);
+		try {
+			TCPConnection conn = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT+4, options);
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {e.printStackTrace();}
+			assertTrue(conn.isCompressing());
+			assertTrue(scp.conn.isCompressing());
+			MessageRegister register = new MessageRegister();
+			scp.conn.addConnectionListener(register);
+			
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 1000; i++) sb.append("repetitive payload ").append(i % 10);
+			conn.sendMessage(sb.toString());
+			// below the threshold
+			conn.sendMessage("small");
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {e.printStackTrace();}
+			
+			assertEquals("small", register.lastMessage);
+			assertEquals(1, conn.getCompressionStats().getFramesCompressed());
+			assertTrue(conn.getCompressionStats().getCompressionRatio() < 0.2);
+			assertEquals(1, scp.conn.getCompressionStats().getFramesInflated());
+			conn.close();
+			
+			// a peer without compression gets uncompressed messages
+			TCPConnection plain = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT+4);
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {e.printStackTrace();}
+			assertFalse(plain.isCompressing());
+			assertFalse(scp.conn.isCompressing());
+			plain.close();
+		} finally {
+			compressingManager.stop();
+		}
+	}
+	
+	@Test
+	public void testUDPMessage() throws Exception {
+		final List<UDPMessage> received = Collections.synchronizedList(new ArrayList<UDPMessage>());
+		final List<byte[]> payloads = Collections.synchronizedList(new ArrayList<byte[]>());
+		manager.addNetworkListener(new INetworkListener() {
+			public void onConnection(TCPConnection pCon) {}
+			public void onUDPMessage(UDPMessage pMsg) {
+				received.add(pMsg);
+				// the buffer is only valid during the call
+				payloads.add(pMsg.getBytes());
+			}
+		});
+		
+		UUID other = UUID.randomUUID();
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			for (UUID sender: new UUID[] {ConnectionManager.ID, other}) {
+				ByteBuffer datagram = ByteBuffer.allocate(UDPMessage.HEADER_SIZE + 4);
+				datagram.putLong(sender.getMostSignificantBits()).putLong(sender.getLeastSignificantBits());
+				// binary payload with zeros and trailing whitespace
+				datagram.put(new byte[] {0, 'a', ' ', 0});
+				socket.send(new DatagramPacket(datagram.array(), datagram.capacity(), InetAddress.getLoopbackAddress(), ConnectionManager.DEFAULT_PORT));
+			}
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {e.printStackTrace();}
+		} finally {
+			socket.close();
+		}
+		
+		// the own datagram is ignored
+		assertEquals(1, received.size());
+		assertTrue(received.get(0).isFrom(other));
+		assertEquals(other, received.get(0).getSenderId());
+		assertArrayEquals(new byte[] {0, 'a', ' ', 0}, payloads.get(0));
+	}
+	
+	@Test
+	public void testBroadcastSender() throws IOException {
+		BroadcastSender sender = manager.getBroadcastSender();
+		assertSame(sender, manager.getBroadcastSender());
+		List<InetSocketAddress> targets = sender.getTargets();
+		assertFalse(targets.isEmpty());
+		for (InetSocketAddress target: targets) {
+			assertEquals(ConnectionManager.DEFAULT_PORT, target.getPort());
+		}
+		// one datagram per payload and address, the addresses are looked up once
+		ByteBuffer first = ByteBuffer.wrap(new byte[] {1, 2});
+		int sent = sender.send(first, ByteBuffer.wrap(new byte[] {3}));
+		assertTrue(sent <= 2 * targets.size());
+		assertEquals(0, first.position());
+		assertSame(targets, sender.getTargets());
+		sender.refresh();
+		assertEquals(targets, sender.getTargets());
+	}
+	
+	private void sendAnnouncement(UUID pSender, byte pType, int pPort, String pKey, String pValue) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(pSender.getMostSignificantBits());
+		out.writeLong(pSender.getLeastSignificantBits());
+		out.writeInt(DiscoveryService.MAGIC);
+		out.writeByte(pType);
+		out.writeInt(pPort);
+		out.writeShort(1);
+		out.writeUTF(pKey);
+		out.writeUTF(pValue);
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			socket.send(new DatagramPacket(bytes.toByteArray(), bytes.size(), InetAddress.getLoopbackAddress(), ConnectionManager.DEFAULT_PORT));
+		} finally {
+			socket.close();
+		}
+	}
+	
+	@Test
+	public void testDiscovery() throws Exception {
+		DiscoveryService discovery = new DiscoveryService(manager, Collections.singletonMap("role", "test"), 50, 300);
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		discovery.addDiscoveryListener(new IDiscoveryListener() {
+			public void onPeerJoined(Peer pPeer) {
+				events.add("join "+pPeer.getMetadata().get("role"));
+			}
+			public void onPeerLeft(Peer pPeer) {
+				events.add("leave "+pPeer.getMetadata().get("role"));
+			}
+		});
+		discovery.start();
+		try {
+			UUID a = UUID.randomUUID();
+			UUID b = UUID.randomUUID();
+			sendAnnouncement(a, DiscoveryService.ANNOUNCE, 9000, "role", "a");
+			sendAnnouncement(b, DiscoveryService.ANNOUNCE, 9001, "role", "b");
+			Thread.sleep(100);
+			
+			List<Peer> peers = discovery.getPeers();
+			assertEquals(2, peers.size());
+			assertEquals(9000, discovery.getPeer(a).getAddress().getPort());
+			// repeated announcements keep the snapshot
+			sendAnnouncement(a, DiscoveryService.ANNOUNCE, 9000, "role", "a");
+			Thread.sleep(100);
+			assertSame(peers, discovery.getPeers());
+			
+			sendAnnouncement(b, DiscoveryService.LEAVE, 9001, "role", "b");
+			Thread.sleep(100);
+			assertNull(discovery.getPeer(b));
+			// a is not announced anymore and expires
+			Thread.sleep(400);
+			assertTrue(discovery.getPeers().isEmpty());
+			assertEquals(Arrays.asList("join a", "join b", "leave b", "leave a"), events.subList(0, 4));
+		} finally {
+			discovery.stop();
+		}
+	}
+	
+	@Test
+	public void testConnectionPool() throws Exception {
+		manager.addNetworkListener(new INetworkListener() {
+			public void onConnection(TCPConnection pCon) {
+				pCon.setRequestHandler(new IRequestHandler() {
+					public Serializable onRequest(TCPConnection pCon, Object pRequest) throws Exception {
+						Thread.sleep(200);
+						return (Serializable) pRequest;
+					}
+				});
+			}
+			public void onUDPMessage(UDPMessage pMsg) {}
+		});
+		ConnectionPool pool = new ConnectionPool(new ConnectionOptions()
+			.setPoolSize(1, 3)
+			.setPoolIdleTimeout(200)
+			.setPoolValidation(1, 1000));
+		try {
+			TCPConnection first = pool.get("localhost", ConnectionManager.DEFAULT_PORT);
+			// idle connections are reused
+			assertSame(first, pool.get("localhost", ConnectionManager.DEFAULT_PORT));
+			assertEquals(1, pool.getConnectionCount("localhost", ConnectionManager.DEFAULT_PORT));
+			
+			// busy connections make the pool grow up to the maximum
+			List<CompletableFuture<Object>> responses = new ArrayList<CompletableFuture<Object>>();
+			for (int i = 0; i < 5; i++) {
+				responses.add(pool.request("localhost", ConnectionManager.DEFAULT_PORT, i));
+			}
+			assertEquals(3, pool.getConnectionCount("localhost", ConnectionManager.DEFAULT_PORT));
+			for (int i = 0; i < 5; i++) {
+				assertEquals(i, responses.get(i).get(2, TimeUnit.SECONDS));
+			}
+			
+			// idle connections are closed down to the minimum
+			Thread.sleep(600);
+			assertEquals(1, pool.getConnectionCount("localhost", ConnectionManager.DEFAULT_PORT));
+			
+			// closed connections are replaced
+			TCPConnection last = pool.get("localhost", ConnectionManager.DEFAULT_PORT);
+			last.close();
+			TCPConnection replaced = pool.get("localhost", ConnectionManager.DEFAULT_PORT);
+			assertNotSame(last, replaced);
+			assertFalse(replaced.isClosed());
+			assertTrue(replaced.ping(1000).get(2, TimeUnit.SECONDS) > 0);
+		} finally {
+			pool.close();
+		}
+	}
+	
+	@Test
+	public void testBroadcast() throws Exception {
+		SingleConnectionProvider scp = new SingleConnectionProvider();
+		manager.addNetworkListener(scp);
+		TCPConnection a = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT);
+		MessageRegister ra = new MessageRegister();
+		a.addConnectionListener(ra);
+		Thread.sleep(200);
+		TCPConnection serverA = scp.conn;
+		manager.join("a", serverA);
+		TCPConnection b = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT);
+		MessageRegister rb = new MessageRegister();
+		b.addConnectionListener(rb);
+		Thread.sleep(200);
+		assertEquals(2, manager.getConnections().size());
+		
+		// a message sent before and after the shared frame keeps the codec streams of the connection intact
+		serverA.sendMessage("before");
+		assertEquals(2, manager.broadcast("to all"));
+		serverA.sendMessage("after");
+		Thread.sleep(200);
+		assertEquals("after", ra.lastMessage);
+		assertEquals("to all", rb.lastMessage);
+		
+		assertEquals(1, manager.publish("a", "to a"));
+		assertEquals(0, manager.publish("unknown", "to nobody"));
+		Thread.sleep(200);
+		assertEquals("to a", ra.lastMessage);
+		assertEquals("to all", rb.lastMessage);
+		
+		a.close();
+		Thread.sleep(200);
+		assertEquals(1, manager.getConnections().size());
+		assertTrue(manager.getGroup("a").isEmpty());
+		b.close();
+	}
+	
+	@Test
+	public void testJournalReplay() throws Exception {
+		final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+		manager.addNetworkListener(new INetworkListener() {
+			public void onConnection(TCPConnection pCon) {
+				pCon.addConnectionListener(new IConnectionListener() {
+					public void onMessage(Object o) {
+						received.add(o);
+					}
+					public void onClose() {}
+				});
+			}
+			public void onUDPMessage(UDPMessage pMsg) {}
+		});
+		Path dir = Files.createTempDirectory("journal");
+		OutboundJournal journal = new OutboundJournal(dir, 4096);
+		
+		TCPConnection first = ConnectionManager.connect("localhost");
+		first.setJournal(journal);
+		for (int i = 0; i < 500; i++) {
+			first.sendMessage("message "+i);
+		}
+		Thread.sleep(300);
+		assertEquals(500, received.size());
+		assertEquals(0, journal.getUnacknowledged());
+		// acknowledged segments are reused, one in use, two spare and the cursor
+		assertTrue(dir.toFile().list().length <= 4);
+		
+		// sent during the outage, replayed by the next connection
+		first.close();
+		first.sendMessage("offline");
+		assertEquals(501, journal.getLastSequence());
+		assertEquals(1, journal.getUnacknowledged());
+		TCPConnection second = ConnectionManager.connect("localhost");
+		second.setJournal(journal);
+		Thread.sleep(300);
+		assertEquals("offline", received.get(received.size() - 1));
+		assertEquals(0, journal.getUnacknowledged());
+		
+		// unacknowledged messages survive reopening the journal
+		second.close();
+		second.sendMessage("after restart");
+		journal.close();
+		journal = new OutboundJournal(dir, 4096);
+		assertEquals(502, journal.getLastSequence());
+		assertEquals(1, journal.getUnacknowledged());
+		TCPConnection third = ConnectionManager.connect("localhost");
+		third.setJournal(journal);
+		Thread.sleep(300);
+		assertEquals("after restart", received.get(received.size() - 1));
+		assertEquals(502, received.size());
+		assertEquals(0, journal.getUnacknowledged());
+		third.close();
+		journal.close();
+		for (File f: dir.toFile().listFiles()) f.delete();
+		Files.delete(dir);
+	}
+	
+	@Test
+	public void testIdleTimeout() throws Exception {
+		ConnectionManager strict = ConnectionManager.start(0, new ConnectionOptions().setUseUDP(false).setJmxEnabled(false)
+				.setIdleTimeouts(300, 0));
+		try {
+			final CountDownLatch closed = new CountDownLatch(1);
+			TCPConnection silent = ConnectionManager.connect("localhost", strict.getPort());
+			silent.addConnectionListener(new IConnectionListener() {
+				public void onMessage(Object pMsg) {}
+				public void onClose() {
+					closed.countDown();
+				}
+			});
+			// pings keep the link alive, the pongs do not count as requests
+			TCPConnection beating = ConnectionManager.connect("localhost", strict.getPort(), new ConnectionOptions().setHeartbeatInterval(100));
+			
+			assertTrue(closed.await(2, TimeUnit.SECONDS));
+			Thread.sleep(300);
+			assertFalse(beating.isClosed());
+			assertEquals(1, strict.getConnections().size());
+			assertEquals(0, beating.getPendingRequests());
+			beating.close();
+		} finally {
+			strict.stop();
+		}
+	}
+	
+	@Test
+	public void testWriteIdleTimeoutDoesNotStallTimer() throws Exception {
+		ServerSocket server = startQuietServer();
+		final TCPConnection stuck = ConnectionManager.connect("localhost", server.getLocalPort(),
+				new ConnectionOptions().setSendQueueLimit(64*1024, 1000).setIdleTimeouts(0, 300).setHeartbeatInterval(50)
+					.setOverflowPolicy(ConnectionOptions.OverflowPolicy.BLOCK));
+		Socket stuckPeer = server.accept();
+		TCPConnection other = ConnectionManager.connect("localhost", server.getLocalPort());
+		Socket otherPeer = server.accept();
+		final CountDownLatch closing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		stuck.addConnectionListener(new IConnectionListener() {
+			public void onMessage(Object pMsg) {}
+			public void onClose() {
+				closing.countDown();
+				// a slow listener must not hold up the timeouts of other connections
+				try {
+					release.await();
+				} catch (InterruptedException e) {}
+			}
+		});
+		ExecutorService senders = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> producer = senders.submit(new Runnable() {
+				public void run() {
+					// blocks until the connection is closed
+					while (stuck.sendAsync(new byte[16*1024]));
+				}
+			});
+			assertTrue(closing.await(2, TimeUnit.SECONDS));
+			producer.get(1, TimeUnit.SECONDS);
+
+			try {
+				other.request("never answered", 100).get(2, TimeUnit.SECONDS);
+				fail("request should have timed out");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof TimeoutException);
+			}
+		} finally {
+			release.countDown();
+			senders.shutdownNow();
+			stuck.close();
+			other.close();
+			stuckPeer.close();
+			otherPeer.close();
+			server.close();
+		}
+	}
+	
+	@Test
+	public void testGracefulShutdown() throws Exception {
+		SingleConnectionProvider scp = new SingleConnectionProvider();
+		manager.addNetworkListener(scp);
+		TCPConnection client = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT);
+		final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+		final CountDownLatch closed = new CountDownLatch(1);
+		client.addConnectionListener(new IConnectionListener() {
+			public void onMessage(Object pMsg) {
+				received.add(pMsg);
+			}
+			public void onClose() {
+				closed.countDown();
+			}
+		});
+		Thread.sleep(200);
+		
+		for (int i = 0; i < 1000; i++) {
+			scp.conn.sendAsync("Message "+i);
+		}
+		CompletableFuture<Boolean> done = manager.shutdown(Duration.ofSeconds(5));
+		assertTrue(done.get(10, TimeUnit.SECONDS));
+		assertSame(done, manager.shutdown(Duration.ZERO));
+		assertTrue(scp.conn.isClosed());
+		// every queued message arrives before the end of the stream
+		assertTrue(closed.await(1, TimeUnit.SECONDS));
+		assertEquals(1000, received.size());
+		assertEquals("Message 999", received.get(999));
+		
+		// the port is free again
+		ConnectionManager.start(ConnectionManager.DEFAULT_PORT, new ConnectionOptions().setUseUDP(false).setJmxEnabled(false)).stop();
+	}
+	
+	@Test
+	public void testLogicalChannels() throws Exception {
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(3);
+		manager.addNetworkListener(new INetworkListener() {
+			public void onConnection(TCPConnection pCon) {
+				for (final int id: new int[] {1, 2}) {
+					pCon.openChannel(id).addConnectionListener(new IConnectionListener() {
+						public void onMessage(Object o) {
+							received.add(id+":"+(o instanceof byte[] ? "bulk" : o));
+							done.countDown();
+						}
+						public void onClose() {}
+					});
+				}
+			}
+			public void onUDPMessage(UDPMessage pMsg) {}
+		});
+		TCPConnection conn = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT,
+				new ConnectionOptions().setChannelFragmentSize(1024));
+		MessageRegister plain = new MessageRegister();
+		try {
+			Thread.sleep(200);
+		} catch (InterruptedException e) {e.printStackTrace();}
+		conn.addConnectionListener(plain);
+		
+		LogicalChannel bulk = conn.openChannel(1);
+		LogicalChannel control = conn.openChannel(2);
+		assertSame(bulk, conn.openChannel(1));
+		assertTrue(bulk.sendAsync(new byte[16 * 1024 * 1024]));
+		// queued behind the bulk message but written between its fragments
+		assertTrue(control.sendAsync("urgent"));
+		control.sendMessage("done");
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("2:urgent", "2:done", "1:bulk"), received);
+		assertNull(plain.lastMessage);
+		conn.close();
+	}
+	
+	@Test
+	public void testMetrics() throws Exception {
+		final List<NetworkMetrics> reports = Collections.synchronizedList(new ArrayList<NetworkMetrics>());
+		ConnectionManager measured = new ConnectionManager(ConnectionManager.DEFAULT_PORT+5, new ConnectionOptions()
+			.setMetricsSink(new IMetricsSink() {
+				public void report(NetworkMetrics pMetrics) {
+					reports.add(pMetrics);
+				}
+			}, 50));
+		ObjectName name = new ObjectName("shylux.java.network:type=ConnectionManager,port="+(ConnectionManager.DEFAULT_PORT+5));
+		try {
+			measured.addNetworkListener(new INetworkListener() {
+				public void onConnection(TCPConnection pCon) {
+					pCon.addConnectionListener(new MessageRegister());
+				}
+				public void onUDPMessage(UDPMessage pMsg) {}
+			});
+			TCPConnection conn = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT+5);
+			for (int i = 0; i < 10; i++) {
+				conn.sendMessage("Metric "+i);
+			}
+			DatagramSocket socket = new DatagramSocket();
+			try {
+				// too short for the sender id, and longer than the max datagram size
+				socket.send(new DatagramPacket(new byte[4], 4, InetAddress.getLoopbackAddress(), ConnectionManager.DEFAULT_PORT+5));
+				socket.send(new DatagramPacket(new byte[1000], 1000, InetAddress.getLoopbackAddress(), ConnectionManager.DEFAULT_PORT+5));
+			} finally {
+				socket.close();
+			}
+			Thread.sleep(200);
+			
+			NetworkMetrics metrics = measured.getMetrics();
+			assertEquals(10, conn.getMetrics().getMessagesOut());
+			assertEquals(conn.getMetrics().getBytesOut(), metrics.getBytesIn());
+			assertEquals(1, metrics.getAcceptedConnections());
+			assertEquals(1, metrics.getOpenConnections());
+			assertEquals(10, metrics.getMessagesIn());
+			assertEquals(10, metrics.getDecodeTime().getCount());
+			assertEquals(10, metrics.getListenerTime().getCount());
+			assertTrue(metrics.getDecodeTime().getPercentileNanos(50) <= metrics.getDecodeTime().getMaxNanos());
+			assertEquals(0, metrics.getQueuedMessages());
+			assertEquals(2, metrics.getUdpPacketsReceived());
+			assertEquals(2, metrics.getUdpPacketsDropped());
+			assertEquals(10L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "MessagesIn"));
+			assertFalse(reports.isEmpty());
+			
+			conn.close();
+			Thread.sleep(200);
+			assertEquals(0, metrics.getOpenConnections());
+		} finally {
+			measured.stop();
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+	
+	@Test
+	public void testMessageSendOverNIOManager() throws IOException {
+		ConnectionManager nioManager = new ConnectionManager(ConnectionManager.DEFAULT_PORT+1,
+				new ConnectionOptions().setUseUDP(false).setUseNIO(true).setWorkerThreads(2));
+		try {
+			SingleConnectionProvider scp = new SingleConnectionProvider();
+			nioManager.addNetworkListener(scp);
+			
+			// blocking client against the non-blocking server
+			TCPConnection conn = ConnectionManager.connect("localhost", ConnectionManager.DEFAULT_PORT+1);
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {e.printStackTrace();}
+			
+			MessageRegister mr = new MessageRegister();
+			scp.conn.addConnectionListener(mr);
+			MessageRegister mr2 = new MessageRegister();
+			conn.addConnectionListener(mr2);
+			
+			conn.sendMessage("Test");
+			scp.conn.sendMessage("Blub");
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {e.printStackTrace();}
+			
+			assertEquals("Test", mr.lastMessage.toString());
+			assertEquals("Blub", mr2.lastMessage.toString());
+			
+			// client served by the event loop as well
+			TCPConnection nioConn = nioManager.open("localhost", ConnectionManager.DEFAULT_PORT+1);
+			MessageRegister mr3 = new MessageRegister();
+			nioConn.addConnectionListener(mr3);
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {e.printStackTrace();}
+			scp.conn.addConnectionListener(mr);
+			scp.conn.sendMessage("Pong");
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {e.printStackTrace();}
+			
+			assertEquals("Pong", mr3.lastMessage.toString());
+			conn.close();
+			nioConn.close();
+		} finally {
+			nioManager.stop();
+		}
+	}
 
 }
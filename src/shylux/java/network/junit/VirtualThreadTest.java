@@ -0,0 +1,60 @@
+package shylux.java.network.junit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import shylux.java.network.ConnectionManager;
+import shylux.java.network.ConnectionOptions;
+import shylux.java.network.INetworkListener;
+import shylux.java.network.TCPConnection;
+import shylux.java.network.UDPMessage;
+
+public class VirtualThreadTest {
+	private static final int CONNECTIONS = 10000;
+	private static final int PORT = ConnectionManager.DEFAULT_PORT+2;
+
+	@Test
+	public void testManyLoopbackConnections() throws IOException {
+		assumeTrue(ConnectionOptions.isVirtualThreadSupported());
+		
+		ConnectionOptions options = new ConnectionOptions().setUseUDP(false).setThreadFactory(ConnectionOptions.virtualThreads());
+		ConnectionManager manager = new ConnectionManager(PORT, options);
+		final AtomicInteger counter = new AtomicInteger();
+		manager.addNetworkListener(new INetworkListener() {
+			public void onConnection(TCPConnection pCon) {
+				counter.incrementAndGet();
+			}
+			public void onUDPMessage(UDPMessage pMsg) {}
+		});
+		List<TCPConnection> connections = new ArrayList<TCPConnection>();
+		try {
+			for (int i = 0; i < CONNECTIONS; i++) {
+				connections.add(ConnectionManager.connect("localhost", PORT, options));
+			}
+			
+			long deadline = System.currentTimeMillis() + 30000;
+			while (counter.get() < CONNECTIONS && System.currentTimeMillis() < deadline) {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {e.printStackTrace();}
+			}
+			assertEquals(CONNECTIONS, counter.get());
+			
+			// every connection is still usable
+			connections.get(CONNECTIONS-1).sendMessage("Test");
+			assertFalse(connections.get(0).isClosed());
+		} finally {
+			for (TCPConnection conn: connections) {
+				conn.close();
+			}
+			manager.stop();
+		}
+	}
+}